@@ -29,15 +29,20 @@ from moviepy import AudioFileClip
 DEFAULT_FONT = "PingFang SC"
 FALLBACK_FONTS = ["Microsoft YaHei", "Songti SC", "Arial Unicode MS"]
 # --- TTS Caching Setup ---
-AUDIO_DIR = os.path.join(config.media_dir, "audio")
+# 每个任务使用独立的 media_dir，音频缓存、tts 文本和字幕仍放在服务端共享的 media 目录
+SHARED_MEDIA_DIR = os.getenv("KIT_SHARED_MEDIA_DIR") or config.media_dir
+AUDIO_DIR = os.path.join(SHARED_MEDIA_DIR, "audio")
 os.makedirs(AUDIO_DIR, exist_ok=True)
 
-TTS_TEXT_DIR = os.path.join(config.media_dir, "tts_text")
+TTS_TEXT_DIR = os.path.join(SHARED_MEDIA_DIR, "tts_text")
 os.makedirs(TTS_TEXT_DIR, exist_ok=True)
 
-TTS_SUBTITLE_DIR = os.path.join(config.media_dir, "tts_subtitle")
+TTS_SUBTITLE_DIR = os.path.join(SHARED_MEDIA_DIR, "tts_subtitle")
 os.makedirs(TTS_SUBTITLE_DIR, exist_ok=True)
 
+# 服务端预先合成语音时存在 {md5}.mp3.part 标记，最多等待的秒数
+TTS_PREFETCH_WAIT = float(os.getenv("KIT_TTS_PREFETCH_WAIT") or 60)
+
 # UNI_BASE_URL = "http://13.216.69.13"
 UNI_BASE_URL = "http://127.0.0.1"
 
@@ -147,6 +152,14 @@ class CustomVoiceoverTracker:
         self.duration = duration
 
 
+def wait_prefetch(audio_file: str) -> None:
+    """Waits for the server-side TTS prefetch of this file to finish."""
+    part_file = audio_file + ".part"
+    deadline = time.time() + TTS_PREFETCH_WAIT
+    while os.path.exists(part_file) and time.time() < deadline:
+        time.sleep(0.1)
+
+
 def get_cache_filename(text: str) -> str:
     """Generates a unique filename based on the MD5 hash of the text."""
     text_hash = hashlib.md5(text.encode('utf-8')).hexdigest()
@@ -172,6 +185,7 @@ def custom_voiceover_tts(text: str,
 
     """Fetches or uses cached TTS audio, yields a tracker with path and duration."""
     audio_file = get_cache_filename(text)
+    wait_prefetch(audio_file)
     duration = 0
 
     if audio_file and os.path.exists(audio_file):
@@ -13,13 +13,13 @@ import lombok.extern.slf4j.Slf4j;
 public class DbTables {
 
   public static void init() {
-    String userTableName = "uni_tts_cache";
-
-    boolean created = createTable(userTableName);
-    if (created) {
-      log.info("created table:{}", userTableName);
+    String[] tableNames = { "uni_tts_cache", "kit_upload_job", "manim_render_job", "hls_session" };
+    for (String tableName : tableNames) {
+      boolean created = createTable(tableName);
+      if (created) {
+        log.info("created table:{}", tableName);
+      }
     }
-
   }
 
   private static boolean createTable(String userTableName) {
@@ -29,10 +29,15 @@ public class DbTables {
     if (size < 1) {
       URL url = ResourceUtil.getResource("sql/" + userTableName + ".sql");
       String sql2 = FileUtil.readString(url);
-      int update = Db.update(sql2);
-      log.info("created:{},{}", userTableName, update);
+      // sqlite 一次只执行一条语句，建表和建索引分开执行
+      for (String statement : sql2.split(";")) {
+        if (!statement.trim().isEmpty()) {
+          int update = Db.update(statement);
+          log.info("created:{},{}", userTableName, update);
+        }
+      }
       return true;
     }
     return false;
   }
-}
\ No newline at end of file
+}
@@ -1,18 +1,23 @@
 package com.litongjava.kit.config;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 
 import com.litongjava.context.BootConfiguration;
+import com.litongjava.jfinal.aop.Aop;
 import com.litongjava.kit.handler.BlackIpHandler;
 import com.litongjava.kit.handler.CmdHanlder;
 import com.litongjava.kit.handler.DataDeleteHandler;
 import com.litongjava.kit.handler.DownloadVideoHandler;
 import com.litongjava.kit.handler.GzipBombTestHandler;
 import com.litongjava.kit.handler.HlsHandler;
+import com.litongjava.kit.handler.HlsSegmentHandler;
+import com.litongjava.kit.handler.LivePlaylistHandler;
 import com.litongjava.kit.handler.ManimImageHandler;
 import com.litongjava.kit.handler.ManimVideoFinishHanlder;
 import com.litongjava.kit.handler.ManimVideoRunHanlder;
+import com.litongjava.kit.handler.MetricsHandler;
 import com.litongjava.kit.handler.ManimVideoStartHanlder;
 import com.litongjava.kit.handler.McpHandler;
 import com.litongjava.kit.handler.MomeryHandler;
@@ -20,12 +25,27 @@ import com.litongjava.kit.handler.MotionCanvasFinishHandler;
 import com.litongjava.kit.handler.MotionCanvasHandler;
 import com.litongjava.kit.handler.PingHandler;
 import com.litongjava.kit.handler.PythonHanlder;
+import com.litongjava.kit.handler.RenderCacheHandler;
+import com.litongjava.kit.handler.RenderJobHandler;
+import com.litongjava.kit.handler.RenderQueueHandler;
+import com.litongjava.kit.handler.RenderTaskHandler;
+import com.litongjava.kit.handler.RenderUpgradeHandler;
 import com.litongjava.kit.handler.ScriptsHandler;
 import com.litongjava.kit.handler.SpeedTestHandler;
 import com.litongjava.kit.handler.TestController;
+import com.litongjava.kit.handler.UploadJobHandler;
 import com.litongjava.kit.handler.VideoWaterHandler;
 import com.litongjava.kit.handler.YoutubeHandler;
 import com.litongjava.kit.mcp.McpCoderServer;
+import com.litongjava.kit.service.HlsSessionService;
+import com.litongjava.kit.service.ManimCacheService;
+import com.litongjava.kit.service.ManimWorkerPool;
+import com.litongjava.kit.service.PreflightService;
+import com.litongjava.kit.service.RenderJobService;
+import com.litongjava.kit.service.RenderTaskService;
+import com.litongjava.kit.service.TtsPrefetchService;
+import com.litongjava.kit.service.UploadJobService;
+import com.litongjava.kit.utils.FolderUtils;
 import com.litongjava.llm.proxy.config.LLMProxyAppConfig;
 import com.litongjava.tio.boot.admin.config.TioAdminDbConfiguration;
 import com.litongjava.tio.boot.http.handler.common.HttpFileDataHandler;
@@ -37,6 +57,7 @@ import com.litongjava.tio.boot.server.TioBootServer;
 import com.litongjava.tio.http.server.intf.HttpRequestInterceptor;
 import com.litongjava.tio.http.server.router.HttpRequestRouter;
 import com.litongjava.tio.utils.environment.EnvUtils;
+import com.litongjava.tio.utils.path.WorkDirUtils;
 import com.litongjava.uni.config.UniAiAppConfig;
 
 public class KitAppConfig implements BootConfiguration {
@@ -45,10 +66,30 @@ public class KitAppConfig implements BootConfiguration {
 
     // 配置数据库相关
     new TioAdminDbConfiguration().config();
+    DbTables.init();
 
     new UniAiAppConfig().config();
     new LLMProxyAppConfig().config();
 
+    // 清理上次异常退出残留的任务 media 目录
+    FolderUtils.delete(new File(WorkDirUtils.workingMediaDir, "tasks"));
+    // 清理过期的 manim 会话缓存
+    Aop.get(ManimCacheService.class).evictAsync();
+    // 预热 manim worker
+    Aop.get(ManimWorkerPool.class).start();
+    // 预热脚本预检进程
+    Aop.get(PreflightService.class).start();
+    // 清理上次退出时残留的语音合成标记
+    Aop.get(TtsPrefetchService.class).start();
+    // 回收客户端放弃的 HLS 会话句柄
+    Aop.get(HlsSessionService.class).start();
+    // 检测客户端断开的渲染请求
+    Aop.get(RenderTaskService.class).start();
+    // 后台上传队列
+    Aop.get(UploadJobService.class).start();
+    // 继续执行上次退出时未完成的异步渲染任务
+    Aop.get(RenderJobService.class).start();
+
     TioBootServer server = TioBootServer.me();
 
     HttpRequestRouter r = server.getRequestRouter();
@@ -70,10 +111,36 @@ public class KitAppConfig implements BootConfiguration {
 
       ManimVideoFinishHanlder manimVideoFinishHanlder = new ManimVideoFinishHanlder();
       r.add("/manim/finish", manimVideoFinishHanlder);
+      r.add("/manim/finish/status", manimVideoFinishHanlder::status);
+
+      RenderJobHandler renderJobHandler = new RenderJobHandler();
+      r.add("/manim/result", renderJobHandler::result);
+      r.add("/manim/result/stats", renderJobHandler::stats);
+
+      RenderUpgradeHandler renderUpgradeHandler = new RenderUpgradeHandler();
+      r.add("/manim/upgrade/status", renderUpgradeHandler::status);
+      r.add("/manim/upgrade/cancel", renderUpgradeHandler::cancel);
 
       ManimImageHandler manimImageHandler = new ManimImageHandler();
       r.add("/manim/image", manimImageHandler::index);
 
+      RenderCacheHandler renderCacheHandler = new RenderCacheHandler();
+      r.add("/manim/cache/stats", renderCacheHandler::stats);
+
+      RenderQueueHandler renderQueueHandler = new RenderQueueHandler();
+      r.add("/render/queue/stats", renderQueueHandler::stats);
+
+      RenderTaskHandler renderTaskHandler = new RenderTaskHandler();
+      r.add("/render/cancel", renderTaskHandler::cancel);
+      r.add("/render/tasks", renderTaskHandler::tasks);
+
+      MetricsHandler metricsHandler = new MetricsHandler();
+      r.add("/metrics", metricsHandler::index);
+
+      UploadJobHandler uploadJobHandler = new UploadJobHandler();
+      r.add("/upload/status", uploadJobHandler::status);
+      r.add("/upload/stats", uploadJobHandler::stats);
+
       MotionCanvasHandler motionCanvasHandler = new MotionCanvasHandler();
       r.add("/motion-canvas/run", motionCanvasHandler);
 
@@ -81,7 +148,8 @@ public class KitAppConfig implements BootConfiguration {
       r.add("/motion-canvas/finish", motionCanvasFinishHandler);
 
       HttpFileDataHandler dataHandler = new HttpFileDataHandler(false);
-      r.add("/data/**", dataHandler);
+      // 直播分片走堆外缓存
+      r.add("/data/**", new HlsSegmentHandler(dataHandler));
       r.add("/cache/**", dataHandler);
       r.add("/media/**", dataHandler);
       r.add("/motion-canvas/**", dataHandler);
@@ -95,6 +163,10 @@ public class KitAppConfig implements BootConfiguration {
       HlsHandler hlsHandler = new HlsHandler();
       r.add("/hls/start", hlsHandler::start);
 
+      LivePlaylistHandler livePlaylistHandler = new LivePlaylistHandler();
+      r.add("/hls/live", livePlaylistHandler::index);
+      r.add("/hls/part", livePlaylistHandler::part);
+
       VideoWaterHandler videoWaterHandler = new VideoWaterHandler();
       r.add("/video/download/water", videoWaterHandler::index);
       r.add("/video/exists", videoWaterHandler::exists);
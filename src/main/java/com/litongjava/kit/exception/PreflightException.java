@@ -0,0 +1,22 @@
+package com.litongjava.kit.exception;
+
+import com.litongjava.kit.vo.PreflightResult;
+
+/**
+ * 脚本没有通过预检，调用方应返回 400 和错误列表
+ */
+public class PreflightException extends RuntimeException {
+
+  private static final long serialVersionUID = 1L;
+
+  private final PreflightResult result;
+
+  public PreflightException(PreflightResult result) {
+    super("Code preflight failed");
+    this.result = result;
+  }
+
+  public PreflightResult getResult() {
+    return result;
+  }
+}
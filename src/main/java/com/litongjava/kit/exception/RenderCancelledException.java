@@ -0,0 +1,20 @@
+package com.litongjava.kit.exception;
+
+/**
+ * 渲染任务被取消(客户端断开连接、调用取消接口或者同一个 code_id 的新请求)
+ */
+public class RenderCancelledException extends RuntimeException {
+
+  private static final long serialVersionUID = 1L;
+
+  private final String reason;
+
+  public RenderCancelledException(String reason) {
+    super("Render cancelled: " + reason);
+    this.reason = reason;
+  }
+
+  public String getReason() {
+    return reason;
+  }
+}
@@ -0,0 +1,34 @@
+package com.litongjava.kit.exception;
+
+import com.litongjava.kit.vo.RenderKind;
+
+/**
+ * 渲染队列已满或排队超时，调用方应返回 429
+ */
+public class RenderRejectedException extends RuntimeException {
+
+  private static final long serialVersionUID = 1L;
+
+  private final RenderKind kind;
+  private final int queuePosition;
+  private final long etaSeconds;
+
+  public RenderRejectedException(RenderKind kind, int queuePosition, long etaSeconds, String message) {
+    super(message);
+    this.kind = kind;
+    this.queuePosition = queuePosition;
+    this.etaSeconds = etaSeconds;
+  }
+
+  public RenderKind getKind() {
+    return kind;
+  }
+
+  public int getQueuePosition() {
+    return queuePosition;
+  }
+
+  public long getEtaSeconds() {
+    return etaSeconds;
+  }
+}
@@ -0,0 +1,46 @@
+package com.litongjava.kit.handler;
+
+import java.io.File;
+
+import com.litongjava.jfinal.aop.Aop;
+import com.litongjava.kit.service.HlsSegmentCache;
+import com.litongjava.tio.boot.http.TioRequestContext;
+import com.litongjava.tio.http.common.HttpRequest;
+import com.litongjava.tio.http.common.HttpResponse;
+import com.litongjava.tio.http.server.handler.HttpRequestHandler;
+import com.litongjava.tio.http.server.util.CORSUtils;
+import com.litongjava.tio.http.server.util.Resps;
+
+/**
+ * /data/hls/{sessionId}/*.ts 从 HlsSegmentCache 返回，其他文件和 Range 请求交给原来的静态文件 handler
+ */
+public class HlsSegmentHandler implements HttpRequestHandler {
+
+  private static final String PREFIX = "/data/hls/";
+
+  private final HttpRequestHandler delegate;
+  private HlsSegmentCache hlsSegmentCache = Aop.get(HlsSegmentCache.class);
+
+  public HlsSegmentHandler(HttpRequestHandler delegate) {
+    this.delegate = delegate;
+  }
+
+  @Override
+  public HttpResponse handle(HttpRequest request) throws Exception {
+    String path = request.getRequestLine().getPath();
+    if (!path.startsWith(PREFIX) || !path.endsWith(".ts") || path.contains("..")
+        || request.getHeader("range") != null) {
+      return delegate.handle(request);
+    }
+    byte[] body = hlsSegmentCache.read(new File("." + path));
+    if (body == null) {
+      return delegate.handle(request);
+    }
+    HttpResponse response = TioRequestContext.getResponse();
+    CORSUtils.enableCORS(response);
+    Resps.bytesWithContentType(response, body, "video/mp2t");
+    // ts 已经是压缩格式
+    response.setSkipGzipped(true);
+    return response;
+  }
+}
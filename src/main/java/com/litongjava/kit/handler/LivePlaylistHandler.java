@@ -0,0 +1,113 @@
+package com.litongjava.kit.handler;
+
+import java.nio.charset.StandardCharsets;
+
+import com.litongjava.jfinal.aop.Aop;
+import com.litongjava.kit.service.LivePlaylistService;
+import com.litongjava.kit.service.LivePlaylistService.LivePlaylist;
+import com.litongjava.model.body.RespBodyVo;
+import com.litongjava.tio.boot.http.TioRequestContext;
+import com.litongjava.tio.http.common.HttpRequest;
+import com.litongjava.tio.http.common.HttpResponse;
+import com.litongjava.tio.http.server.util.CORSUtils;
+import com.litongjava.tio.http.server.util.Resps;
+
+public class LivePlaylistHandler {
+
+  private LivePlaylistService livePlaylistService = Aop.get(LivePlaylistService.class);
+
+  /**
+   * 接口：GET /hls/live?session_id=&_HLS_msn=&_HLS_part=&ll=1
+   * 返回内存中的直播播放列表。带 _HLS_msn 时阻塞到该媒体序号的分片出现、播放列表结束或者超时，
+   * 同时带 _HLS_part 时阻塞到该分片的这个部分分片出现。
+   * 不带时支持 If-None-Match，播放列表没有变化返回 304。ll=1 或者带 _HLS_part 时返回低延迟播放列表
+   */
+  public HttpResponse index(HttpRequest request) {
+    HttpResponse response = TioRequestContext.getResponse();
+    CORSUtils.enableCORS(response);
+
+    Long sessionId = request.getLong("session_id");
+    if (sessionId == null) {
+      sessionId = request.getLong("sessionId");
+    }
+    if (sessionId == null) {
+      response.setStatus(400);
+      return response.setJson(RespBodyVo.fail("session_id is required"));
+    }
+    Long msn = request.getLong("_HLS_msn");
+    Integer part = request.getInt("_HLS_part");
+    boolean lowLatency = isTrue(request.getString("ll")) || part != null;
+    if (part != null && (msn == null || part < 0)) {
+      response.setStatus(400);
+      return response.setJson(RespBodyVo.fail("_HLS_part requires _HLS_msn"));
+    }
+
+    LivePlaylist playlist = livePlaylistService.get(sessionId);
+    if (playlist == null) {
+      response.setStatus(404);
+      return response.setJson(RespBodyVo.fail("playlist not found"));
+    }
+    if (msn != null && msn > playlist.getLastMsn() + 2) {
+      // LL-HLS 规定请求的媒体序号超过最新分片两个以上时立即返回 400，不阻塞
+      response.setStatus(400);
+      return response.setJson(RespBodyVo.fail("_HLS_msn is too far ahead"));
+    }
+    if (msn != null) {
+      try {
+        livePlaylistService.await(sessionId, msn, part, livePlaylistService.getBlockMillis());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    String etag = playlist.etag(lowLatency);
+    response.setHeader("Cache-Control", "no-cache");
+    response.setHeader("ETag", etag);
+    if (msn == null && etag.equals(request.getHeader("if-none-match"))) {
+      livePlaylistService.served(false);
+      response.setStatus(304);
+      return response;
+    }
+    livePlaylistService.served(true);
+    String content = lowLatency ? livePlaylistService.lowLatency(playlist) : playlist.getBody();
+    byte[] body = content.getBytes(StandardCharsets.UTF_8);
+    return Resps.bytesWithContentType(response, body, "application/vnd.apple.mpegurl");
+  }
+
+  /**
+   * 接口：GET /hls/part?session_id=&name=c_001.ts&part=0
+   * 低延迟播放列表中的部分分片。分片还没有追加时保持请求，直到追加、播放列表结束或者超时
+   */
+  public HttpResponse part(HttpRequest request) {
+    HttpResponse response = TioRequestContext.getResponse();
+    CORSUtils.enableCORS(response);
+
+    Long sessionId = request.getLong("session_id");
+    String name = request.getString("name");
+    Integer index = request.getInt("part");
+    if (sessionId == null || name == null) {
+      response.setStatus(400);
+      return response.setJson(RespBodyVo.fail("session_id and name are required"));
+    }
+    byte[] body;
+    try {
+      body = livePlaylistService.part(sessionId, name, index == null ? 0 : index, livePlaylistService.getBlockMillis());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      body = null;
+    }
+    if (body == null) {
+      response.setStatus(404);
+      return response;
+    }
+    // 部分分片生成后不再变化
+    response.setHeader("Cache-Control", "max-age=3600");
+    Resps.bytesWithContentType(response, body, "video/mp2t");
+    response.setSkipGzipped(true);
+    return response;
+  }
+
+  private static boolean isTrue(String value) {
+    return "1".equals(value) || "true".equalsIgnoreCase(value);
+  }
+}
@@ -1,6 +1,9 @@
 package com.litongjava.kit.handler;
 
+import com.jfinal.kit.Kv;
 import com.litongjava.jfinal.aop.Aop;
+import com.litongjava.kit.exception.PreflightException;
+import com.litongjava.kit.exception.RenderRejectedException;
 import com.litongjava.kit.service.ManimImageCodeExecuteService;
 import com.litongjava.tio.boot.http.TioRequestContext;
 import com.litongjava.tio.http.common.HttpRequest;
@@ -25,6 +28,14 @@ public class ManimImageHandler {
       if (executeScript != null) {
         response.setJson(executeScript);
       }
+    } catch (PreflightException e) {
+      response.setStatus(400);
+      response.setJson(Kv.by("ok", false).set("msg", e.getMessage()).set("errors", e.getResult().getErrors()));
+    } catch (RenderRejectedException e) {
+      response.setStatus(429);
+      response.setHeader("Retry-After", String.valueOf(e.getEtaSeconds()));
+      response.setJson(Kv.by("ok", false).set("msg", e.getMessage()).set("kind", e.getKind().getValue())
+          .set("queue_position", e.getQueuePosition()).set("eta_seconds", e.getEtaSeconds()));
     } catch (Exception e) {
       log.error(e.getMessage(), e);
       response.setStatus(500);
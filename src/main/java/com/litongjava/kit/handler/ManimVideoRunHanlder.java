@@ -1,19 +1,36 @@
 package com.litongjava.kit.handler;
 
+import com.jfinal.kit.Kv;
+import com.litongjava.db.activerecord.Row;
 import com.litongjava.jfinal.aop.Aop;
+import com.litongjava.kit.exception.PreflightException;
+import com.litongjava.kit.exception.RenderCancelledException;
+import com.litongjava.kit.exception.RenderRejectedException;
+import com.litongjava.kit.service.HlsSessionService;
+import com.litongjava.kit.service.ManimUpgradeService;
 import com.litongjava.kit.service.ManimVideoCodeExecuteService;
-import com.litongjava.kit.store.HlsSessionStore;
+import com.litongjava.kit.service.RenderJobService;
+import com.litongjava.kit.service.RenderTaskService;
+import com.litongjava.kit.service.RenderTaskService.RenderTask;
+import com.litongjava.kit.utils.RenderProgress;
 import com.litongjava.kit.vo.HlsSession;
+import com.litongjava.kit.vo.RenderKind;
+import com.litongjava.kit.vo.RenderUpgrade;
+import com.litongjava.kit.vo.TimedProcessResult;
 import com.litongjava.kit.vo.VideoCodeInput;
+import com.litongjava.model.body.RespBodyVo;
 import com.litongjava.tio.boot.http.TioRequestContext;
 import com.litongjava.tio.core.ChannelContext;
 import com.litongjava.tio.core.Tio;
+import com.litongjava.tio.http.common.HeaderName;
+import com.litongjava.tio.http.common.HeaderValue;
 import com.litongjava.tio.http.common.HttpRequest;
 import com.litongjava.tio.http.common.HttpResponse;
 import com.litongjava.tio.http.common.UploadFile;
 import com.litongjava.tio.http.server.handler.HttpRequestHandler;
 import com.litongjava.tio.http.server.util.CORSUtils;
 import com.litongjava.tio.utils.commandline.ProcessResult;
+import com.litongjava.tio.utils.environment.EnvUtils;
 import com.litongjava.tio.utils.snowflake.SnowflakeIdUtils;
 
 import lombok.extern.slf4j.Slf4j;
@@ -21,6 +38,10 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public class ManimVideoRunHanlder implements HttpRequestHandler {
   ManimVideoCodeExecuteService manimService = Aop.get(ManimVideoCodeExecuteService.class);
+  ManimUpgradeService upgradeService = Aop.get(ManimUpgradeService.class);
+  RenderTaskService renderTaskService = Aop.get(RenderTaskService.class);
+  RenderJobService renderJobService = Aop.get(RenderJobService.class);
+  HlsSessionService hlsSessionService = Aop.get(HlsSessionService.class);
 
   @Override
   public HttpResponse handle(HttpRequest request) throws Exception {
@@ -34,6 +55,14 @@ public class ManimVideoRunHanlder implements HttpRequestHandler {
     String code_timeout = request.getParam("code_timeout");
     String storagePlatform = request.getParam("storage_platform");
     String quality = request.getParam("quality");
+    // 先返回低画质预览，请求的画质在后台渲染
+    Boolean progressive = request.getBoolean("progressive");
+    // stream 模式下保持连接直到后台升级结束
+    Boolean waitUpgrade = request.getBoolean("wait_upgrade");
+    // 立即返回，结果通过 /manim/result 查询
+    Boolean async = request.getBoolean("async");
+    // 场景顺序，并行渲染时按 seq 追加到直播流
+    Integer seq = request.getInt("seq");
 
     Integer timeout = null;
     if (code_timeout != null) {
@@ -60,7 +89,8 @@ public class ManimVideoRunHanlder implements HttpRequestHandler {
       quality = "l";
     }
 
-    HlsSession hlsSession = HlsSessionStore.get(sessionId);
+    // 重启后第一次使用时从 hls_session 表恢复
+    HlsSession hlsSession = hlsSessionService.get(sessionId);
 
     String m3u8Path = null;
     Long session_prt = null;
@@ -88,27 +118,103 @@ public class ManimVideoRunHanlder implements HttpRequestHandler {
       figure = new String(figureFile.getData());
     }
 
+    VideoCodeInput manimVideoCodeInput = new VideoCodeInput(sessionId, id, code, quality, timeout, stream, session_prt, m3u8Path, figure,
+        storagePlatform);
+    manimVideoCodeInput.setProgressive(progressive);
+    manimVideoCodeInput.setSeq(seq);
+
+    if (async != null && async) {
+      return submit(response, manimVideoCodeInput);
+    }
+
+    RenderProgress progress = RenderProgress.NONE;
     if (stream) {
       response.addServerSentEventsHeader();
+      response.addHeader(HeaderName.Transfer_Encoding, HeaderValue.from("chunked"));
       Tio.bSend(channelContext, response);
       response.setSend(false);
+      progress = new RenderProgress(channelContext);
     }
 
-    VideoCodeInput manimVideoCodeInput = new VideoCodeInput(sessionId, id, code, quality, timeout, stream, session_prt, m3u8Path, figure,
-        storagePlatform);
-
+    // 客户端断开连接或者调用 /render/cancel 时杀掉 manim 进程
+    RenderTask task = renderTaskService.register(String.valueOf(id), RenderKind.VIDEO, channelContext);
     try {
-      ProcessResult executeScript = manimService.executeCode(manimVideoCodeInput, channelContext);
+      ProcessResult executeScript = manimService.executeCode(manimVideoCodeInput, progress);
       if (executeScript != null) {
-        response.setJson(executeScript);
+        if (stream) {
+          progress.event("result", executeScript);
+          RenderUpgrade upgrade = executeScript instanceof TimedProcessResult
+              ? ((TimedProcessResult) executeScript).getUpgrade()
+              : null;
+          if (upgrade != null && waitUpgrade != null && waitUpgrade) {
+            long waitMillis = EnvUtils.getLong("render.progressive.wait.max.ms", 30 * 60 * 1000L);
+            progress.event("upgrade", upgradeService.await(upgrade.getTaskId(), waitMillis));
+          }
+        } else {
+          response.setJson(executeScript);
+        }
       }
 
+    } catch (RenderCancelledException e) {
+      cancelled(response, progress, stream, e.getReason());
+    } catch (PreflightException e) {
+      Kv kv = Kv.by("ok", false).set("msg", e.getMessage()).set("errors", e.getResult().getErrors());
+      if (stream) {
+        progress.event("preflight_failed", kv);
+      } else {
+        response.setStatus(400);
+        response.setJson(kv);
+      }
+    } catch (RenderRejectedException e) {
+      Kv kv = Kv.by("ok", false).set("msg", e.getMessage()).set("kind", e.getKind().getValue())
+          .set("queue_position", e.getQueuePosition()).set("eta_seconds", e.getEtaSeconds());
+      if (stream) {
+        progress.event("rejected", kv);
+      } else {
+        response.setStatus(429);
+        response.setHeader("Retry-After", String.valueOf(e.getEtaSeconds()));
+        response.setJson(kv);
+      }
     } catch (Exception e) {
-      log.error(e.getMessage(), e);
-      response.setStatus(500);
-      response.body(e.getMessage());
+      if (task.isCancelled()) {
+        // 取消时中断了排队或者等待 worker 的线程
+        cancelled(response, progress, stream, task.getReason());
+      } else {
+        log.error(e.getMessage(), e);
+        if (stream) {
+          progress.event("error", Kv.by("ok", false).set("msg", e.getMessage()));
+        } else {
+          response.setStatus(500);
+          response.body(e.getMessage());
+        }
+      }
+    } finally {
+      task.close();
+      progress.close();
     }
     return response;
   }
 
+  private HttpResponse submit(HttpResponse response, VideoCodeInput input) {
+    try {
+      Row job = renderJobService.submit(input);
+      return response.setJson(RespBodyVo.ok(RenderJobService.toKv(job)));
+    } catch (PreflightException e) {
+      Kv kv = Kv.by("ok", false).set("msg", e.getMessage()).set("errors", e.getResult().getErrors());
+      response.setStatus(400);
+      return response.setJson(kv);
+    }
+  }
+
+  private void cancelled(HttpResponse response, RenderProgress progress, boolean stream, String reason) {
+    Kv kv = Kv.by("ok", false).set("msg", "Render cancelled").set("reason", reason);
+    if (stream) {
+      progress.event("cancelled", kv);
+    } else {
+      // nginx 的 499 client closed request
+      response.setStatus(499);
+      response.setJson(kv);
+    }
+  }
+
 }
@@ -12,6 +12,7 @@ import com.litongjava.tio.http.common.HttpResponse;
 import com.litongjava.tio.http.server.handler.HttpRequestHandler;
 import com.litongjava.tio.http.server.util.CORSUtils;
 import com.litongjava.tio.utils.commandline.ProcessResult;
+import com.litongjava.tio.utils.environment.EnvUtils;
 import com.litongjava.tio.utils.snowflake.SnowflakeIdUtils;
 
 import lombok.extern.slf4j.Slf4j;
@@ -57,6 +58,13 @@ public class ManimVideoStartHanlder implements HttpRequestHandler {
     ProcessResult processResult = new ProcessResult();
     processResult.setSessionId(sessionId);
     String httpM3u8Path = FolderUtils.httpM3u8(sessionId, name);
+    String ll = request.getString("ll");
+    boolean lowLatency = ll == null ? EnvUtils.getBoolean("hls.ll.enabled", false)
+        : "1".equals(ll) || "true".equalsIgnoreCase(ll);
+    if (lowLatency) {
+      // 低延迟播放列表，老的播放器仍然可以使用 main.m3u8
+      httpM3u8Path = "/hls/live?session_id=" + sessionId + "&ll=1";
+    }
     processResult.setHlsUrl(httpM3u8Path);
     processResult.setOutput(httpM3u8Path);
 
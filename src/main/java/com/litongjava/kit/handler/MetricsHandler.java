@@ -0,0 +1,36 @@
+package com.litongjava.kit.handler;
+
+import java.nio.charset.StandardCharsets;
+
+import com.litongjava.jfinal.aop.Aop;
+import com.litongjava.kit.service.HlsAppendService;
+import com.litongjava.kit.service.HlsSegmentCache;
+import com.litongjava.kit.service.HlsSessionService;
+import com.litongjava.kit.service.LivePlaylistService;
+import com.litongjava.kit.service.ProcessGovernor;
+import com.litongjava.kit.service.RenderMetrics;
+import com.litongjava.kit.service.TtsPrefetchService;
+import com.litongjava.tio.boot.http.TioRequestContext;
+import com.litongjava.tio.http.common.HttpRequest;
+import com.litongjava.tio.http.common.HttpResponse;
+import com.litongjava.tio.http.server.util.Resps;
+
+public class MetricsHandler {
+
+  /**
+   * 接口：GET /metrics，Prometheus 文本格式
+   */
+  public HttpResponse index(HttpRequest request) {
+    HttpResponse response = TioRequestContext.getResponse();
+    StringBuilder out = new StringBuilder(8192);
+    Aop.get(RenderMetrics.class).export(out);
+    Aop.get(ProcessGovernor.class).export(out);
+    Aop.get(TtsPrefetchService.class).export(out);
+    Aop.get(HlsSessionService.class).export(out);
+    Aop.get(HlsAppendService.class).export(out);
+    Aop.get(HlsSegmentCache.class).export(out);
+    Aop.get(LivePlaylistService.class).export(out);
+    byte[] body = out.toString().getBytes(StandardCharsets.UTF_8);
+    return Resps.bytesWithContentType(response, body, "text/plain; version=0.0.4; charset=utf-8");
+  }
+}
@@ -3,8 +3,14 @@ package com.litongjava.kit.handler;
 import java.util.concurrent.locks.Lock;
 
 import com.google.common.util.concurrent.Striped;
+import com.jfinal.kit.Kv;
 import com.litongjava.jfinal.aop.Aop;
+import com.litongjava.kit.exception.RenderCancelledException;
+import com.litongjava.kit.exception.RenderRejectedException;
 import com.litongjava.kit.service.MotionCanvasCodeExecuteService;
+import com.litongjava.kit.service.RenderTaskService;
+import com.litongjava.kit.service.RenderTaskService.RenderTask;
+import com.litongjava.kit.vo.RenderKind;
 import com.litongjava.kit.vo.VideoCodeInput;
 import com.litongjava.tio.boot.http.TioRequestContext;
 import com.litongjava.tio.core.ChannelContext;
@@ -21,6 +27,7 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public class MotionCanvasHandler implements HttpRequestHandler {
   private MotionCanvasCodeExecuteService srv = Aop.get(MotionCanvasCodeExecuteService.class);
+  private RenderTaskService renderTaskService = Aop.get(RenderTaskService.class);
   private static final Striped<Lock> locks = Striped.lock(1024);
 
   /**
@@ -79,17 +86,33 @@ public class MotionCanvasHandler implements HttpRequestHandler {
     VideoCodeInput manimVideoCodeInput = new VideoCodeInput(sessionId, id, code_name, code, timeout);
     // 同一时间,只能写入一个sessionId
     Lock lock = locks.get(sessionId);
+    // 客户端断开连接后杀掉 npm 进程，在加锁之前注册，注册失败时不会留下没有释放的锁
+    RenderTask task = renderTaskService.register(String.valueOf(id), RenderKind.MOTION_CANVAS, channelContext);
     lock.lock();
     try {
       ProcessResult executeScript = srv.executeCode(manimVideoCodeInput, channelContext);
       if (executeScript != null) {
         response.setJson(executeScript);
       }
+    } catch (RenderCancelledException e) {
+      response.setStatus(499);
+      response.setJson(Kv.by("ok", false).set("msg", e.getMessage()).set("reason", e.getReason()));
+    } catch (RenderRejectedException e) {
+      response.setStatus(429);
+      response.setHeader("Retry-After", String.valueOf(e.getEtaSeconds()));
+      response.setJson(Kv.by("ok", false).set("msg", e.getMessage()).set("kind", e.getKind().getValue())
+          .set("queue_position", e.getQueuePosition()).set("eta_seconds", e.getEtaSeconds()));
     } catch (Exception e) {
-      log.error(e.getMessage(), e);
-      response.setStatus(500);
-      response.body(e.getMessage());
+      if (task.isCancelled()) {
+        response.setStatus(499);
+        response.setJson(Kv.by("ok", false).set("msg", "Render cancelled").set("reason", task.getReason()));
+      } else {
+        log.error(e.getMessage(), e);
+        response.setStatus(500);
+        response.body(e.getMessage());
+      }
     } finally {
+      task.close();
       lock.unlock();
     }
     return response;
@@ -0,0 +1,25 @@
+package com.litongjava.kit.handler;
+
+import com.jfinal.kit.Kv;
+import com.litongjava.jfinal.aop.Aop;
+import com.litongjava.kit.service.ManimCacheService;
+import com.litongjava.kit.service.RenderCacheService;
+import com.litongjava.model.body.RespBodyVo;
+import com.litongjava.tio.boot.http.TioRequestContext;
+import com.litongjava.tio.http.common.HttpRequest;
+import com.litongjava.tio.http.common.HttpResponse;
+import com.litongjava.tio.http.server.util.CORSUtils;
+
+public class RenderCacheHandler {
+
+  /**
+   * 渲染缓存命中统计，manim 为 partial movie 缓存
+   */
+  public HttpResponse stats(HttpRequest request) {
+    HttpResponse response = TioRequestContext.getResponse();
+    CORSUtils.enableCORS(response);
+    Kv stats = Aop.get(RenderCacheService.class).stats();
+    stats.set("manim", Aop.get(ManimCacheService.class).stats());
+    return response.setJson(RespBodyVo.ok(stats));
+  }
+}
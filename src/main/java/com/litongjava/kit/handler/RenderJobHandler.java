@@ -0,0 +1,55 @@
+package com.litongjava.kit.handler;
+
+import com.litongjava.db.activerecord.Row;
+import com.litongjava.jfinal.aop.Aop;
+import com.litongjava.kit.service.RenderJobService;
+import com.litongjava.model.body.RespBodyVo;
+import com.litongjava.tio.boot.http.TioRequestContext;
+import com.litongjava.tio.http.common.HttpRequest;
+import com.litongjava.tio.http.common.HttpResponse;
+import com.litongjava.tio.http.server.util.CORSUtils;
+
+public class RenderJobHandler {
+
+  private static final long MAX_WAIT_MILLIS = 60 * 1000L;
+
+  private RenderJobService renderJobService = Aop.get(RenderJobService.class);
+
+  /**
+   * 接口：GET /manim/result?code_id=&wait=30
+   * 查询 /manim/run?async=true 提交的任务，wait 为秒，任务未结束时最多等待 wait 秒后返回当前状态
+   */
+  public HttpResponse result(HttpRequest request) {
+    HttpResponse response = TioRequestContext.getResponse();
+    CORSUtils.enableCORS(response);
+
+    Long codeId = request.getLong("code_id");
+    if (codeId == null) {
+      return response.setJson(RespBodyVo.fail("code_id is required"));
+    }
+    Integer wait = request.getInt("wait");
+    long waitMillis = wait == null ? 0 : Math.min(wait * 1000L, MAX_WAIT_MILLIS);
+    Row job;
+    try {
+      job = renderJobService.await(codeId, waitMillis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      job = renderJobService.findById(codeId);
+    }
+    if (job == null) {
+      response.setStatus(404);
+      return response.setJson(RespBodyVo.fail("render job not found"));
+    }
+    return response.setJson(RespBodyVo.ok(RenderJobService.toKv(job)));
+  }
+
+  /**
+   * 接口：GET /manim/result/stats
+   * 各状态的任务数
+   */
+  public HttpResponse stats(HttpRequest request) {
+    HttpResponse response = TioRequestContext.getResponse();
+    CORSUtils.enableCORS(response);
+    return response.setJson(RespBodyVo.ok(renderJobService.stats()));
+  }
+}
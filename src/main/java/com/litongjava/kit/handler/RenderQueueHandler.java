@@ -0,0 +1,21 @@
+package com.litongjava.kit.handler;
+
+import com.litongjava.jfinal.aop.Aop;
+import com.litongjava.kit.service.RenderScheduler;
+import com.litongjava.model.body.RespBodyVo;
+import com.litongjava.tio.boot.http.TioRequestContext;
+import com.litongjava.tio.http.common.HttpRequest;
+import com.litongjava.tio.http.common.HttpResponse;
+import com.litongjava.tio.http.server.util.CORSUtils;
+
+public class RenderQueueHandler {
+
+  /**
+   * 渲染队列深度、运行数和排队时间直方图
+   */
+  public HttpResponse stats(HttpRequest request) {
+    HttpResponse response = TioRequestContext.getResponse();
+    CORSUtils.enableCORS(response);
+    return response.setJson(RespBodyVo.ok(Aop.get(RenderScheduler.class).stats()));
+  }
+}
@@ -0,0 +1,54 @@
+package com.litongjava.kit.handler;
+
+import com.jfinal.kit.Kv;
+import com.litongjava.jfinal.aop.Aop;
+import com.litongjava.kit.service.ManimUpgradeService;
+import com.litongjava.kit.service.RenderTaskService;
+import com.litongjava.kit.service.RenderTaskService.RenderTask;
+import com.litongjava.kit.vo.RenderUpgrade;
+import com.litongjava.model.body.RespBodyVo;
+import com.litongjava.tio.boot.http.TioRequestContext;
+import com.litongjava.tio.http.common.HttpRequest;
+import com.litongjava.tio.http.common.HttpResponse;
+import com.litongjava.tio.http.server.util.CORSUtils;
+
+public class RenderTaskHandler {
+
+  private RenderTaskService renderTaskService = Aop.get(RenderTaskService.class);
+  private ManimUpgradeService upgradeService = Aop.get(ManimUpgradeService.class);
+
+  /**
+   * 接口：GET /render/cancel?code_id=&reason=
+   * 杀掉正在执行的渲染进程，同时取消该 code_id 的后台画质升级
+   */
+  public HttpResponse cancel(HttpRequest request) {
+    HttpResponse response = TioRequestContext.getResponse();
+    CORSUtils.enableCORS(response);
+
+    Long codeId = request.getLong("code_id");
+    if (codeId == null) {
+      return response.setJson(RespBodyVo.fail("code_id is required"));
+    }
+    String reason = request.getParam("reason");
+    if (reason == null) {
+      reason = "cancelled by user";
+    }
+    RenderTask task = renderTaskService.cancel(String.valueOf(codeId), reason);
+    RenderUpgrade upgrade = upgradeService.cancel(codeId, reason);
+    if (task == null && upgrade == null) {
+      response.setStatus(404);
+      return response.setJson(RespBodyVo.fail("render not found"));
+    }
+    Kv kv = Kv.by("code_id", codeId).set("reason", reason).set("render", task != null).set("upgrade", upgrade);
+    return response.setJson(RespBodyVo.ok(kv));
+  }
+
+  /**
+   * 正在执行的渲染请求和最近的取消记录
+   */
+  public HttpResponse tasks(HttpRequest request) {
+    HttpResponse response = TioRequestContext.getResponse();
+    CORSUtils.enableCORS(response);
+    return response.setJson(RespBodyVo.ok(renderTaskService.stats()));
+  }
+}
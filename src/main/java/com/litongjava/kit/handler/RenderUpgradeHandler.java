@@ -0,0 +1,65 @@
+package com.litongjava.kit.handler;
+
+import com.litongjava.jfinal.aop.Aop;
+import com.litongjava.kit.service.ManimUpgradeService;
+import com.litongjava.kit.vo.RenderUpgrade;
+import com.litongjava.model.body.RespBodyVo;
+import com.litongjava.tio.boot.http.TioRequestContext;
+import com.litongjava.tio.http.common.HttpRequest;
+import com.litongjava.tio.http.common.HttpResponse;
+import com.litongjava.tio.http.server.util.CORSUtils;
+
+public class RenderUpgradeHandler {
+
+  // 长轮询最长等待时间
+  private static final long MAX_WAIT_MILLIS = 60 * 1000L;
+
+  private ManimUpgradeService upgradeService = Aop.get(ManimUpgradeService.class);
+
+  /**
+   * 接口：GET /manim/upgrade/status?code_id=&wait=30
+   * wait 为秒，升级未结束时最多等待 wait 秒后返回当前状态
+   */
+  public HttpResponse status(HttpRequest request) {
+    HttpResponse response = TioRequestContext.getResponse();
+    CORSUtils.enableCORS(response);
+
+    Long codeId = request.getLong("code_id");
+    if (codeId == null) {
+      return response.setJson(RespBodyVo.fail("code_id is required"));
+    }
+    Integer wait = request.getInt("wait");
+    long waitMillis = wait == null ? 0 : Math.min(wait * 1000L, MAX_WAIT_MILLIS);
+    RenderUpgrade upgrade;
+    try {
+      upgrade = upgradeService.await(codeId, waitMillis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      upgrade = upgradeService.get(codeId);
+    }
+    if (upgrade == null) {
+      response.setStatus(404);
+      return response.setJson(RespBodyVo.fail("upgrade not found"));
+    }
+    return response.setJson(RespBodyVo.ok(upgrade));
+  }
+
+  /**
+   * 接口：GET /manim/upgrade/cancel?code_id=
+   */
+  public HttpResponse cancel(HttpRequest request) {
+    HttpResponse response = TioRequestContext.getResponse();
+    CORSUtils.enableCORS(response);
+
+    Long codeId = request.getLong("code_id");
+    if (codeId == null) {
+      return response.setJson(RespBodyVo.fail("code_id is required"));
+    }
+    RenderUpgrade upgrade = upgradeService.cancel(codeId, "cancelled by user");
+    if (upgrade == null) {
+      response.setStatus(404);
+      return response.setJson(RespBodyVo.fail("upgrade not found"));
+    }
+    return response.setJson(RespBodyVo.ok(upgrade));
+  }
+}
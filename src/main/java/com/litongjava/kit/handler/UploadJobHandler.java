@@ -0,0 +1,50 @@
+package com.litongjava.kit.handler;
+
+import com.litongjava.db.activerecord.Row;
+import com.litongjava.jfinal.aop.Aop;
+import com.litongjava.kit.service.UploadJobService;
+import com.litongjava.model.body.RespBodyVo;
+import com.litongjava.tio.boot.http.TioRequestContext;
+import com.litongjava.tio.http.common.HttpRequest;
+import com.litongjava.tio.http.common.HttpResponse;
+import com.litongjava.tio.http.server.util.CORSUtils;
+
+public class UploadJobHandler {
+
+  private UploadJobService uploadJobService = Aop.get(UploadJobService.class);
+
+  /**
+   * 接口：GET /upload/status?biz_id= 或 ?id=
+   * biz_id 为 code_id(单个场景) 或 session_id(合并后的视频)
+   */
+  public HttpResponse status(HttpRequest request) {
+    HttpResponse response = TioRequestContext.getResponse();
+    CORSUtils.enableCORS(response);
+
+    Long id = request.getLong("id");
+    if (id != null) {
+      Row job = uploadJobService.findById(id);
+      if (job == null) {
+        response.setStatus(404);
+        return response.setJson(RespBodyVo.fail("upload job not found"));
+      }
+      return response.setJson(RespBodyVo.ok(UploadJobService.toKv(job)));
+    }
+
+    String bizId = request.getParam("biz_id");
+    if (bizId == null) {
+      return response.setJson(RespBodyVo.fail("id or biz_id is required"));
+    }
+    return response.setJson(RespBodyVo.ok(uploadJobService.status(bizId)));
+  }
+
+  /**
+   * 接口：GET /upload/stats
+   * 各状态的任务数
+   */
+  public HttpResponse stats(HttpRequest request) {
+    HttpResponse response = TioRequestContext.getResponse();
+    CORSUtils.enableCORS(response);
+    return response.setJson(RespBodyVo.ok(uploadJobService.stats()));
+  }
+}
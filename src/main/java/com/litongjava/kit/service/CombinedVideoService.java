@@ -0,0 +1,272 @@
+package com.litongjava.kit.service;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+
+import com.alibaba.fastjson2.JSON;
+import com.google.common.util.concurrent.Striped;
+import com.litongjava.kit.utils.FfmpegUtils;
+import com.litongjava.kit.utils.FolderUtils;
+import com.litongjava.kit.vo.CombinedPart;
+import com.litongjava.media.NativeMedia;
+import com.litongjava.tio.utils.commandline.ProcessResult;
+import com.litongjava.tio.utils.environment.EnvUtils;
+import com.litongjava.tio.utils.hutool.FileUtil;
+import com.litongjava.tio.utils.json.JsonUtils;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 增量维护会话的合并视频，避免 finish 时重新合并所有场景
+ *
+ * 每个场景落地后不重新编码转为 ts(时间戳按前面场景的总时长偏移)，按文件名顺序按字节拼接到 combined.ts；
+ * 追加到末尾只需要写入新场景，重新渲染或插入到中间时只重新封装后面的场景。finish 时只需要把 combined.ts 封装为 mp4。
+ * 场景的音视频参数不一致时无法直接拼接，finish 回退到 NativeMedia.merge。
+ *
+ * <pre>
+ * combined.incremental.enable=true
+ * </pre>
+ */
+@Slf4j
+public class CombinedVideoService {
+
+  public static final String PARTS_FOLDER = "parts";
+  public static final String INDEX_FILENAME = "index.json";
+  public static final String COMBINED_TS = "combined.ts";
+
+  private static final Striped<Lock> locks = Striped.lock(256);
+
+  public boolean isEnabled() {
+    return EnvUtils.getBoolean("combined.incremental.enable", true);
+  }
+
+  /**
+   * 场景视频写入 data/scenes/{sessionId} 后调用，同名场景会替换原来的位置
+   */
+  public void addScene(Long sessionId, File scene) {
+    if (!isEnabled()) {
+      return;
+    }
+    Lock lock = locks.get(sessionId);
+    lock.lock();
+    try {
+      List<CombinedPart> parts = loadIndex(sessionId);
+      int size = parts.size();
+      int from = upsert(parts, scene);
+      // 只有新场景插入到末尾时才能直接追加，替换最后一个场景时旧的字节还在 combined.ts 中
+      boolean append = parts.size() > size && from == parts.size() - 1;
+      rebuild(sessionId, parts, from, append);
+    } catch (Exception e) {
+      // 索引删除后 finish 时会从头重建
+      log.error("Failed to add scene {} to combined video {}: {}", scene.getName(), sessionId, e.getMessage(), e);
+      FolderUtils.delete(partsFolder(sessionId));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * 把 combined.ts 封装为 mp4
+   *
+   * @param mp4Files 场景目录下的所有 mp4
+   * @return 失败或参数不一致返回 false，由调用方回退到 NativeMedia.merge
+   */
+  public boolean finish(Long sessionId, File[] mp4Files, String outputMp4Path) {
+    Lock lock = locks.get(sessionId);
+    lock.lock();
+    try {
+      File combinedTs = prepare(sessionId, mp4Files);
+      if (combinedTs == null) {
+        return false;
+      }
+      ProcessResult result = FfmpegUtils.tsToMp4(combinedTs.getPath(), outputMp4Path);
+      if (result.getExitCode() != 0) {
+        log.error("Failed to finalize combined video {}: {}", sessionId, result.getStdErr());
+        return false;
+      }
+      return true;
+    } catch (Exception e) {
+      log.error("Failed to finalize combined video {}: {}", sessionId, e.getMessage(), e);
+      return false;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * 与场景目录对齐(补上缺失的场景，删除已不存在的场景)后返回可以直接使用的 combined.ts
+   *
+   * @return 未开启或场景参数不一致时返回 null
+   */
+  public File prepare(Long sessionId, File[] mp4Files) throws IOException, InterruptedException {
+    if (!isEnabled() || mp4Files == null || mp4Files.length == 0) {
+      return null;
+    }
+    Lock lock = locks.get(sessionId);
+    lock.lock();
+    try {
+      List<CombinedPart> parts = loadIndex(sessionId);
+      int from = reconcile(parts, mp4Files);
+      if (from < parts.size()) {
+        log.info("combined video {} out of date from part {}", sessionId, from);
+        rebuild(sessionId, parts, from, false);
+      }
+
+      String signature = parts.get(0).getSignature();
+      for (CombinedPart part : parts) {
+        if (signature == null || !signature.equals(part.getSignature())) {
+          log.info("stream signature mismatch in {}:{}", sessionId, part.getName());
+          return null;
+        }
+      }
+      return new File(FolderUtils.combined(sessionId), COMBINED_TS);
+    } catch (IOException | InterruptedException e) {
+      // 索引删除后下次从头重建
+      FolderUtils.delete(partsFolder(sessionId));
+      throw e;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * combined.ts 的总时长(秒)，需要先调用 {@link #prepare(Long, File[])}
+   */
+  public double duration(Long sessionId) {
+    double duration = 0;
+    for (CombinedPart part : loadIndex(sessionId)) {
+      duration += part.getDuration();
+    }
+    return duration;
+  }
+
+  /**
+   * 插入或替换场景，返回需要重新生成的第一个位置
+   */
+  private int upsert(List<CombinedPart> parts, File scene) throws IOException, InterruptedException {
+    CombinedPart part = probe(scene);
+    for (int i = 0; i < parts.size(); i++) {
+      int cmp = parts.get(i).getName().compareTo(part.getName());
+      if (cmp == 0) {
+        parts.set(i, part);
+        return i;
+      }
+      if (cmp > 0) {
+        parts.add(i, part);
+        return i;
+      }
+    }
+    parts.add(part);
+    return parts.size() - 1;
+  }
+
+  /**
+   * 与场景目录对齐，返回需要重新生成的第一个位置，无需更新时返回 parts.size()
+   */
+  private int reconcile(List<CombinedPart> parts, File[] mp4Files) throws IOException, InterruptedException {
+    File[] sorted = mp4Files.clone();
+    Arrays.sort(sorted, Comparator.comparing(File::getName));
+    int from = Integer.MAX_VALUE;
+    List<CombinedPart> result = new ArrayList<>(sorted.length);
+    for (int i = 0; i < sorted.length; i++) {
+      File file = sorted[i];
+      CombinedPart existing = i < parts.size() ? parts.get(i) : null;
+      boolean same = existing != null && existing.getName().equals(file.getName())
+          && existing.getSize() == file.length() && existing.getLastModified() == file.lastModified();
+      if (same) {
+        result.add(existing);
+      } else {
+        result.add(probe(file));
+        from = Math.min(from, i);
+      }
+    }
+    if (parts.size() != sorted.length) {
+      from = Math.min(from, sorted.length);
+    }
+    parts.clear();
+    parts.addAll(result);
+    return Math.min(from, parts.size());
+  }
+
+  private CombinedPart probe(File scene) throws IOException, InterruptedException {
+    CombinedPart part = new CombinedPart();
+    part.setName(scene.getName()).setSize(scene.length()).setLastModified(scene.lastModified());
+    part.setDuration(NativeMedia.getVideoLength(scene.getAbsolutePath()));
+    part.setSignature(FfmpegUtils.streamSignature(scene));
+    return part;
+  }
+
+  /**
+   * 从 from 开始重新生成 ts 并写入 combined.ts
+   *
+   * @param append from 是新插入到末尾的场景，直接把它的字节追加到 combined.ts，否则按所有场景重写 combined.ts
+   */
+  private void rebuild(Long sessionId, List<CombinedPart> parts, int from, boolean append)
+      throws IOException, InterruptedException {
+    File partsFolder = partsFolder(sessionId);
+    if (!partsFolder.exists()) {
+      partsFolder.mkdirs();
+    }
+    String scenesDir = FolderUtils.scenes(sessionId);
+
+    double offset = 0;
+    for (int i = 0; i < parts.size(); i++) {
+      CombinedPart part = parts.get(i);
+      if (i >= from) {
+        part.setOffset(offset);
+        File ts = new File(partsFolder, part.getName() + ".ts");
+        File tmp = new File(partsFolder, part.getName() + ".ts.tmp");
+        String scene = scenesDir + File.separator + part.getName();
+        ProcessResult result = FfmpegUtils.mp4ToTs(scene, tmp.getPath(), offset);
+        if (result.getExitCode() != 0) {
+          throw new IOException("Failed to remux " + scene + ": " + result.getStdErr());
+        }
+        Files.move(tmp.toPath(), ts.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      }
+      offset += part.getDuration();
+    }
+
+    File combinedTs = new File(FolderUtils.combined(sessionId), COMBINED_TS);
+    if (append && from > 0 && combinedTs.exists()) {
+      try (OutputStream out = new FileOutputStream(combinedTs, true)) {
+        Files.copy(new File(partsFolder, parts.get(from).getName() + ".ts").toPath(), out);
+      }
+    } else {
+      File tmp = new File(combinedTs.getPath() + ".tmp");
+      try (OutputStream out = new FileOutputStream(tmp)) {
+        for (CombinedPart part : parts) {
+          Files.copy(new File(partsFolder, part.getName() + ".ts").toPath(), out);
+        }
+      }
+      Files.move(tmp.toPath(), combinedTs.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    }
+    saveIndex(sessionId, parts);
+    log.info("combined video {} updated from part {}, parts:{}, duration:{}", sessionId, from, parts.size(), offset);
+  }
+
+  private File partsFolder(Long sessionId) {
+    return new File(FolderUtils.combined(sessionId), PARTS_FOLDER);
+  }
+
+  private List<CombinedPart> loadIndex(Long sessionId) {
+    File index = new File(partsFolder(sessionId), INDEX_FILENAME);
+    if (!index.exists()) {
+      return new ArrayList<>();
+    }
+    return new ArrayList<>(JSON.parseArray(FileUtil.readString(index), CombinedPart.class));
+  }
+
+  private void saveIndex(Long sessionId, List<CombinedPart> parts) {
+    FileUtil.writeString(JsonUtils.toJson(parts), new File(partsFolder(sessionId), INDEX_FILENAME));
+  }
+}
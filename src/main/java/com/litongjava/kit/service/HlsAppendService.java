@@ -0,0 +1,262 @@
+package com.litongjava.kit.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.litongjava.jfinal.aop.Aop;
+import com.litongjava.tio.utils.environment.EnvUtils;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 每个 HLS 会话一个追加队列，只有一个消费线程调用 native 追加，请求线程只提交和等待
+ *
+ * 请求到达时按 seq 预留位置，场景渲染完成后提交视频。带 seq 的场景要等所有更小 seq 的场景追加、失败或取消后才追加，
+ * 因此并行渲染、先后完成的场景仍按脚本顺序进入直播流。预留超过 gap 仍未完成的场景不再等待，之后完成时追加到末尾。
+ * 没有 seq 的场景按完成顺序追加。
+ *
+ * <pre>
+ * hls.append.gap.ms=900000
+ * hls.append.wait.ms=5000
+ * </pre>
+ */
+@Slf4j
+public class HlsAppendService {
+
+  private final HlsSessionService hlsSessionService = Aop.get(HlsSessionService.class);
+  private final Map<Long, SessionQueue> queues = new ConcurrentHashMap<>();
+
+  private final AtomicLong appended = new AtomicLong();
+  private final AtomicLong outOfOrder = new AtomicLong();
+  private final AtomicLong gapSkipped = new AtomicLong();
+
+  /**
+   * 请求到达时预留追加位置，渲染结束后必须调用 submit 或 release
+   */
+  public AppendSlot reserve(Long sessionId, Integer seq) {
+    while (true) {
+      SessionQueue queue = queues.computeIfAbsent(sessionId, SessionQueue::new);
+      queue.lock.lock();
+      try {
+        if (queue.removed) {
+          // 消费线程刚好退出并删除了队列
+          continue;
+        }
+        AppendSlot slot = new AppendSlot(queue, seq);
+        queue.slots.add(slot);
+        return slot;
+      } finally {
+        queue.lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * 提交渲染好的视频，返回追加结果，会话已经结束时结果为 null
+   */
+  public CompletableFuture<String> submit(AppendSlot slot, String videoFilePath) {
+    SessionQueue queue = slot.queue;
+    queue.lock.lock();
+    try {
+      if (slot.videoFilePath == null && !slot.released) {
+        slot.videoFilePath = videoFilePath;
+        wakeUp(queue);
+      }
+    } finally {
+      queue.lock.unlock();
+    }
+    return slot.result;
+  }
+
+  /**
+   * 渲染失败或取消时释放位置，后面的场景不再等待它。已经提交的位置不受影响
+   */
+  public void release(AppendSlot slot) {
+    if (slot == null) {
+      return;
+    }
+    SessionQueue queue = slot.queue;
+    queue.lock.lock();
+    try {
+      if (slot.videoFilePath == null && !slot.released) {
+        slot.released = true;
+        queue.slots.remove(slot);
+        slot.result.complete(null);
+        wakeUp(queue);
+      }
+    } finally {
+      queue.lock.unlock();
+    }
+  }
+
+  public long getWaitMillis() {
+    return EnvUtils.getLong("hls.append.wait.ms", 5000L);
+  }
+
+  private void wakeUp(SessionQueue queue) {
+    queue.changed.signalAll();
+    if (!queue.consuming) {
+      queue.consuming = true;
+      Thread.ofVirtual().name("hls-append-" + queue.sessionId).start(() -> consume(queue));
+    }
+  }
+
+  private void consume(SessionQueue queue) {
+    while (true) {
+      AppendSlot slot;
+      queue.lock.lock();
+      try {
+        slot = next(queue);
+        while (slot == null) {
+          if (queue.waitingUntil() < 0) {
+            // 没有可以追加的视频
+            queue.consuming = false;
+            if (queue.slots.isEmpty()) {
+              queue.removed = true;
+              queues.remove(queue.sessionId, queue);
+            }
+            return;
+          }
+          long waitMillis = Math.max(queue.waitingUntil() - System.currentTimeMillis(), 1);
+          queue.changed.await(waitMillis, TimeUnit.MILLISECONDS);
+          slot = next(queue);
+        }
+        queue.slots.remove(slot);
+      } catch (InterruptedException e) {
+        queue.consuming = false;
+        return;
+      } finally {
+        queue.lock.unlock();
+      }
+
+      try {
+        if (slot.seq != null && queue.lastSeq != null && slot.seq < queue.lastSeq) {
+          outOfOrder.incrementAndGet();
+          log.warn("hls append out of order:{},seq:{},last:{}", queue.sessionId, slot.seq, queue.lastSeq);
+        }
+        String message = hlsSessionService.append(queue.sessionId, slot.videoFilePath);
+        if (slot.seq != null) {
+          queue.lastSeq = slot.seq;
+        }
+        appended.incrementAndGet();
+        slot.result.complete(message);
+      } catch (Exception e) {
+        log.error("hls append failed:{},{}", queue.sessionId, e.getMessage(), e);
+        slot.result.completeExceptionally(e);
+      }
+    }
+  }
+
+  /**
+   * 下一个可以追加的视频：没有 seq 的直接追加；有 seq 的要求没有更小 seq 的位置仍在渲染，超过 gap 的不再等待
+   */
+  private AppendSlot next(SessionQueue queue) {
+    long gapMillis = EnvUtils.getLong("hls.append.gap.ms", 900000L);
+    long now = System.currentTimeMillis();
+    AppendSlot best = null;
+    for (AppendSlot slot : queue.slots) {
+      if (slot.videoFilePath == null) {
+        continue;
+      }
+      if (slot.seq == null) {
+        return slot;
+      }
+      if (best != null && best.seq <= slot.seq) {
+        continue;
+      }
+      boolean blocked = false;
+      for (AppendSlot other : queue.slots) {
+        if (other.videoFilePath == null && other.seq != null && other.seq < slot.seq) {
+          if (now - other.reserveTime < gapMillis) {
+            blocked = true;
+            break;
+          }
+          if (!other.gapSkipped) {
+            other.gapSkipped = true;
+            gapSkipped.incrementAndGet();
+            log.warn("hls append gap timeout:{},seq:{}", queue.sessionId, other.seq);
+          }
+        }
+      }
+      if (!blocked) {
+        best = slot;
+      }
+    }
+    return best;
+  }
+
+  public void export(StringBuilder out) {
+    int depth = 0;
+    for (SessionQueue queue : queues.values()) {
+      depth += queue.slots.size();
+    }
+    out.append("# HELP manim_hls_append_queue_depth Scenes reserved or waiting to be appended to a live playlist\n");
+    out.append("# TYPE manim_hls_append_queue_depth gauge\n");
+    out.append("manim_hls_append_queue_depth ").append(depth).append('\n');
+    out.append("# HELP manim_hls_append_total Scenes appended to a live playlist\n");
+    out.append("# TYPE manim_hls_append_total counter\n");
+    out.append("manim_hls_append_total{result=\"ok\"} ").append(appended.get()).append('\n');
+    out.append("manim_hls_append_total{result=\"out_of_order\"} ").append(outOfOrder.get()).append('\n');
+    out.append("manim_hls_append_total{result=\"gap_timeout\"} ").append(gapSkipped.get()).append('\n');
+  }
+
+  private static class SessionQueue {
+    private final Long sessionId;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final List<AppendSlot> slots = new ArrayList<>();
+    private boolean consuming;
+    private boolean removed;
+    private volatile Integer lastSeq;
+
+    private SessionQueue(Long sessionId) {
+      this.sessionId = sessionId;
+    }
+
+    /**
+     * 有已提交的视频在等待更小的 seq 时，返回最早的 gap 到期时间，没有等待中的视频返回 -1
+     */
+    private long waitingUntil() {
+      boolean ready = false;
+      long until = Long.MAX_VALUE;
+      long gapMillis = EnvUtils.getLong("hls.append.gap.ms", 900000L);
+      for (AppendSlot slot : slots) {
+        if (slot.videoFilePath != null) {
+          ready = true;
+        } else if (slot.seq != null && !slot.gapSkipped) {
+          until = Math.min(until, slot.reserveTime + gapMillis);
+        }
+      }
+      if (!ready) {
+        return -1;
+      }
+      return until == Long.MAX_VALUE ? System.currentTimeMillis() + gapMillis : until;
+    }
+  }
+
+  public static class AppendSlot {
+    private final SessionQueue queue;
+    private final Integer seq;
+    private final long reserveTime = System.currentTimeMillis();
+    private final CompletableFuture<String> result = new CompletableFuture<>();
+    private String videoFilePath;
+    private boolean released;
+    private boolean gapSkipped;
+
+    private AppendSlot(SessionQueue queue, Integer seq) {
+      this.queue = queue;
+      this.seq = seq;
+    }
+
+    public Integer getSeq() {
+      return seq;
+    }
+  }
+}
@@ -0,0 +1,260 @@
+package com.litongjava.kit.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.litongjava.tio.utils.environment.EnvUtils;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 直播分片的堆外 LRU 缓存，课堂上几十个观众在几秒内请求同一批 c_%03d.ts，只读一次磁盘
+ *
+ * 分片追加后由 HlsSessionService 直接放入缓存，没有预热的分片在第一次读取时放入。分片内容保存在 direct buffer 中，
+ * 不占用堆，也不增加 GC 压力。每次读取时比较文件长度和修改时间，文件被替换或删除后缓存失效。
+ * tio 的响应体是 byte[]，返回时从 direct buffer 复制一次到堆上，不再有磁盘读取和中间缓冲。
+ *
+ * <pre>
+ * hls.segment.cache.bytes=268435456
+ * hls.segment.cache.max.entry.bytes=16777216
+ * </pre>
+ */
+@Slf4j
+public class HlsSegmentCache {
+
+  // 按访问顺序排列，第一个是最久没有使用的
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+  private long bytes;
+  // 正在读取的分片，同时到达的请求只读一次磁盘
+  private final Map<String, CompletableFuture<Entry>> loading = new HashMap<>();
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong servedFromCache = new AtomicLong();
+  private final AtomicLong servedFromDisk = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong invalidations = new AtomicLong();
+  private final AtomicLong warmed = new AtomicLong();
+
+  /**
+   * 读取整个分片，优先从缓存读取
+   *
+   * @return 文件不存在时返回 null
+   */
+  public byte[] read(File file) throws IOException {
+    if (!file.exists()) {
+      return null;
+    }
+    return read(file, 0, (int) file.length());
+  }
+
+  /**
+   * 读取分片的一部分，优先从缓存读取，用于 LL-HLS 的部分分片
+   */
+  public byte[] read(File file, int offset, int length) throws IOException {
+    Entry entry = entry(file, true);
+    byte[] data = new byte[length];
+    if (entry != null && offset + length <= entry.length) {
+      entry.buffer.get(offset, data, 0, length);
+      servedFromCache.addAndGet(length);
+      return data;
+    }
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      ByteBuffer buffer = ByteBuffer.wrap(data);
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer, offset + buffer.position()) < 0) {
+          throw new IOException("unexpected end of file:" + file);
+        }
+      }
+    }
+    servedFromDisk.addAndGet(length);
+    return data;
+  }
+
+  /**
+   * 分片刚写完时放入缓存，观众的第一次请求也不读磁盘
+   */
+  public void warm(File file) {
+    try {
+      if (file.exists() && entry(file, false) != null) {
+        warmed.incrementAndGet();
+      }
+    } catch (IOException e) {
+      log.warn("warm hls segment {} failed:{}", file, e.getMessage());
+    }
+  }
+
+  /**
+   * 删除文件已经不存在或者被替换的缓存
+   */
+  public void purge() {
+    synchronized (this) {
+      Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+      while (iterator.hasNext()) {
+        Map.Entry<String, Entry> next = iterator.next();
+        File file = new File(next.getKey());
+        if (!next.getValue().matches(file)) {
+          iterator.remove();
+          bytes -= next.getValue().length;
+          invalidations.incrementAndGet();
+        }
+      }
+    }
+  }
+
+  /**
+   * @return 文件超过单个分片的上限或者缓存被关闭时返回 null
+   */
+  private Entry entry(File file, boolean count) throws IOException {
+    String key = key(file);
+    long length = file.length();
+    long lastModified = file.lastModified();
+    CompletableFuture<Entry> load;
+    CompletableFuture<Entry> pending;
+    synchronized (this) {
+      Entry entry = entries.get(key);
+      if (entry != null) {
+        if (entry.length == length && entry.lastModified == lastModified) {
+          if (count) {
+            hits.incrementAndGet();
+          }
+          return entry;
+        }
+        // 文件被替换
+        entries.remove(key);
+        bytes -= entry.length;
+        invalidations.incrementAndGet();
+      }
+      pending = loading.get(key);
+      load = pending == null ? new CompletableFuture<>() : null;
+      if (load != null) {
+        loading.put(key, load);
+      }
+    }
+    if (pending != null) {
+      // 等其他请求读完，不计为未命中
+      Entry entry = pending.join();
+      if (entry != null && entry.length == length && entry.lastModified == lastModified) {
+        if (count) {
+          hits.incrementAndGet();
+        }
+        return entry;
+      }
+      return null;
+    }
+    if (count) {
+      misses.incrementAndGet();
+    }
+    Entry entry = null;
+    try {
+      entry = load(key, file, length, lastModified);
+      return entry;
+    } finally {
+      synchronized (this) {
+        loading.remove(key, load);
+      }
+      load.complete(entry);
+    }
+  }
+
+  private Entry load(String key, File file, long length, long lastModified) throws IOException {
+    long budget = EnvUtils.getLong("hls.segment.cache.bytes", 256L * 1024 * 1024);
+    long maxEntry = EnvUtils.getLong("hls.segment.cache.max.entry.bytes", 16L * 1024 * 1024);
+    if (length == 0 || length > maxEntry || length > budget) {
+      return null;
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocateDirect((int) length);
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer, buffer.position()) < 0) {
+          // 读的过程中文件被截断
+          return null;
+        }
+      }
+    }
+    if (file.length() != length || file.lastModified() != lastModified) {
+      // 读的过程中文件被替换
+      return null;
+    }
+    buffer.flip();
+    Entry entry = new Entry(buffer.asReadOnlyBuffer(), (int) length, lastModified);
+
+    synchronized (this) {
+      Entry previous = entries.put(key, entry);
+      if (previous != null) {
+        bytes -= previous.length;
+      }
+      bytes += entry.length;
+      Iterator<Entry> iterator = entries.values().iterator();
+      while (bytes > budget && iterator.hasNext()) {
+        Entry eldest = iterator.next();
+        if (eldest == entry) {
+          continue;
+        }
+        // direct buffer 在没有引用后由 GC 释放
+        iterator.remove();
+        bytes -= eldest.length;
+        evictions.incrementAndGet();
+      }
+    }
+    return entry;
+  }
+
+  private static String key(File file) {
+    return file.toPath().toAbsolutePath().normalize().toString();
+  }
+
+  public void export(StringBuilder out) {
+    int size;
+    long used;
+    synchronized (this) {
+      size = entries.size();
+      used = bytes;
+    }
+    out.append("# HELP manim_hls_segment_cache_bytes Bytes of HLS segments held off-heap\n");
+    out.append("# TYPE manim_hls_segment_cache_bytes gauge\n");
+    out.append("manim_hls_segment_cache_bytes ").append(used).append('\n');
+    out.append("# HELP manim_hls_segment_cache_entries HLS segments held off-heap\n");
+    out.append("# TYPE manim_hls_segment_cache_entries gauge\n");
+    out.append("manim_hls_segment_cache_entries ").append(size).append('\n');
+    out.append("# HELP manim_hls_segment_cache_requests_total HLS segment reads by cache result\n");
+    out.append("# TYPE manim_hls_segment_cache_requests_total counter\n");
+    out.append("manim_hls_segment_cache_requests_total{result=\"hit\"} ").append(hits.get()).append('\n');
+    out.append("manim_hls_segment_cache_requests_total{result=\"miss\"} ").append(misses.get()).append('\n');
+    out.append("# HELP manim_hls_segment_served_bytes_total HLS segment bytes served by source\n");
+    out.append("# TYPE manim_hls_segment_served_bytes_total counter\n");
+    out.append("manim_hls_segment_served_bytes_total{source=\"cache\"} ").append(servedFromCache.get()).append('\n');
+    out.append("manim_hls_segment_served_bytes_total{source=\"disk\"} ").append(servedFromDisk.get()).append('\n');
+    out.append("# HELP manim_hls_segment_cache_events_total HLS segment cache fills and removals\n");
+    out.append("# TYPE manim_hls_segment_cache_events_total counter\n");
+    out.append("manim_hls_segment_cache_events_total{event=\"warm\"} ").append(warmed.get()).append('\n');
+    out.append("manim_hls_segment_cache_events_total{event=\"evict\"} ").append(evictions.get()).append('\n');
+    out.append("manim_hls_segment_cache_events_total{event=\"invalidate\"} ").append(invalidations.get()).append('\n');
+  }
+
+  private static class Entry {
+    private final ByteBuffer buffer;
+    private final int length;
+    private final long lastModified;
+
+    private Entry(ByteBuffer buffer, int length, long lastModified) {
+      this.buffer = buffer;
+      this.length = length;
+      this.lastModified = lastModified;
+    }
+
+    private boolean matches(File file) {
+      return file.exists() && file.length() == length && file.lastModified() == lastModified;
+    }
+  }
+}
@@ -1,44 +1,447 @@
 package com.litongjava.kit.service;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import com.litongjava.db.activerecord.Db;
+import com.litongjava.db.activerecord.Row;
+import com.litongjava.jfinal.aop.Aop;
 import com.litongjava.kit.store.HlsSessionStore;
+import com.litongjava.kit.utils.FolderUtils;
 import com.litongjava.kit.vo.HlsSession;
 import com.litongjava.media.NativeMedia;
+import com.litongjava.tio.utils.environment.EnvUtils;
+import com.litongjava.tio.utils.hutool.FileUtil;
 
 import lombok.extern.slf4j.Slf4j;
 
+/**
+ * 持久化 HLS 会话，native 句柄只在内存中，会话参数保存在 sqlite 的 hls_session 表中
+ *
+ * 重启或者 fly 自动停机后，第一次使用会话时按磁盘上的 main.m3u8 重新创建 native 句柄，从下一个分片编号继续追加。
+ * 重新创建的句柄不知道之前的分片，追加后如果播放列表丢失了之前的分片，补回并插入 EXT-X-DISCONTINUITY。
+ *
+ * 客户端放弃的会话不会调用 /manim/finish，后台定时回收：空闲超过 idle 的句柄结束后释放，会话仍然是 open，
+ * 下次使用时重新恢复；同时打开的句柄超过上限时按最近使用时间回收；超过 expire 没有使用的会话直接结束。
+ *
+ * <pre>
+ * hls.session.idle.ms=600000
+ * hls.session.max.open=32
+ * hls.session.expire.hours=24
+ * hls.session.reap.interval.ms=60000
+ * hls.session.native.bytes=4194304
+ * </pre>
+ */
 @Slf4j
 public class HlsSessionService {
 
+  public static final String TABLE_NAME = "hls_session";
+  public static final String STATUS_OPEN = "open";
+  public static final String STATUS_FINISHED = "finished";
+
+  private static final String EXTINF = "#EXTINF";
+  private static final String ENDLIST = "#EXT-X-ENDLIST";
+  private static final String DISCONTINUITY = "#EXT-X-DISCONTINUITY";
+  private static final String[] RELEASE_REASONS = { "idle", "lru", "finish" };
+
+  private final LivePlaylistService livePlaylistService = Aop.get(LivePlaylistService.class);
+  private final HlsSegmentCache hlsSegmentCache = Aop.get(HlsSegmentCache.class);
+  private final AtomicLongArray released = new AtomicLongArray(RELEASE_REASONS.length);
+  private final AtomicLong restored = new AtomicLong();
+  private final AtomicLong expired = new AtomicLong();
+  private volatile boolean started;
+
+  public synchronized void start() {
+    if (started) {
+      return;
+    }
+    started = true;
+    Thread.ofVirtual().name("hls-session-reaper").start(this::reapLoop);
+  }
+
   public void initPersistentHls(Long sessionId, String m3u8Path, String tsPattern, int startNumber, int segmentDuration) {
     long hlsPtr = NativeMedia.initPersistentHls(m3u8Path, tsPattern, startNumber, segmentDuration);
     log.info("add to sessionStore:{},{},{}", sessionId, hlsPtr, m3u8Path);
-    HlsSessionStore.put(sessionId, hlsPtr, m3u8Path);
+    HlsSessionStore.put(sessionId, newSession(sessionId, hlsPtr, m3u8Path, tsPattern, segmentDuration));
+    enforceLimit();
+    String sql = "insert or replace into " + TABLE_NAME
+        + " (session_id, m3u8_path, ts_pattern, next_number, segment_duration, status) values (?,?,?,?,?,?)";
+    Db.update(sql, sessionId, m3u8Path, tsPattern, startNumber, segmentDuration, STATUS_OPEN);
+    livePlaylistService.refresh(sessionId, m3u8Path);
   }
 
-  public void close(Long sessionId) {
+  /**
+   * 获取会话，内存中没有时从 hls_session 表恢复
+   *
+   * @return 会话不存在、已经结束或者播放列表已被删除时返回 null
+   */
+  public HlsSession get(Long sessionId) {
     HlsSession hlsSession = HlsSessionStore.get(sessionId);
-    if (hlsSession != null && hlsSession.getPrt() != null) {
-      Long session_prt = hlsSession.getPrt();
-      String m3u8Path = hlsSession.getHls();
-      if (m3u8Path != null) {
-        File file = new File(m3u8Path);
-        if (file.exists()) {
-          log.info("finishPersistentHls:{}", session_prt);
-          NativeMedia.finishPersistentHls(session_prt, m3u8Path);
-        } else {
-          log.info("freeHlsSession:{}", session_prt);
-          if (session_prt != null) {
-            NativeMedia.freeHlsSession(session_prt);
+    if (hlsSession == null && sessionId != null) {
+      synchronized (this) {
+        hlsSession = HlsSessionStore.get(sessionId);
+        if (hlsSession == null) {
+          try {
+            hlsSession = restore(sessionId);
+          } catch (Exception e) {
+            log.error("restore hls session {} failed:{}", sessionId, e.getMessage(), e);
           }
         }
+      }
+      if (hlsSession != null) {
+        enforceLimit();
+      }
+    }
+    if (hlsSession != null) {
+      hlsSession.setLastAccess(System.currentTimeMillis());
+    }
+    return hlsSession;
+  }
+
+  /**
+   * 把场景视频追加到会话的播放列表，句柄已经被回收时重新恢复
+   *
+   * @return 会话已经结束或者不存在时返回 null
+   */
+  public String append(Long sessionId, String videoFilePath) {
+    // 取到会话和加锁之间句柄可能刚好被回收，重试一次
+    for (int i = 0; i < 2; i++) {
+      HlsSession hlsSession = get(sessionId);
+      if (hlsSession == null) {
+        return null;
+      }
+      synchronized (hlsSession) {
+        Long hlsPtr = hlsSession.getPrt();
+        if (hlsPtr == null) {
+          continue;
+        }
+        int first = hlsSession.getTsPattern() == null ? 0 : nextNumber(hlsSession.getTsPattern());
+        String message = NativeMedia.appendVideoSegmentToHls(hlsPtr, videoFilePath);
+        hlsSession.setLastAccess(System.currentTimeMillis());
+        appended(hlsSession, first);
+        return message == null ? "" : message;
+      }
+    }
+    return null;
+  }
+
+  private HlsSession restore(Long sessionId) throws IOException {
+    Row row = Db.findFirst("select * from " + TABLE_NAME + " where session_id=? and status=?", sessionId,
+        STATUS_OPEN);
+    if (row == null) {
+      return null;
+    }
+    String m3u8Path = row.getStr("m3u8_path");
+    String tsPattern = row.getStr("ts_pattern");
+    int segmentDuration = row.getInt("segment_duration");
+    File m3u8File = new File(m3u8Path);
+    if (!m3u8File.exists()) {
+      log.info("hls playlist is gone:{},{}", sessionId, m3u8Path);
+      markFinished(sessionId);
+      return null;
+    }
+    String playlist = FileUtil.readString(m3u8File);
+    if (playlist.contains(ENDLIST)) {
+      markFinished(sessionId);
+      return null;
+    }
+
+    // 磁盘上的分片比表中记录的新时以磁盘为准，避免覆盖已有的 ts
+    int nextNumber = Math.max(row.getInt("next_number"), nextNumber(tsPattern));
+    String segments = segments(playlist);
+    long hlsPtr = NativeMedia.initPersistentHls(m3u8Path, tsPattern, nextNumber, segmentDuration);
+    HlsSession hlsSession = newSession(sessionId, hlsPtr, m3u8Path, tsPattern, segmentDuration);
+    if (!segments.isEmpty()) {
+      hlsSession.setRestoredSegments(segments);
+      repair(hlsSession);
+    }
+    HlsSessionStore.put(sessionId, hlsSession);
+    livePlaylistService.refresh(sessionId, m3u8Path);
+    restored.incrementAndGet();
+    log.info("restored hls session:{},{},next:{}", sessionId, m3u8Path, nextNumber);
+    return hlsSession;
+  }
+
+  /**
+   * 追加分片之后调用，记录下一个分片编号，恢复的会话检查之前的分片是否还在播放列表中。
+   * 新写出的分片在播放列表刷新前放入缓存
+   */
+  private void appended(HlsSession hlsSession, int first) {
+    String tsPattern = hlsSession.getTsPattern();
+    if (tsPattern == null) {
+      return;
+    }
+    Long sessionId = hlsSession.getSessionId();
+    int next = nextNumber(tsPattern);
+    try {
+      if (hlsSession.getRestoredSegments() != null) {
+        repair(hlsSession);
+      }
+      Db.update("update " + TABLE_NAME + " set next_number=?, update_time=CURRENT_TIMESTAMP where session_id=?",
+          next, sessionId);
+    } catch (Exception e) {
+      log.error("update hls session {} failed:{}", sessionId, e.getMessage(), e);
+    }
+    for (int number = first; number < next; number++) {
+      hlsSegmentCache.warm(new File(String.format(tsPattern, number)));
+    }
+    livePlaylistService.refresh(sessionId, hlsSession.getHls());
+  }
+
+  /**
+   * native 句柄重新创建后写出的播放列表只有新的分片，把恢复前的分片补到前面
+   */
+  private void repair(HlsSession hlsSession) throws IOException {
+    String restored = hlsSession.getRestoredSegments();
+    File m3u8File = new File(hlsSession.getHls());
+    String playlist = m3u8File.exists() ? FileUtil.readString(m3u8File) : "";
+    String firstUri = restored.lines().filter(line -> !line.startsWith("#")).findFirst().orElse(null);
+    if (firstUri == null || playlist.contains(firstUri)) {
+      return;
+    }
+    int index = playlist.indexOf(EXTINF);
+    String header = index < 0 ? playlist : playlist.substring(0, index);
+    if (!header.startsWith("#EXTM3U")) {
+      header = "#EXTM3U\n#EXT-X-VERSION:3\n#EXT-X-TARGETDURATION:" + hlsSession.getSegmentDuration()
+          + "\n#EXT-X-MEDIA-SEQUENCE:0\n";
+    }
+    StringBuilder sb = new StringBuilder(header.length() + restored.length() + playlist.length());
+    sb.append(header).append(restored);
+    if (index >= 0) {
+      // 新句柄的时间戳从 0 开始
+      sb.append(DISCONTINUITY).append('\n').append(playlist.substring(index));
+    }
+    File tmp = new File(m3u8File.getParentFile(), m3u8File.getName() + ".tmp");
+    Files.write(tmp.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+    Files.move(tmp.toPath(), m3u8File.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * 播放列表中从第一个 EXTINF 开始的分片，不包含 EXT-X-ENDLIST
+   */
+  static String segments(String playlist) {
+    int index = playlist.indexOf(EXTINF);
+    if (index < 0) {
+      return "";
+    }
+    StringBuilder sb = new StringBuilder();
+    for (String line : playlist.substring(index).split("\n")) {
+      if (!line.isBlank() && !line.startsWith(ENDLIST)) {
+        sb.append(line.strip()).append('\n');
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * 目录中按 ts_pattern 命名的最大分片编号加一
+   */
+  static int nextNumber(String tsPattern) {
+    File pattern = new File(tsPattern);
+    String name = pattern.getName();
+    Matcher format = Pattern.compile("%0?\\d*d").matcher(name);
+    if (!format.find()) {
+      return 0;
+    }
+    Pattern regex = Pattern.compile(Pattern.quote(name.substring(0, format.start())) + "(\\d+)"
+        + Pattern.quote(name.substring(format.end())));
+    File[] files = pattern.getAbsoluteFile().getParentFile().listFiles();
+    int next = 0;
+    if (files != null) {
+      for (File file : files) {
+        Matcher matcher = regex.matcher(file.getName());
+        if (matcher.matches()) {
+          next = Math.max(next, Integer.parseInt(matcher.group(1)) + 1);
+        }
+      }
+    }
+    return next;
+  }
+
+  private static HlsSession newSession(Long sessionId, long hlsPtr, String m3u8Path, String tsPattern,
+      int segmentDuration) {
+    HlsSession hlsSession = new HlsSession(m3u8Path, hlsPtr);
+    hlsSession.setSessionId(sessionId);
+    hlsSession.setTsPattern(tsPattern);
+    hlsSession.setSegmentDuration(segmentDuration);
+    return hlsSession;
+  }
+
+  private void markFinished(Long sessionId) {
+    Db.update("update " + TABLE_NAME + " set status=?, update_time=CURRENT_TIMESTAMP where session_id=?",
+        STATUS_FINISHED, sessionId);
+  }
+
+  public void close(Long sessionId) {
+    // 结束后的句柄不能再使用
+    HlsSession hlsSession = HlsSessionStore.remove(sessionId);
+    if (hlsSession == null) {
+      // 重启或者被回收后没有 native 句柄，直接结束磁盘上的播放列表
+      closeOnDisk(sessionId);
+    } else {
+      finishNative(hlsSession, 2);
+    }
+    if (sessionId != null) {
+      markFinished(sessionId);
+      livePlaylistService.refresh(sessionId, FolderUtils.hls(sessionId) + File.separator + "main.m3u8");
+    }
+  }
+
+  /**
+   * 写入最后的分片并释放句柄，加锁避免和正在追加的场景冲突
+   */
+  private boolean finishNative(HlsSession hlsSession, int reason) {
+    synchronized (hlsSession) {
+      Long session_prt = hlsSession.getPrt();
+      if (session_prt == null) {
+        return false;
+      }
+      String m3u8Path = hlsSession.getHls();
+      if (m3u8Path != null && new File(m3u8Path).exists()) {
+        log.info("finishPersistentHls:{}", session_prt);
+        NativeMedia.finishPersistentHls(session_prt, m3u8Path);
       } else {
         log.info("freeHlsSession:{}", session_prt);
-        if (session_prt != null) {
-          NativeMedia.freeHlsSession(session_prt);
-        }
+        NativeMedia.freeHlsSession(session_prt);
+      }
+      hlsSession.setPrt(null);
+    }
+    released.incrementAndGet(reason);
+    return true;
+  }
+
+  /**
+   * 回收句柄但不结束会话：finish 会写入 EXT-X-ENDLIST，去掉后下次使用时仍然可以恢复
+   */
+  private synchronized void release(HlsSession hlsSession, int reason) {
+    Long sessionId = hlsSession.getSessionId();
+    HlsSessionStore.remove(sessionId, hlsSession);
+    if (!finishNative(hlsSession, reason)) {
+      return;
+    }
+    log.info("released hls session:{},{}", sessionId, RELEASE_REASONS[reason]);
+    File m3u8File = new File(hlsSession.getHls());
+    if (!m3u8File.exists()) {
+      return;
+    }
+    String playlist = FileUtil.readString(m3u8File);
+    if (playlist.contains(ENDLIST)) {
+      FileUtil.writeString(playlist.replace(ENDLIST + "\n", "").replace(ENDLIST, ""), m3u8File);
+    }
+    livePlaylistService.refresh(sessionId, hlsSession.getHls());
+  }
+
+  /**
+   * 同时打开的句柄超过上限时回收最久没有使用的
+   */
+  private void enforceLimit() {
+    int max = EnvUtils.getInt("hls.session.max.open", 32);
+    int excess = HlsSessionStore.size() - max;
+    if (excess <= 0) {
+      return;
+    }
+    List<HlsSession> sessions = new ArrayList<>(HlsSessionStore.sessions());
+    sessions.sort(Comparator.comparingLong(HlsSession::getLastAccess));
+    for (int i = 0; i < excess && i < sessions.size(); i++) {
+      release(sessions.get(i), 1);
+    }
+  }
+
+  private void reapLoop() {
+    while (true) {
+      try {
+        Thread.sleep(EnvUtils.getLong("hls.session.reap.interval.ms", 60000L));
+        reap();
+      } catch (InterruptedException e) {
+        return;
+      } catch (Exception e) {
+        log.error("reap hls sessions failed:{}", e.getMessage(), e);
+      }
+    }
+  }
+
+  public void reap() {
+    long idleMillis = EnvUtils.getLong("hls.session.idle.ms", 600000L);
+    long now = System.currentTimeMillis();
+    for (HlsSession hlsSession : HlsSessionStore.sessions()) {
+      if (now - hlsSession.getLastAccess() > idleMillis) {
+        release(hlsSession, 0);
       }
     }
+    enforceLimit();
+    livePlaylistService.evict(idleMillis);
+    hlsSegmentCache.purge();
+
+    // 长时间没有使用的会话不再恢复，结束播放列表
+    long hours = EnvUtils.getLong("hls.session.expire.hours", 24L);
+    List<Row> rows = Db.find("select session_id from " + TABLE_NAME
+        + " where status=? and update_time < datetime('now', ?)", STATUS_OPEN, "-" + hours + " hours");
+    for (Row row : rows) {
+      Long sessionId = row.getLong("session_id");
+      HlsSession hlsSession = HlsSessionStore.get(sessionId);
+      if (hlsSession != null && now - hlsSession.getLastAccess() < idleMillis) {
+        continue;
+      }
+      log.info("expire hls session:{}", sessionId);
+      close(sessionId);
+      expired.incrementAndGet();
+    }
+  }
+
+  /**
+   * native 句柄的内存不在 JVM 堆中，按每个句柄的估算值导出
+   */
+  public void export(StringBuilder out) {
+    int open = HlsSessionStore.size();
+    long bytesPerSession = EnvUtils.getLong("hls.session.native.bytes", 4L * 1024 * 1024);
+    out.append("# HELP manim_hls_native_sessions Open native HLS muxer handles\n");
+    out.append("# TYPE manim_hls_native_sessions gauge\n");
+    out.append("manim_hls_native_sessions ").append(open).append('\n');
+    out.append("# HELP manim_hls_native_memory_bytes Estimated native memory held by open HLS handles\n");
+    out.append("# TYPE manim_hls_native_memory_bytes gauge\n");
+    out.append("manim_hls_native_memory_bytes ").append(open * bytesPerSession).append('\n');
+    out.append("# HELP manim_hls_sessions_released_total Native HLS handles released\n");
+    out.append("# TYPE manim_hls_sessions_released_total counter\n");
+    for (int i = 0; i < RELEASE_REASONS.length; i++) {
+      out.append("manim_hls_sessions_released_total{reason=\"").append(RELEASE_REASONS[i]).append("\"} ")
+          .append(released.get(i)).append('\n');
+    }
+    out.append("# HELP manim_hls_sessions_restored_total Native HLS handles re-created from the playlist\n");
+    out.append("# TYPE manim_hls_sessions_restored_total counter\n");
+    out.append("manim_hls_sessions_restored_total ").append(restored.get()).append('\n');
+    out.append("# HELP manim_hls_sessions_expired_total Abandoned HLS sessions ended by the reaper\n");
+    out.append("# TYPE manim_hls_sessions_expired_total counter\n");
+    out.append("manim_hls_sessions_expired_total ").append(expired.get()).append('\n');
+  }
+
+  private void closeOnDisk(Long sessionId) {
+    if (sessionId == null) {
+      return;
+    }
+    Row row = Db.findFirst("select m3u8_path from " + TABLE_NAME + " where session_id=? and status=?", sessionId,
+        STATUS_OPEN);
+    if (row == null) {
+      return;
+    }
+    File file = new File(row.getStr("m3u8_path"));
+    if (!file.exists()) {
+      return;
+    }
+    String playlist = FileUtil.readString(file);
+    if (!playlist.contains(ENDLIST)) {
+      log.info("append endlist:{}", file.getPath());
+      FileUtil.writeString((playlist.endsWith("\n") ? playlist : playlist + "\n") + ENDLIST + "\n", file);
+    }
   }
 }
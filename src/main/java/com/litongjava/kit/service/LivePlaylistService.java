@@ -0,0 +1,514 @@
+package com.litongjava.kit.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.litongjava.jfinal.aop.Aop;
+import com.litongjava.kit.utils.FolderUtils;
+import com.litongjava.kit.utils.TsPartSplitter;
+import com.litongjava.kit.utils.TsPartSplitter.TsPart;
+import com.litongjava.tio.utils.environment.EnvUtils;
+import com.litongjava.tio.utils.hutool.FileUtil;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 直播会话播放列表的内存模型，追加分片后由 HlsSessionService 刷新，播放器轮询时不再读取磁盘
+ *
+ * 每次刷新 version 加一。请求带 _HLS_msn 时阻塞到该媒体序号的分片出现、播放列表结束或者超时，
+ * 播放器不需要每隔几秒重新请求一次。
+ *
+ * 低延迟模式（LL-HLS）下，最近几个分片按视频帧切成 EXT-X-PART 部分分片，并在末尾给出下一个分片第一个部分的
+ * EXT-X-PRELOAD-HINT。播放器提前请求这个部分时服务端保持请求，分片追加后立即返回。不带 ll 参数的播放器仍然拿到普通 HLS。
+ *
+ * <pre>
+ * hls.live.block.ms=10000
+ * hls.ll.part.ms=500
+ * </pre>
+ */
+@Slf4j
+public class LivePlaylistService {
+
+  private static final String MEDIA_SEQUENCE = "#EXT-X-MEDIA-SEQUENCE:";
+  private static final String TARGET_DURATION = "#EXT-X-TARGETDURATION:";
+  private static final String SERVER_CONTROL = "#EXT-X-SERVER-CONTROL:CAN-BLOCK-RELOAD=YES";
+  private static final String EXTINF = "#EXTINF:";
+  private static final String ENDLIST = "#EXT-X-ENDLIST";
+  // 最近几个分片列出部分分片
+  private static final int PART_SEGMENTS = 3;
+  private static final Pattern SEGMENT_NAME = Pattern.compile("[A-Za-z0-9_-]+\\.ts");
+  private static final Pattern SEGMENT_NUMBER = Pattern.compile("(\\d+)(\\.ts)$");
+
+  private final HlsSegmentCache hlsSegmentCache = Aop.get(HlsSegmentCache.class);
+  private final Map<Long, LivePlaylist> playlists = new ConcurrentHashMap<>();
+  private final AtomicLong blockingRequests = new AtomicLong();
+  private final AtomicLong served = new AtomicLong();
+  private final AtomicLong notModified = new AtomicLong();
+  private final AtomicLong partsServed = new AtomicLong();
+  private final AtomicLong preloadHeld = new AtomicLong();
+
+  /**
+   * 追加分片或者结束会话之后调用，重新读取一次磁盘上的播放列表
+   */
+  public void refresh(Long sessionId, String m3u8Path) {
+    File file = new File(m3u8Path);
+    if (sessionId == null || !file.exists()) {
+      return;
+    }
+    String content = FileUtil.readString(file);
+    LivePlaylist playlist = playlists.computeIfAbsent(sessionId, LivePlaylist::new);
+    playlist.update(content);
+  }
+
+  /**
+   * 获取内存中的播放列表，没有时从磁盘加载，例如重启后的第一次请求
+   *
+   * @return 播放列表不存在时返回 null
+   */
+  public LivePlaylist get(Long sessionId) {
+    LivePlaylist playlist = playlists.get(sessionId);
+    if (playlist == null) {
+      refresh(sessionId, FolderUtils.hls(sessionId) + File.separator + "main.m3u8");
+      playlist = playlists.get(sessionId);
+    }
+    if (playlist != null) {
+      playlist.lastAccess = System.currentTimeMillis();
+    }
+    return playlist;
+  }
+
+  /**
+   * 阻塞到媒体序号 msn 的分片出现、播放列表结束或者超时，返回当时的播放列表
+   */
+  public LivePlaylist await(Long sessionId, long msn, long waitMillis) throws InterruptedException {
+    return await(sessionId, msn, null, waitMillis);
+  }
+
+  /**
+   * 阻塞到分片 msn 的第 part 个部分分片出现、播放列表结束或者超时。part 超过该分片的部分分片数时，
+   * 等的是下一个分片的第一个部分。part 为 null 时等整个分片
+   */
+  public LivePlaylist await(Long sessionId, long msn, Integer part, long waitMillis) throws InterruptedException {
+    LivePlaylist playlist = get(sessionId);
+    if (playlist != null) {
+      blockingRequests.incrementAndGet();
+      try {
+        await(playlist, p -> ready(p, msn, part), waitMillis);
+      } finally {
+        blockingRequests.decrementAndGet();
+      }
+    }
+    return playlist;
+  }
+
+  /**
+   * 返回分片的第 index 个部分分片，分片还没有追加时阻塞到追加、播放列表结束或者超时
+   *
+   * @return 分片或者部分分片不存在时返回 null
+   */
+  public byte[] part(Long sessionId, String name, int index, long waitMillis) throws InterruptedException {
+    if (!SEGMENT_NAME.matcher(name).matches() || index < 0) {
+      return null;
+    }
+    LivePlaylist playlist = get(sessionId);
+    if (playlist == null) {
+      return null;
+    }
+    if (!playlist.segments.contains(name)) {
+      preloadHeld.incrementAndGet();
+      await(playlist, p -> p.segments.contains(name), waitMillis);
+      if (!playlist.segments.contains(name)) {
+        return null;
+      }
+    }
+    File file = new File(FolderUtils.hls(sessionId), name);
+    List<TsPart> parts = parts(playlist, file, playlist.durations.getOrDefault(name, 0d));
+    if (parts == null || index >= parts.size()) {
+      return null;
+    }
+    TsPart part = parts.get(index);
+    byte[] bytes;
+    try {
+      bytes = hlsSegmentCache.read(file, part.getOffset(), part.getLength());
+    } catch (IOException e) {
+      log.error("read hls part {} failed:{}", file, e.getMessage());
+      return null;
+    }
+    partsServed.incrementAndGet();
+    return bytes;
+  }
+
+  private boolean ready(LivePlaylist playlist, long msn, Integer part) {
+    long lastMsn = playlist.lastMsn;
+    if (lastMsn > msn || (part == null && lastMsn == msn)) {
+      return true;
+    }
+    if (lastMsn < msn) {
+      return false;
+    }
+    // 部分分片在分片追加后一次切出，最后一个分片里没有这个部分时等下一个分片
+    String name = playlist.segment(msn);
+    if (name == null) {
+      return false;
+    }
+    File file = new File(FolderUtils.hls(playlist.sessionId), name);
+    List<TsPart> parts = parts(playlist, file, playlist.durations.getOrDefault(name, 0d));
+    return parts != null && part < parts.size();
+  }
+
+  private void await(LivePlaylist playlist, Predicate<LivePlaylist> condition, long waitMillis)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + waitMillis;
+    while (true) {
+      // 先取 changed 再检查条件，检查之后发生的更新一定会唤醒
+      CompletableFuture<Void> changed = playlist.changed;
+      long remaining = deadline - System.currentTimeMillis();
+      if (playlist.ended || condition.test(playlist) || remaining <= 0) {
+        return;
+      }
+      try {
+        changed.get(remaining, TimeUnit.MILLISECONDS);
+      } catch (ExecutionException | TimeoutException e) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * 低延迟模式的播放列表，每个版本只生成一次
+   */
+  public String lowLatency(LivePlaylist playlist) {
+    synchronized (playlist) {
+      if (playlist.lowLatencyVersion != playlist.version) {
+        playlist.lowLatencyBody = lowLatency(playlist, playlist.content);
+        playlist.lowLatencyVersion = playlist.version;
+      }
+      return playlist.lowLatencyBody;
+    }
+  }
+
+  private String lowLatency(LivePlaylist playlist, String content) {
+    Long sessionId = playlist.sessionId;
+    double partTarget = EnvUtils.getLong("hls.ll.part.ms", 500L) / 1000.0;
+    String prefix = FolderUtils.httpM3u8(sessionId, "");
+    List<String> segments = playlist.segments;
+    StringBuilder sb = new StringBuilder(content.length() * 2 + 512);
+    int segment = 0;
+    boolean version = false;
+    for (String line : content.split("\n")) {
+      line = line.strip();
+      if (line.isEmpty() || line.startsWith("#EXT-X-SERVER-CONTROL") || line.startsWith("#EXT-X-PART-INF")) {
+        continue;
+      }
+      if (line.startsWith("#EXT-X-VERSION:")) {
+        // EXT-X-PART 和 EXT-X-PRELOAD-HINT 需要版本 9
+        sb.append("#EXT-X-VERSION:9\n");
+        version = true;
+      } else if (line.startsWith(TARGET_DURATION)) {
+        if (!version) {
+          sb.append("#EXT-X-VERSION:9\n");
+        }
+        sb.append(line).append('\n');
+        sb.append(SERVER_CONTROL).append(",PART-HOLD-BACK=").append(format(partTarget * 3)).append('\n');
+        sb.append("#EXT-X-PART-INF:PART-TARGET=").append(format(partTarget)).append('\n');
+      } else if (line.startsWith(EXTINF)) {
+        if (segment < segments.size() && segment >= segments.size() - PART_SEGMENTS) {
+          String name = segments.get(segment);
+          File file = new File(FolderUtils.hls(sessionId), name);
+          List<TsPart> parts = parts(playlist, file, playlist.durations.getOrDefault(name, 0d));
+          for (int i = 0; parts != null && i < parts.size(); i++) {
+            TsPart part = parts.get(i);
+            sb.append("#EXT-X-PART:DURATION=").append(format(part.getDuration()));
+            sb.append(",URI=\"").append(partUri(sessionId, name, i)).append('"');
+            if (part.isIndependent()) {
+              sb.append(",INDEPENDENT=YES");
+            }
+            sb.append('\n');
+          }
+        }
+        segment++;
+        sb.append(line).append('\n');
+      } else if (line.startsWith("#")) {
+        if (!line.equals(ENDLIST)) {
+          sb.append(line).append('\n');
+        }
+      } else if (line.startsWith("/") || line.contains("://")) {
+        sb.append(line).append('\n');
+      } else {
+        sb.append(prefix).append(line).append('\n');
+      }
+    }
+    if (playlist.ended) {
+      sb.append(ENDLIST).append('\n');
+    } else if (!segments.isEmpty()) {
+      // 下一个分片的第一个部分，请求会保持到分片追加
+      String next = nextSegment(segments.get(segments.size() - 1));
+      if (next != null) {
+        sb.append("#EXT-X-PRELOAD-HINT:TYPE=PART,URI=\"").append(partUri(sessionId, next, 0)).append("\"\n");
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * 分片文件写入后不再修改，按文件长度和修改时间缓存切分结果，文件被替换时重新切分
+   */
+  private List<TsPart> parts(LivePlaylist playlist, File file, double duration) {
+    SegmentParts cached = playlist.parts.get(file.getName());
+    if (cached != null && cached.length == file.length() && cached.lastModified == file.lastModified()) {
+      return cached.parts;
+    }
+    if (!file.exists()) {
+      return null;
+    }
+    try {
+      long lastModified = file.lastModified();
+      byte[] data = hlsSegmentCache.read(file);
+      if (data == null) {
+        return null;
+      }
+      double partTarget = EnvUtils.getLong("hls.ll.part.ms", 500L) / 1000.0;
+      List<TsPart> parts = TsPartSplitter.split(data, partTarget, duration);
+      playlist.parts.put(file.getName(), new SegmentParts(data.length, lastModified, parts));
+      return parts;
+    } catch (IOException e) {
+      log.error("split hls segment {} failed:{}", file, e.getMessage());
+      return null;
+    }
+  }
+
+  public long getBlockMillis() {
+    return EnvUtils.getLong("hls.live.block.ms", 10000L);
+  }
+
+  public void served(boolean modified) {
+    if (modified) {
+      served.incrementAndGet();
+    } else {
+      notModified.incrementAndGet();
+    }
+  }
+
+  /**
+   * 删除长时间没有请求和更新的播放列表
+   */
+  public void evict(long idleMillis) {
+    long now = System.currentTimeMillis();
+    playlists.values().removeIf(playlist -> now - Math.max(playlist.lastAccess, playlist.updateTime) > idleMillis);
+  }
+
+  public void export(StringBuilder out) {
+    out.append("# HELP manim_hls_live_playlists Live playlists held in memory\n");
+    out.append("# TYPE manim_hls_live_playlists gauge\n");
+    out.append("manim_hls_live_playlists ").append(playlists.size()).append('\n');
+    out.append("# HELP manim_hls_live_blocking_requests Playlist requests waiting for a new media sequence\n");
+    out.append("# TYPE manim_hls_live_blocking_requests gauge\n");
+    out.append("manim_hls_live_blocking_requests ").append(blockingRequests.get()).append('\n');
+    out.append("# HELP manim_hls_live_requests_total Live playlist responses\n");
+    out.append("# TYPE manim_hls_live_requests_total counter\n");
+    out.append("manim_hls_live_requests_total{result=\"ok\"} ").append(served.get()).append('\n');
+    out.append("manim_hls_live_requests_total{result=\"not_modified\"} ").append(notModified.get()).append('\n');
+    out.append("# HELP manim_hls_live_parts_total Low-latency partial segments served\n");
+    out.append("# TYPE manim_hls_live_parts_total counter\n");
+    out.append("manim_hls_live_parts_total ").append(partsServed.get()).append('\n');
+    out.append("# HELP manim_hls_live_preload_held_total Preload hint requests held until the segment was appended\n");
+    out.append("# TYPE manim_hls_live_preload_held_total counter\n");
+    out.append("manim_hls_live_preload_held_total ").append(preloadHeld.get()).append('\n');
+  }
+
+  public static class LivePlaylist {
+    private final Long sessionId;
+    private volatile String content = "";
+    private volatile String body = "";
+    private volatile List<String> segments = new ArrayList<>();
+    private volatile Map<String, Double> durations = new HashMap<>();
+    private volatile long version;
+    private volatile long lastMsn = -1;
+    private volatile boolean ended;
+    private volatile long updateTime = System.currentTimeMillis();
+    private volatile long lastAccess = System.currentTimeMillis();
+    private volatile CompletableFuture<Void> changed = new CompletableFuture<>();
+    private final Map<String, SegmentParts> parts = new ConcurrentHashMap<>();
+    private String lowLatencyBody;
+    private long lowLatencyVersion = -1;
+
+    private LivePlaylist(Long sessionId) {
+      this.sessionId = sessionId;
+    }
+
+    private void update(String content) {
+      String rewritten = rewrite(sessionId, content);
+      CompletableFuture<Void> previous;
+      synchronized (this) {
+        if (rewritten.equals(body)) {
+          return;
+        }
+        this.content = content;
+        body = rewritten;
+        segments(content);
+        lastMsn = lastMsn(content);
+        ended = content.contains("#EXT-X-ENDLIST");
+        updateTime = System.currentTimeMillis();
+        version++;
+        previous = changed;
+        changed = new CompletableFuture<>();
+      }
+      previous.complete(null);
+    }
+
+    private void segments(String content) {
+      List<String> names = new ArrayList<>();
+      Map<String, Double> extinf = new HashMap<>();
+      double duration = 0;
+      for (String line : content.split("\n")) {
+        line = line.strip();
+        if (line.startsWith(EXTINF)) {
+          String value = line.substring(EXTINF.length());
+          int comma = value.indexOf(',');
+          try {
+            duration = Double.parseDouble(comma < 0 ? value : value.substring(0, comma));
+          } catch (NumberFormatException e) {
+            duration = 0;
+          }
+        } else if (!line.isEmpty() && !line.startsWith("#")) {
+          String name = line.substring(line.lastIndexOf('/') + 1);
+          names.add(name);
+          extinf.put(name, duration);
+        }
+      }
+      // 不再出现在播放列表中的分片不需要缓存切分结果
+      parts.keySet().retainAll(extinf.keySet());
+      durations = extinf;
+      segments = names;
+    }
+
+    /**
+     * 媒体序号对应的分片文件名，不在播放列表中时返回 null
+     */
+    private String segment(long msn) {
+      List<String> names = segments;
+      long index = msn - (lastMsn - names.size() + 1);
+      if (index < 0 || index >= names.size()) {
+        return null;
+      }
+      return names.get((int) index);
+    }
+
+    public String getBody() {
+      return body;
+    }
+
+    public long getVersion() {
+      return version;
+    }
+
+    public long getLastMsn() {
+      return lastMsn;
+    }
+
+    public boolean isEnded() {
+      return ended;
+    }
+
+    public String etag(boolean lowLatency) {
+      return "\"" + sessionId + "-" + version + (lowLatency ? "-ll" : "") + "\"";
+    }
+  }
+
+  private static class SegmentParts {
+    private final long length;
+    private final long lastModified;
+    private final List<TsPart> parts;
+
+    private SegmentParts(long length, long lastModified, List<TsPart> parts) {
+      this.length = length;
+      this.lastModified = lastModified;
+      this.parts = parts;
+    }
+  }
+
+  static String partUri(Long sessionId, String name, int index) {
+    return "/hls/part?session_id=" + sessionId + "&name=" + name + "&part=" + index;
+  }
+
+  /**
+   * c_007.ts 的下一个分片为 c_008.ts，保持编号宽度
+   */
+  static String nextSegment(String name) {
+    Matcher matcher = SEGMENT_NUMBER.matcher(name);
+    if (!matcher.find()) {
+      return null;
+    }
+    String number = matcher.group(1);
+    String next = String.valueOf(Long.parseLong(number) + 1);
+    while (next.length() < number.length()) {
+      next = "0" + next;
+    }
+    return name.substring(0, matcher.start(1)) + next + matcher.group(2);
+  }
+
+  private static String format(double seconds) {
+    return String.format(Locale.ROOT, "%.5f", seconds);
+  }
+
+  /**
+   * 最后一个分片的媒体序号，没有分片时为 -1
+   */
+  static long lastMsn(String content) {
+    long sequence = 0;
+    long segments = 0;
+    for (String line : content.split("\n")) {
+      if (line.startsWith(MEDIA_SEQUENCE)) {
+        try {
+          sequence = Long.parseLong(line.substring(MEDIA_SEQUENCE.length()).trim());
+        } catch (NumberFormatException e) {
+          log.warn("invalid media sequence:{}", line);
+        }
+      } else if (line.startsWith("#EXTINF")) {
+        segments++;
+      }
+    }
+    return sequence + segments - 1;
+  }
+
+  /**
+   * 分片地址改为 /data/hls/{sessionId}/ 下的绝对路径，并声明支持阻塞重新加载
+   */
+  static String rewrite(Long sessionId, String content) {
+    String prefix = FolderUtils.httpM3u8(sessionId, "");
+    StringBuilder sb = new StringBuilder(content.length() + 256);
+    boolean control = content.contains("#EXT-X-SERVER-CONTROL");
+    for (String line : content.split("\n")) {
+      line = line.strip();
+      if (line.isEmpty()) {
+        continue;
+      }
+      if (line.startsWith("#")) {
+        sb.append(line).append('\n');
+        if (!control && line.startsWith(TARGET_DURATION)) {
+          sb.append(SERVER_CONTROL).append('\n');
+          control = true;
+        }
+      } else if (line.startsWith("/") || line.contains("://")) {
+        sb.append(line).append('\n');
+      } else {
+        sb.append(prefix).append(line).append('\n');
+      }
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,330 @@
+package com.litongjava.kit.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.jfinal.kit.Kv;
+import com.litongjava.kit.utils.FolderUtils;
+import com.litongjava.tio.utils.environment.EnvUtils;
+import com.litongjava.tio.utils.hutool.FileUtil;
+import com.litongjava.tio.utils.path.WorkDirUtils;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * manim 自身的动画缓存(partial movie)和 Tex/Text 缓存
+ *
+ * manim 按动画内容的 hash 命名 partial movie，hash 相同的动画可以直接复用。任务使用独立的 media 目录，
+ * 渲染前把会话级缓存硬链接到任务的 partial_movie_dir。全局级不整体链接，worker 中 manim 查找某个 hash 时
+ * 才到全局目录(环境变量 KIT_MANIM_CACHE_DIR)中查找，命中后链接这一个文件。渲染后把新生成的文件收回缓存:
+ *
+ * <pre>
+ * cache/manim/sessions/{sessionId}   会话级，修改场景后重新渲染只需渲染变化的动画
+ * cache/manim/global                 全局级，会话中被复用过的动画晋升到这里
+ * media/Tex、media/texts             Tex/Text 编译结果，所有任务共享
+ * </pre>
+ *
+ * 每一级都有容量上限，按最近使用时间(修改时间)淘汰。
+ *
+ * <pre>
+ * manim.cache.enable=true
+ * manim.cache.session.max.mb=512
+ * manim.cache.global.max.mb=2048
+ * manim.cache.tex.max.mb=512
+ * manim.cache.session.ttl.hours=24
+ * </pre>
+ */
+@Slf4j
+public class ManimCacheService {
+
+  public static final String CACHE_FOLDER = "cache" + File.separator + "manim";
+  public static final String PARTIAL_FOLDER = "partial_movie_files";
+  private static final String FILE_LIST = "partial_movie_file_list.txt";
+  // 淘汰需要扫描目录，限制频率
+  private static final long EVICT_INTERVAL_MILLIS = 60 * 1000L;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong promotions = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong lastEvict = new AtomicLong();
+
+  public boolean isEnabled() {
+    return EnvUtils.getBoolean("manim.cache.enable", true);
+  }
+
+  public File sessionFolder(Long sessionId) {
+    return new File(CACHE_FOLDER + File.separator + "sessions", String.valueOf(sessionId));
+  }
+
+  public File globalFolder() {
+    return new File(CACHE_FOLDER, "global");
+  }
+
+  /**
+   * 任务的 partial_movie_dir，写入 manim.cfg，{scene_name} 由 manim 替换
+   */
+  public static File partialFolder(File taskMediaDir) {
+    return new File(taskMediaDir, PARTIAL_FOLDER);
+  }
+
+  /**
+   * 渲染前把会话级缓存的 partial movie 链接到每个场景的目录，会话级只包含本会话渲染过的动画，数量有限
+   *
+   * @return 链接的文件名，用于渲染后区分命中和新生成的文件
+   */
+  public Set<String> seed(Long sessionId, File taskMediaDir, List<String> scenes) {
+    Set<String> seeded = new HashSet<>();
+    if (!isEnabled() || scenes == null || scenes.isEmpty()) {
+      return seeded;
+    }
+    List<File> cached = new ArrayList<>();
+    addFiles(cached, sessionFolder(sessionId));
+    if (cached.isEmpty()) {
+      return seeded;
+    }
+    for (String scene : scenes) {
+      File sceneDir = new File(partialFolder(taskMediaDir), scene);
+      sceneDir.mkdirs();
+      for (File file : cached) {
+        if (link(file, new File(sceneDir, file.getName()))) {
+          seeded.add(file.getName());
+        }
+      }
+    }
+    return seeded;
+  }
+
+  /**
+   * 渲染后统计命中并收回新生成的 partial movie，失败的任务已经渲染完成的动画同样可以复用
+   */
+  public Kv harvest(Long sessionId, File taskMediaDir, Set<String> seeded, long renderStart) {
+    Kv kv = Kv.create();
+    if (!isEnabled()) {
+      return kv;
+    }
+    File[] sceneDirs = partialFolder(taskMediaDir).listFiles(File::isDirectory);
+    File sessionFolder = sessionFolder(sessionId);
+    sessionFolder.mkdirs();
+    int taskHits = 0;
+    int taskMisses = 0;
+    if (sceneDirs != null) {
+      for (File sceneDir : sceneDirs) {
+        Set<String> used = usedFiles(sceneDir);
+        File[] files = sceneDir.listFiles((dir, name) -> isPartialMovie(name));
+        if (files == null) {
+          continue;
+        }
+        for (File file : files) {
+          String name = file.getName();
+          // worker 按 hash 从全局级链接的文件同样是命中
+          boolean wasSeeded = seeded.contains(name) || new File(globalFolder(), name).exists();
+          // 没有文件列表(渲染失败)时按本次新生成的文件统计
+          boolean isUsed = used != null ? used.contains(name) : !wasSeeded && file.lastModified() >= renderStart;
+          if (!isUsed) {
+            continue;
+          }
+          if (wasSeeded) {
+            taskHits++;
+            if (!link(file, new File(sessionFolder, name))) {
+              touch(new File(sessionFolder, name));
+            }
+            promote(sessionFolder, name);
+          } else {
+            taskMisses++;
+            link(file, new File(sessionFolder, name));
+          }
+        }
+      }
+    }
+    hits.addAndGet(taskHits);
+    misses.addAndGet(taskMisses);
+    int total = taskHits + taskMisses;
+    kv.set("partial_hits", taskHits).set("partial_misses", taskMisses);
+    kv.set("partial_hit_ratio", total == 0 ? 0d : (double) taskHits / total);
+    kv.set("tex_compiled", countNewer(texFolders(), renderStart));
+    evictAsync();
+    return kv;
+  }
+
+  /**
+   * manim 合并视频时写入的文件列表，每行 file 'file:/path/{hash}.mp4'
+   */
+  private Set<String> usedFiles(File sceneDir) {
+    File list = new File(sceneDir, FILE_LIST);
+    if (!list.exists()) {
+      return null;
+    }
+    Set<String> used = new HashSet<>();
+    for (String line : FileUtil.readString(list).split("\n")) {
+      int end = line.lastIndexOf('\'');
+      int start = line.lastIndexOf('/', end);
+      if (end > 0 && start >= 0) {
+        used.add(line.substring(start + 1, end));
+      }
+    }
+    return used;
+  }
+
+  private static boolean isPartialMovie(String name) {
+    // uncached_ 开头的是禁用缓存的动画
+    return name.endsWith(".mp4") && !name.startsWith("uncached_");
+  }
+
+  /**
+   * 在会话中被再次使用的动画晋升到全局级
+   */
+  private void promote(File sessionFolder, String name) {
+    File target = new File(globalFolder(), name);
+    if (target.exists()) {
+      touch(target);
+      return;
+    }
+    globalFolder().mkdirs();
+    if (link(new File(sessionFolder, name), target)) {
+      promotions.incrementAndGet();
+    }
+  }
+
+  private void addFiles(List<File> files, File folder) {
+    File[] list = folder.listFiles((dir, name) -> isPartialMovie(name));
+    if (list != null) {
+      files.addAll(Arrays.asList(list));
+    }
+  }
+
+  private boolean link(File source, File target) {
+    if (!source.exists() || target.exists()) {
+      return false;
+    }
+    try {
+      Files.createLink(target.toPath(), source.toPath());
+      return true;
+    } catch (IOException | UnsupportedOperationException e) {
+      try {
+        Files.copy(source.toPath(), target.toPath());
+        return true;
+      } catch (IOException ex) {
+        log.warn("Failed to link {} to {}: {}", source, target, ex.getMessage());
+        return false;
+      }
+    }
+  }
+
+  private static void touch(File file) {
+    if (file.exists()) {
+      file.setLastModified(System.currentTimeMillis());
+    }
+  }
+
+  private File[] texFolders() {
+    return new File[] { new File(WorkDirUtils.workingMediaDir, "Tex"), new File(WorkDirUtils.workingMediaDir, "texts") };
+  }
+
+  private static int countNewer(File[] folders, long since) {
+    int count = 0;
+    for (File folder : folders) {
+      File[] files = folder.listFiles((dir, name) -> name.endsWith(".svg"));
+      if (files != null) {
+        for (File file : files) {
+          if (file.lastModified() >= since) {
+            count++;
+          }
+        }
+      }
+    }
+    return count;
+  }
+
+  /**
+   * 后台淘汰，一分钟内最多执行一次
+   */
+  public void evictAsync() {
+    long now = System.currentTimeMillis();
+    long last = lastEvict.get();
+    if (now - last < EVICT_INTERVAL_MILLIS || !lastEvict.compareAndSet(last, now)) {
+      return;
+    }
+    Thread.ofVirtual().name("manim-cache-evict").start(this::evict);
+  }
+
+  /**
+   * 每一级分别按最近使用时间淘汰，过期的会话整体删除
+   */
+  public void evict() {
+    long mb = 1024 * 1024;
+    long ttlMillis = EnvUtils.getLong("manim.cache.session.ttl.hours", 24L) * 60 * 60 * 1000;
+    long sessionMax = EnvUtils.getLong("manim.cache.session.max.mb", 512L) * mb;
+    File[] sessions = new File(CACHE_FOLDER, "sessions").listFiles(File::isDirectory);
+    if (sessions != null) {
+      long now = System.currentTimeMillis();
+      for (File session : sessions) {
+        if (now - newest(session) > ttlMillis) {
+          log.info("expire manim session cache:{}", session.getName());
+          FolderUtils.delete(session);
+          continue;
+        }
+        evict(new File[] { session }, sessionMax);
+      }
+    }
+    evict(new File[] { globalFolder() }, EnvUtils.getLong("manim.cache.global.max.mb", 2048L) * mb);
+    evict(texFolders(), EnvUtils.getLong("manim.cache.tex.max.mb", 512L) * mb);
+  }
+
+  private void evict(File[] folders, long maxBytes) {
+    List<File> files = new ArrayList<>();
+    long total = 0;
+    for (File folder : folders) {
+      File[] list = folder.listFiles(File::isFile);
+      if (list != null) {
+        for (File file : list) {
+          files.add(file);
+          total += file.length();
+        }
+      }
+    }
+    if (total <= maxBytes) {
+      return;
+    }
+    files.sort(Comparator.comparingLong(File::lastModified));
+    for (File file : files) {
+      if (total <= maxBytes) {
+        break;
+      }
+      long size = file.length();
+      if (file.delete()) {
+        total -= size;
+        evictions.incrementAndGet();
+      }
+    }
+  }
+
+  private static long newest(File folder) {
+    long newest = folder.lastModified();
+    File[] files = folder.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        newest = Math.max(newest, file.lastModified());
+      }
+    }
+    return newest;
+  }
+
+  public Kv stats() {
+    long hitCount = hits.get();
+    long missCount = misses.get();
+    long total = hitCount + missCount;
+    Kv kv = Kv.by("partial_hits", hitCount).set("partial_misses", missCount);
+    kv.set("partial_hit_ratio", total == 0 ? 0d : (double) hitCount / total);
+    kv.set("promotions", promotions.get()).set("evictions", evictions.get());
+    return kv;
+  }
+}
@@ -0,0 +1,383 @@
+package com.litongjava.kit.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import com.jfinal.kit.Kv;
+import com.litongjava.db.activerecord.Row;
+import com.litongjava.jfinal.aop.Aop;
+import com.litongjava.kit.utils.FfmpegUtils;
+import com.litongjava.kit.utils.FolderUtils;
+import com.litongjava.kit.utils.PptUtils;
+import com.litongjava.kit.vo.FinishArtifact;
+import com.litongjava.kit.vo.TimedProcessResult;
+import com.litongjava.media.NativeMedia;
+import com.litongjava.media.utils.VideoWaterUtils;
+import com.litongjava.tio.utils.commandline.ProcessResult;
+import com.litongjava.tio.utils.environment.EnvUtils;
+import com.litongjava.tio.utils.hutool.FileUtil;
+import com.litongjava.tio.utils.hutool.FilenameUtils;
+import com.litongjava.tio.utils.json.JsonUtils;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 生成会话的最终产物，按依赖关系并行执行:
+ *
+ * <pre>
+ * pptx      <- 场景截图
+ * mp4       <- 场景视频(增量合并)
+ * watermark <- mp4
+ * mp3       <- mp4 + 时长(不依赖水印)
+ * </pre>
+ *
+ * 每个产物完成后立即上传，状态可以通过 /manim/finish/status 查询
+ *
+ * finish.mode=single_pass 时使用增量合并好的 combined.ts 一次解码同时输出 mp4、水印 mp4 和 mp3，
+ * 不可用时(没有水印、场景参数不一致)回退到上面的方式
+ */
+@Slf4j
+public class ManimFinishService {
+
+  public static final String PPT = "ppt";
+  public static final String VIDEO = "video";
+  public static final String WATERMARK = "watermark";
+  public static final String AUDIO = "audio";
+
+  public static final String DAG = "dag";
+  public static final String SINGLE_PASS = "single_pass";
+
+  // 只保留最近的会话状态
+  private static final long STATE_TTL_MILLIS = 60 * 60 * 1000L;
+
+  private final Map<Long, FinishState> states = new ConcurrentHashMap<>();
+  private MediaExecutor mediaExecutor = Aop.get(MediaExecutor.class);
+  private UploadJobService uploadJobService = Aop.get(UploadJobService.class);
+  private CombinedVideoService combinedVideoService = Aop.get(CombinedVideoService.class);
+
+  public CompletableFuture<ProcessResult> finish(Long sessionId, String watermark, String storagePlatform) {
+    return finish(sessionId, watermark, storagePlatform, null);
+  }
+
+  /**
+   * @param mode dag 或 single_pass，为 null 时使用 finish.mode 配置
+   */
+  public CompletableFuture<ProcessResult> finish(Long sessionId, String watermark, String storagePlatform,
+      String mode) {
+    if (mode == null) {
+      mode = EnvUtils.get("finish.mode", DAG);
+    }
+    expire();
+    String scenesDir = FolderUtils.scenes(sessionId);
+    String combinedDir = FolderUtils.combined(sessionId);
+    File combinedFile = new File(combinedDir);
+    if (!combinedFile.exists()) {
+      combinedFile.mkdirs();
+    }
+
+    String outputPptPath = combinedDir + File.separator + "combined.pptx";
+    String combinedPath = "data/combined/" + sessionId;
+
+    FinishState state = new FinishState(sessionId, storagePlatform);
+    states.put(sessionId, state);
+    TimedProcessResult result = state.result;
+    long start = System.currentTimeMillis();
+
+    File videoDir = new File(scenesDir);
+    // 1. 图片所在目录
+    File[] imageFiles = videoDir.listFiles(f -> f.isFile() && FilenameUtils.isImageFile(f.getName()));
+    // 生成pptx
+    CompletableFuture<String> ppt = artifact(state, PPT, combinedPath + "/combined.pptx", result::setPpt, () -> {
+      PptUtils.addImage(imageFiles, outputPptPath);
+      return outputPptPath;
+    });
+
+    File[] mp4Files = videoDir.listFiles((dir, name) -> name.toLowerCase().endsWith(".mp4"));
+    CompletableFuture<Void> media;
+    if (SINGLE_PASS.equals(mode) && watermark != null && mp4Files != null && mp4Files.length > 0) {
+      media = singlePass(state, watermark, mp4Files).thenCompose(done -> {
+        if (done) {
+          return CompletableFuture.completedFuture(null);
+        }
+        log.info("single pass finish not available, fallback to dag:{}", sessionId);
+        return dag(state, watermark, mp4Files);
+      });
+    } else {
+      media = dag(state, watermark, mp4Files);
+    }
+
+    return CompletableFuture.allOf(ppt, media).handle((v, e) -> {
+      if (e != null) {
+        log.error("finish {} failed: {}", sessionId, e.getMessage(), e);
+      }
+      result.addTiming("total", System.currentTimeMillis() - start);
+      state.done = true;
+      return result;
+    });
+  }
+
+  /**
+   * 合并、水印、音频分别执行，水印和音频并行
+   */
+  private CompletableFuture<Void> dag(FinishState state, String watermark, File[] mp4Files) {
+    Long sessionId = state.sessionId;
+    TimedProcessResult result = state.result;
+    String combinedDir = FolderUtils.combined(sessionId);
+    String outputMp4Path = combinedDir + File.separator + "combined.mp4";
+    String outputWatermarkPath = combinedDir + File.separator + "combined_watermark.mp4";
+    String combinedPath = "data/combined/" + sessionId;
+
+    CompletableFuture<String> video;
+    if (mp4Files != null && mp4Files.length > 0) {
+      video = artifact(state, VIDEO, combinedPath + "/combined.mp4", result::setVideo,
+          () -> merge(sessionId, mp4Files, outputMp4Path) ? outputMp4Path : null);
+    } else {
+      state.skip(VIDEO);
+      video = CompletableFuture.completedFuture(null);
+    }
+
+    CompletableFuture<String> watermarked = video.thenCompose(mp4 -> {
+      if (mp4 == null || watermark == null) {
+        state.skip(WATERMARK);
+        return CompletableFuture.completedFuture(null);
+      }
+      return artifact(state, WATERMARK, combinedPath + "/combined_watermark.mp4", result::setOutput, () -> {
+        try {
+          VideoWaterUtils.addWatermark(mp4, outputWatermarkPath, 24, watermark);
+        } catch (IOException | InterruptedException e) {
+          throw new CompletionException(e);
+        }
+        return outputWatermarkPath;
+      });
+    });
+
+    CompletableFuture<String> audio = video.thenCompose(mp4 -> {
+      if (mp4 == null) {
+        state.skip(AUDIO);
+        return CompletableFuture.completedFuture(null);
+      }
+      return mediaExecutor.supply("video_length", result, () -> NativeMedia.getVideoLength(mp4))
+          .thenCompose(videoLength -> {
+            log.info("video_length:{} {}", mp4, videoLength);
+            result.setVideo_length(videoLength);
+            // 音频从未加水印的 mp4 中提取，与水印并行
+            // mp3 由 NativeMedia 写在 mp4 旁边，按实际文件名发布
+            return artifact(state, AUDIO, null, result::setAudio, () -> {
+              // 实验的结果
+              double delta = videoLength - 120d;
+              if (delta > 0) {
+                double insertion_silence_duration = delta / 100;
+                return NativeMedia.toMp3ForSilence(mp4, insertion_silence_duration);
+              }
+              return NativeMedia.toMp3(mp4);
+            });
+          });
+    });
+
+    return CompletableFuture.allOf(video, watermarked, audio);
+  }
+
+  /**
+   * 使用增量合并好的 combined.ts 一次解码生成 mp4、水印 mp4 和 mp3，返回 false 表示需要回退到 dag
+   */
+  private CompletableFuture<Boolean> singlePass(FinishState state, String watermark, File[] mp4Files) {
+    Long sessionId = state.sessionId;
+    TimedProcessResult result = state.result;
+    String combinedDir = FolderUtils.combined(sessionId);
+    String outputMp4Path = combinedDir + File.separator + "combined.mp4";
+    String outputWatermarkPath = combinedDir + File.separator + "combined_watermark.mp4";
+    String outputMp3Path = combinedDir + File.separator + "combined.mp3";
+    String combinedPath = "data/combined/" + sessionId;
+
+    for (String name : new String[] { VIDEO, WATERMARK, AUDIO }) {
+      state.artifacts.get(name).setStatus(FinishArtifact.RUNNING);
+    }
+    long start = System.currentTimeMillis();
+    return mediaExecutor.supply("single_pass", result, () -> {
+      try {
+        File combinedTs = combinedVideoService.prepare(sessionId, mp4Files);
+        if (combinedTs == null) {
+          return false;
+        }
+        double videoLength = combinedVideoService.duration(sessionId);
+        result.setVideo_length(videoLength);
+        // 需要插入静音时 mp3 单独从 combined.mp4 生成，只解码音频
+        boolean silence = videoLength - 120d > 0;
+
+        File watermarkFile = new File(combinedDir, "watermark.txt");
+        FileUtil.writeString(watermark, watermarkFile);
+        String font = EnvUtils.get("finish.watermark.font");
+        ProcessResult ffmpeg = FfmpegUtils.finishSinglePass(combinedTs.getPath(), outputMp4Path,
+            outputWatermarkPath, watermarkFile, font, 24, silence ? null : outputMp3Path);
+        if (ffmpeg.getExitCode() != 0) {
+          log.error("single pass finish failed {}: {}", sessionId, ffmpeg.getStdErr());
+          return false;
+        }
+
+        publish(state, VIDEO, outputMp4Path, combinedPath + "/combined.mp4", result::setVideo, start);
+        publish(state, WATERMARK, outputWatermarkPath, combinedPath + "/combined_watermark.mp4", result::setOutput,
+            start);
+        String mp3 = silence ? NativeMedia.toMp3ForSilence(outputMp4Path, (videoLength - 120d) / 100) : outputMp3Path;
+        String mp3Target = mp3 == null ? null : targetName(sessionId, mp3);
+        publish(state, AUDIO, mp3, mp3Target, result::setAudio, start);
+        return true;
+      } catch (IOException | InterruptedException e) {
+        log.error("single pass finish failed {}: {}", sessionId, e.getMessage(), e);
+        return false;
+      }
+    }).exceptionally(e -> {
+      log.error("single pass finish failed {}: {}", sessionId, e.getMessage(), e);
+      return false;
+    });
+  }
+
+  private boolean merge(Long sessionId, File[] mp4Files, String outputMp4Path) {
+    // 场景落地时已经增量拼接，这里只需要封装为 mp4
+    boolean merged = combinedVideoService.finish(sessionId, mp4Files, outputMp4Path);
+    log.info("finish incremental combined video:{}", merged);
+    if (!merged) {
+      Arrays.sort(mp4Files, Comparator.comparing(File::getName));
+      String[] mp4FileList = new String[mp4Files.length];
+      for (int i = 0; i < mp4Files.length; i++) {
+        mp4FileList[i] = mp4Files[i].getAbsolutePath();
+      }
+      log.info("merge:{}", JsonUtils.toJson(mp4FileList));
+      merged = NativeMedia.merge(mp4FileList, outputMp4Path);
+      log.info("merged:{}", merged);
+    }
+    return merged;
+  }
+
+  /**
+   * 生成一个产物并上传。producer 返回本地文件路径，返回 null 或文件不存在表示没有生成
+   *
+   * @param targetName 存储路径，为 null 时使用生成的文件名
+   * @param setter 先设置为存储路径(targetName)，同步上传成功后替换为远程地址
+   */
+  private CompletableFuture<String> artifact(FinishState state, String name, String targetName,
+      Consumer<String> setter, Supplier<String> producer) {
+    FinishArtifact artifact = state.artifacts.get(name);
+    artifact.setStatus(FinishArtifact.RUNNING);
+    long start = System.currentTimeMillis();
+    return mediaExecutor.supply(name, state.result, () -> {
+      String localPath = producer.get();
+      String target = targetName != null || localPath == null ? targetName : targetName(state.sessionId, localPath);
+      return publish(state, name, localPath, target, setter, start) ? localPath : null;
+    }).exceptionally(e -> {
+      Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+      log.error("finish artifact {} failed:{}", name, cause.getMessage(), cause);
+      artifact.setStatus(FinishArtifact.FAILED).setError(cause.getMessage());
+      return null;
+    });
+  }
+
+  /**
+   * data/combined/{sessionId} 下实际生成的文件对应的存储路径
+   */
+  private static String targetName(Long sessionId, String localPath) {
+    return "data/combined/" + sessionId + "/" + new File(localPath).getName();
+  }
+
+  /**
+   * 产物已在本地生成，更新状态并上传
+   */
+  private boolean publish(FinishState state, String name, String localPath, String targetName,
+      Consumer<String> setter, long start) {
+    FinishArtifact artifact = state.artifacts.get(name);
+    if (localPath == null || !new File(localPath).exists()) {
+      artifact.setStatus(FinishArtifact.FAILED).setMillis(System.currentTimeMillis() - start);
+      return false;
+    }
+    setter.accept(targetName);
+    artifact.setPath("/" + targetName).setMillis(System.currentTimeMillis() - start);
+    artifact.setStatus(FinishArtifact.READY);
+    log.info("finish artifact ready:{},{},{}ms", state.sessionId, name, artifact.getMillis());
+    upload(state, artifact, localPath, targetName, setter);
+    return true;
+  }
+
+  private void upload(FinishState state, FinishArtifact artifact, String localPath, String targetName,
+      Consumer<String> setter) {
+    String storagePlatform = state.storagePlatform;
+    if (storagePlatform == null) {
+      return;
+    }
+    if (uploadJobService.isAsync()) {
+      uploadJobService.submit(storagePlatform, String.valueOf(state.sessionId), localPath, targetName);
+      return;
+    }
+    long start = System.currentTimeMillis();
+    try {
+      String url = uploadJobService.uploadNow(storagePlatform, localPath, targetName);
+      artifact.setUrl(url);
+      setter.accept(url);
+    } catch (Exception e) {
+      log.error(e.getMessage(), e);
+    } finally {
+      state.result.addTiming("upload", System.currentTimeMillis() - start);
+    }
+  }
+
+  /**
+   * 每个产物的状态，异步上传时从上传队列中补充远程地址
+   */
+  public Kv status(Long sessionId) {
+    FinishState state = states.get(sessionId);
+    if (state == null) {
+      return null;
+    }
+    Map<String, String> urls = new LinkedHashMap<>();
+    if (state.storagePlatform != null && uploadJobService.isAsync()) {
+      for (Row job : uploadJobService.findByBizId(String.valueOf(sessionId))) {
+        if (job.getStr("url") != null) {
+          urls.put("/" + job.getStr("target_name"), job.getStr("url"));
+        }
+      }
+    }
+    Map<String, FinishArtifact> artifacts = new LinkedHashMap<>();
+    for (FinishArtifact artifact : state.artifacts.values()) {
+      if (artifact.getUrl() == null && artifact.getPath() != null && urls.containsKey(artifact.getPath())) {
+        artifact.setUrl(urls.get(artifact.getPath()));
+      }
+      artifacts.put(artifact.getName(), artifact);
+    }
+    Kv kv = Kv.by("session_id", String.valueOf(sessionId)).set("done", state.done);
+    kv.set("elapsed_ms", System.currentTimeMillis() - state.startTime).set("artifacts", artifacts);
+    return kv;
+  }
+
+  private void expire() {
+    long now = System.currentTimeMillis();
+    states.values().removeIf(state -> state.done && now - state.startTime > STATE_TTL_MILLIS);
+  }
+
+  private static class FinishState {
+    private final Long sessionId;
+    private final String storagePlatform;
+    private final long startTime = System.currentTimeMillis();
+    private final TimedProcessResult result = new TimedProcessResult();
+    private final Map<String, FinishArtifact> artifacts = new LinkedHashMap<>();
+    private volatile boolean done;
+
+    private FinishState(Long sessionId, String storagePlatform) {
+      this.sessionId = sessionId;
+      this.storagePlatform = storagePlatform;
+      for (String name : new String[] { PPT, VIDEO, WATERMARK, AUDIO }) {
+        artifacts.put(name, new FinishArtifact(name));
+      }
+    }
+
+    private void skip(String name) {
+      artifacts.get(name).setStatus(FinishArtifact.SKIPPED);
+    }
+  }
+}
@@ -4,8 +4,12 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 
+import com.litongjava.jfinal.aop.Aop;
+import com.litongjava.kit.service.RenderScheduler.RenderPermit;
+import com.litongjava.kit.vo.ProcessKind;
+import com.litongjava.kit.vo.RenderCacheEntry;
+import com.litongjava.kit.vo.RenderKind;
 import com.litongjava.tio.utils.commandline.ProcessResult;
-import com.litongjava.tio.utils.commandline.ProcessUtils;
 import com.litongjava.tio.utils.environment.EnvUtils;
 import com.litongjava.tio.utils.hutool.FileUtil;
 import com.litongjava.tio.utils.path.WorkDirUtils;
@@ -16,9 +20,35 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public class ManimImageCodeExecuteService {
 
+  private RenderCacheService renderCacheService = Aop.get(RenderCacheService.class);
+  private RenderScheduler renderScheduler = Aop.get(RenderScheduler.class);
+  private PreflightService preflightService = Aop.get(PreflightService.class);
+
   public ProcessResult executeCode(String code) throws IOException, InterruptedException {
     long id = SnowflakeIdUtils.id();
 
+    // 与视频一致在 acquire 之前预检，预检失败时不会成为缓存的 leader，相同请求不会一直等待
+    preflightService.verify(code, true);
+
+    String cacheKey = renderCacheService.imageKey(code);
+    RenderCacheEntry cached = renderCacheService.acquire(cacheKey);
+    if (cached != null) {
+      log.info("render cache hit:{},{}", id, cacheKey);
+      return fromCache(cached, id);
+    }
+
+    RenderCacheEntry entry = null;
+    try (RenderPermit permit = renderScheduler.acquire(RenderKind.IMAGE)) {
+      long start = System.currentTimeMillis();
+      ProcessResult execute = render(code, id);
+      entry = toCacheEntry(cacheKey, execute, System.currentTimeMillis() - start);
+      return execute;
+    } finally {
+      renderCacheService.complete(cacheKey, entry);
+    }
+  }
+
+  private ProcessResult render(String code, long id) throws IOException, InterruptedException {
     String folder = "scripts" + File.separator + id;
     File fileFolder = new File(folder);
     if (!fileFolder.exists()) {
@@ -49,6 +79,39 @@ public class ManimImageCodeExecuteService {
     return execute;
   }
 
+  private RenderCacheEntry toCacheEntry(String cacheKey, ProcessResult result, long renderMillis) {
+    RenderCacheEntry entry = new RenderCacheEntry();
+    entry.setKey(cacheKey).setExitCode(result.getExitCode()).setRenderMillis(renderMillis);
+    entry.setStdOut(result.getStdOut()).setStdErr(result.getStdErr());
+    String output = result.getOutput();
+    if (result.getExitCode() != 0 || output == null) {
+      // 失败的结果只分享给正在等待的请求，不写入磁盘
+      entry.setExitCode(result.getExitCode() != 0 ? result.getExitCode() : -1);
+      return entry;
+    }
+    File imageFile = new File(output.substring(1));
+    entry.setOutput(imageFile.getName());
+    renderCacheService.put(entry, imageFile);
+    return entry;
+  }
+
+  /**
+   * 与视频一致把缓存的图片链接到 media/images/{id}，缓存被淘汰后返回给客户端的地址仍然可用
+   */
+  private ProcessResult fromCache(RenderCacheEntry entry, long id) throws IOException {
+    ProcessResult result = new ProcessResult();
+    result.setTaskId(id);
+    result.setExitCode(entry.getExitCode());
+    result.setStdOut(entry.getStdOut());
+    result.setStdErr(entry.getStdErr());
+    if (entry.getOutput() != null) {
+      String filePath = "media" + File.separator + "images" + File.separator + id + File.separator + entry.getOutput();
+      renderCacheService.copyTo(entry.getKey(), entry.getOutput(), new File(filePath));
+      result.setOutput("/" + filePath.replace("\\", "/"));
+    }
+    return result;
+  }
+
   public static ProcessResult execute(String scriptPath, long taskId) throws IOException, InterruptedException {
     String osName = System.getProperty("os.name").toLowerCase();
     log.info("osName: {} scriptPath: {}", osName, scriptPath);
@@ -77,7 +140,7 @@ public class ManimImageCodeExecuteService {
     }
     pb.environment().put("TASK_ID", String.valueOf(taskId));
 
-    ProcessResult result = ProcessUtils.execute(scriptDir, taskId + "", pb, 120);
+    ProcessResult result = Aop.get(ProcessGovernor.class).execute(ProcessKind.MANIM, scriptDir, taskId + "", pb, 120);
 
     return result;
   }
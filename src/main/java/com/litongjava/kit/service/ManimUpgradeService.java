@@ -0,0 +1,208 @@
+package com.litongjava.kit.service;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.litongjava.jfinal.aop.Aop;
+import com.litongjava.kit.exception.RenderRejectedException;
+import com.litongjava.kit.vo.RenderKind;
+import com.litongjava.kit.vo.RenderUpgrade;
+import com.litongjava.kit.vo.VideoCodeInput;
+import com.litongjava.tio.utils.environment.EnvUtils;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 渐进式渲染的后台升级任务，按 code_id 登记，同一个场景只保留最新的一个
+ *
+ * <pre>
+ * render.progressive.enable=false           未传 progressive 参数时的默认值
+ * render.progressive.qualities=h,p,k        需要先出预览的画质
+ * render.progressive.preview.quality=l
+ * </pre>
+ */
+@Slf4j
+public class ManimUpgradeService {
+
+  // 只保留最近的升级状态
+  private static final long STATE_TTL_MILLIS = 60 * 60 * 1000L;
+
+  private final Map<Long, Upgrade> upgrades = new ConcurrentHashMap<>();
+  private final AtomicLong versions = new AtomicLong();
+
+  public boolean isProgressive(VideoCodeInput input) {
+    Boolean progressive = input.getProgressive();
+    if (progressive == null) {
+      progressive = EnvUtils.getBoolean("render.progressive.enable", false);
+    }
+    if (!progressive || input.getQuality() == null) {
+      return false;
+    }
+    if (!Aop.get(RenderScheduler.class).isEnabled(RenderKind.UPGRADE)) {
+      // 只有一个渲染槽位时后台升级会占住交互渲染，直接按目标画质渲染
+      return false;
+    }
+    List<String> qualities = Arrays.asList(EnvUtils.get("render.progressive.qualities", "h,p,k").split(","));
+    return qualities.contains(input.getQuality()) && !input.getQuality().equals(getPreviewQuality());
+  }
+
+  public String getPreviewQuality() {
+    return EnvUtils.get("render.progressive.preview.quality", "l");
+  }
+
+  /**
+   * 预览完成后调度高画质渲染，同一个场景正在进行的升级会被取消
+   */
+  public RenderUpgrade schedule(VideoCodeInput input) {
+    expire();
+    Long taskId = input.getTaskId();
+    RenderUpgrade upgrade = new RenderUpgrade();
+    upgrade.setSessionId(input.getSessionId()).setTaskId(taskId).setVersion(versions.incrementAndGet());
+    upgrade.setPreviewQuality(getPreviewQuality()).setQuality(input.getQuality());
+
+    Upgrade holder = new Upgrade(upgrade);
+    Upgrade previous = upgrades.put(taskId, holder);
+    if (previous != null) {
+      previous.cancel("superseded");
+    }
+    holder.thread = Thread.ofVirtual().name("render-upgrade-" + taskId).start(() -> run(holder, input));
+    log.info("schedule render upgrade:{},{},version:{}", taskId, input.getQuality(), upgrade.getVersion());
+    return upgrade;
+  }
+
+  private void run(Upgrade holder, VideoCodeInput input) {
+    RenderUpgrade upgrade = holder.upgrade;
+    try {
+      synchronized (holder) {
+        if (holder.cancelled) {
+          return;
+        }
+        upgrade.setStatus(RenderUpgrade.RUNNING);
+      }
+      Aop.get(ManimVideoCodeExecuteService.class).upgrade(input, upgrade);
+      synchronized (holder) {
+        if (!holder.cancelled && !upgrade.isDone()) {
+          // upgrade 内部没有提交，说明渲染失败
+          upgrade.setStatus(RenderUpgrade.FAILED);
+        }
+      }
+    } catch (InterruptedException e) {
+      log.info("render upgrade interrupted:{},version:{}", upgrade.getTaskId(), upgrade.getVersion());
+    } catch (RenderRejectedException e) {
+      fail(holder, e.getMessage());
+    } catch (Exception e) {
+      log.error("render upgrade {} failed:{}", upgrade.getTaskId(), e.getMessage(), e);
+      fail(holder, e.getMessage());
+    } finally {
+      holder.done.complete(upgrade);
+    }
+  }
+
+  private void fail(Upgrade holder, String error) {
+    synchronized (holder) {
+      if (!holder.cancelled) {
+        holder.upgrade.setStatus(RenderUpgrade.FAILED).setError(error);
+      }
+    }
+  }
+
+  /**
+   * 在未被取消的前提下执行替换，替换和取消互斥，保证旧版本不会覆盖新版本
+   *
+   * @return false 表示已被取消，调用方需要丢弃渲染结果
+   */
+  public boolean commit(RenderUpgrade upgrade, Runnable swap) {
+    Upgrade holder = upgrades.get(upgrade.getTaskId());
+    if (holder == null || holder.upgrade != upgrade) {
+      return false;
+    }
+    synchronized (holder) {
+      if (holder.cancelled) {
+        return false;
+      }
+      swap.run();
+      upgrade.setStatus(RenderUpgrade.READY).setReadyTime(System.currentTimeMillis());
+      log.info("render upgrade ready:{},{},version:{}", upgrade.getTaskId(), upgrade.getQuality(),
+          upgrade.getVersion());
+      return true;
+    }
+  }
+
+  public boolean isCancelled(RenderUpgrade upgrade) {
+    Upgrade holder = upgrades.get(upgrade.getTaskId());
+    return holder == null || holder.upgrade != upgrade || holder.cancelled;
+  }
+
+  /**
+   * 新版本的场景到达或者用户主动取消
+   */
+  public RenderUpgrade cancel(Long taskId, String reason) {
+    Upgrade holder = upgrades.get(taskId);
+    if (holder == null) {
+      return null;
+    }
+    holder.cancel(reason);
+    return holder.upgrade;
+  }
+
+  public RenderUpgrade get(Long taskId) {
+    Upgrade holder = upgrades.get(taskId);
+    return holder == null ? null : holder.upgrade;
+  }
+
+  /**
+   * 等待升级结束，超时返回当前状态
+   */
+  public RenderUpgrade await(Long taskId, long waitMillis) throws InterruptedException {
+    Upgrade holder = upgrades.get(taskId);
+    if (holder == null) {
+      return null;
+    }
+    if (waitMillis > 0) {
+      try {
+        holder.done.get(waitMillis, TimeUnit.MILLISECONDS);
+      } catch (ExecutionException | TimeoutException e) {
+        // 返回当前状态
+      }
+    }
+    return holder.upgrade;
+  }
+
+  private void expire() {
+    long now = System.currentTimeMillis();
+    upgrades.values().removeIf(h -> h.upgrade.isDone() && now - h.upgrade.getCreateTime() > STATE_TTL_MILLIS);
+  }
+
+  private static class Upgrade {
+    private final RenderUpgrade upgrade;
+    private final CompletableFuture<RenderUpgrade> done = new CompletableFuture<>();
+    private volatile Thread thread;
+    private boolean cancelled;
+
+    private Upgrade(RenderUpgrade upgrade) {
+      this.upgrade = upgrade;
+    }
+
+    private synchronized void cancel(String reason) {
+      if (cancelled || upgrade.isDone()) {
+        return;
+      }
+      cancelled = true;
+      upgrade.setStatus(RenderUpgrade.CANCELLED).setError(reason);
+      log.info("cancel render upgrade:{},version:{},{}", upgrade.getTaskId(), upgrade.getVersion(), reason);
+      Thread t = thread;
+      if (t != null) {
+        // 排队、渲染等待都会响应中断，渲染进程由 worker 负责结束
+        t.interrupt();
+      }
+      done.complete(upgrade);
+    }
+  }
+}
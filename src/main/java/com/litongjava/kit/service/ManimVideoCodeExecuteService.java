@@ -2,17 +2,44 @@ package com.litongjava.kit.service;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
-
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntConsumer;
+
+import com.jfinal.kit.Kv;
 import com.litongjava.jfinal.aop.Aop;
+import com.litongjava.kit.service.HlsAppendService.AppendSlot;
+import com.litongjava.kit.service.ProcessGovernor.ProcessLease;
+import com.litongjava.kit.service.RenderScheduler.RenderPermit;
+import com.litongjava.kit.service.RenderTaskService.RenderTask;
 import com.litongjava.kit.utils.FolderUtils;
+import com.litongjava.kit.utils.LogTailer;
+import com.litongjava.kit.utils.ManimSceneParser;
+import com.litongjava.kit.utils.RenderProgress;
 import com.litongjava.kit.vo.ManimVideoResult;
+import com.litongjava.kit.vo.ProcessKind;
+import com.litongjava.kit.vo.RenderCacheEntry;
+import com.litongjava.kit.vo.RenderKind;
+import com.litongjava.kit.vo.RenderUpgrade;
+import com.litongjava.kit.vo.TimedProcessResult;
 import com.litongjava.kit.vo.VideoCodeInput;
 import com.litongjava.media.NativeMedia;
 import com.litongjava.tio.boot.admin.services.storage.StorageUploadService;
@@ -20,7 +47,6 @@ import com.litongjava.tio.boot.admin.vo.UploadInput;
 import com.litongjava.tio.boot.admin.vo.UploadResultVo;
 import com.litongjava.tio.core.ChannelContext;
 import com.litongjava.tio.utils.commandline.ProcessResult;
-import com.litongjava.tio.utils.commandline.ProcessUtils;
 import com.litongjava.tio.utils.environment.EnvUtils;
 import com.litongjava.tio.utils.hutool.FileUtil;
 import com.litongjava.tio.utils.hutool.FilenameUtils;
@@ -31,42 +57,374 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public class ManimVideoCodeExecuteService {
   public static final String pdgp_filename = "pgdp-output.json";
+  public static final int FPS = 10;
+
+  private RenderCacheService renderCacheService = Aop.get(RenderCacheService.class);
+  private RenderScheduler renderScheduler = Aop.get(RenderScheduler.class);
+  private MediaExecutor mediaExecutor = Aop.get(MediaExecutor.class);
+  private UploadJobService uploadJobService = Aop.get(UploadJobService.class);
+  private CombinedVideoService combinedVideoService = Aop.get(CombinedVideoService.class);
+  private PreflightService preflightService = Aop.get(PreflightService.class);
+  private RenderTaskService renderTaskService = Aop.get(RenderTaskService.class);
+  private RenderMetrics renderMetrics = Aop.get(RenderMetrics.class);
+  private ManimUpgradeService upgradeService = Aop.get(ManimUpgradeService.class);
+  private ManimCacheService manimCacheService = Aop.get(ManimCacheService.class);
+  private TtsPrefetchService ttsPrefetchService = Aop.get(TtsPrefetchService.class);
+  private HlsAppendService hlsAppendService = Aop.get(HlsAppendService.class);
 
   public ProcessResult executeCode(VideoCodeInput input, ChannelContext channelContext)
       throws IOException, InterruptedException {
+    boolean stream = input.getStream() != null && input.getStream();
+    return executeCode(input, stream ? new RenderProgress(channelContext) : RenderProgress.NONE);
+  }
+
+  /**
+   * @param progress 渲染进度推送，最终结果和关闭连接由调用方负责
+   */
+  public ProcessResult executeCode(VideoCodeInput input, RenderProgress progress)
+      throws IOException, InterruptedException {
     Long sessionId = input.getSessionId();
     Long taskId = input.getTaskId();
     String code = input.getCode();
     String quality = input.getQuality();
-    int timeout = input.getTimeout();
-    Long sessionPrt = input.getSessionPrt();
-    String m3u8Path = input.getM3u8Path();
     String figure = input.getFigure();
 
-    String storagePlatform = input.getStoragePlatform();
-    String scriptSessionFolder = WorkDirUtils.workingScriptsDir() + File.separator + sessionId;
+    // 使用替换路径之前的代码计算缓存 key
+    String cacheKey = renderCacheService.videoKey(code, quality, figure);
+
+    // 新版本的场景到达，旧版本的后台升级不再需要
+    upgradeService.cancel(taskId, "new version");
+    // 有错误的脚本不进入渲染队列
+    preflightService.verify(code, true);
+    if (upgradeService.isProgressive(input) && !renderCacheService.contains(cacheKey)) {
+      return progressive(input, progress);
+    }
+
+    // 请求到达时按 seq 预留直播流中的位置，渲染失败或取消时释放
+    AppendSlot slot = input.getSessionPrt() == null ? null : hlsAppendService.reserve(sessionId, input.getSeq());
+    try {
+      return executeCode(input, progress, cacheKey, slot);
+    } finally {
+      hlsAppendService.release(slot);
+    }
+  }
+
+  private ProcessResult executeCode(VideoCodeInput input, RenderProgress progress, String cacheKey, AppendSlot slot)
+      throws IOException, InterruptedException {
+    Long sessionId = input.getSessionId();
+    Long taskId = input.getTaskId();
+    String code = input.getCode();
+    String quality = input.getQuality();
+
+    // 同一个 code_id 的新请求会取消这个请求，两者使用各自的脚本、进程标记和任务目录
+    RenderTask task = renderTaskService.current();
+    String taskName = task != null ? task.getName() : renderTaskService.attemptName(taskId + "");
+    String scriptPath = writeScript(input, taskName);
+    if (task != null) {
+      // 客户端断开或取消时按脚本路径找到 manim 进程
+      task.addMarker(scriptPath);
+    }
+
+    String dataHlsVideoDir = FolderUtils.hls(sessionId);
+    String dataMp4VideoDir = FolderUtils.scenes(sessionId);
+    File dataHlsVideoFolder = new File(dataHlsVideoDir);
+    if (!dataHlsVideoFolder.exists()) {
+      dataHlsVideoFolder.mkdirs();
+    }
+
+    File dataMp4VideoFolder = new File(dataMp4VideoDir);
+    if (!dataMp4VideoFolder.exists()) {
+      dataMp4VideoFolder.mkdirs();
+    }
+
+    long start = System.currentTimeMillis();
+    TimedProcessResult result = null;
+    RenderCacheEntry cached = renderCacheService.acquire(cacheKey);
+    if (cached != null) {
+      log.info("render cache hit:{},{}", taskId, cacheKey);
+      progress.event("cache_hit", Kv.by("task_id", taskId).set("key", cacheKey));
+      result = fromCache(cached, sessionId, taskId, dataHlsVideoDir, dataMp4VideoDir);
+      String videoFilePath = result.getVideo();
+      if (result.getExitCode() == 0 && videoFilePath != null) {
+        // 缓存中已经有时长和截图，只需要切片和上传
+        CompletableFuture<Void> hls = mediaExecutor.run("hls", result,
+            hlsTask(input, slot, result, videoFilePath, dataHlsVideoDir, progress));
+        CompletableFuture<Void> upload = mediaExecutor.run("upload", result,
+            uploadTask(input, result, videoFilePath, progress));
+        CompletableFuture<Void> combine = mediaExecutor.run("combine", result,
+            () -> combinedVideoService.addScene(sessionId, new File(videoFilePath)));
+        join(CompletableFuture.allOf(hls, upload, combine));
+      }
+
+    } else {
+      RenderCacheEntry entry = null;
+      boolean completed = false;
+      long renderStart = 0;
+      IntConsumer onQueued = position -> progress.event("queued", Kv.by("task_id", taskId).set("position", position)
+          .set("eta_seconds", renderScheduler.getEtaSeconds(RenderKind.VIDEO)));
+      // 已经是缓存的 leader，之后的任何异常都要在 finally 中 complete，否则相同的请求会一直等待
+      try {
+        // 语音合成是网络请求，和排队、渲染同时进行
+        ttsPrefetchService.prefetch(code);
+        try (RenderPermit permit = renderScheduler.acquire(RenderKind.VIDEO, onQueued)) {
+          progress.event("started", Kv.by("task_id", taskId).set("wait_ms", permit.getWaitMillis()));
+          renderStart = System.currentTimeMillis();
+          result = render(input, taskName, scriptPath, dataHlsVideoDir, dataMp4VideoDir, RenderKind.VIDEO,
+              progress);
+          result.addTiming("queue", permit.getWaitMillis());
+        }
+        // 被取消的渲染不再切片和上传
+        if (task != null && task.isCancelled()) {
+          result.addTiming("total", System.currentTimeMillis() - start);
+          renderMetrics.record(quality, RenderMetrics.CANCELLED, result);
+          task.checkCancelled();
+        }
+
+        String videoFilePath = result.getVideo();
+        if (result.getExitCode() == 0 && videoFilePath != null) {
+          // 视频移动完成后，切片、增量合并与探测时长、截取最后一帧并行；上传依赖最后一帧
+          TimedProcessResult r = result;
+          CompletableFuture<Void> hls = mediaExecutor.run("hls", r,
+              hlsTask(input, slot, r, videoFilePath, dataHlsVideoDir, progress));
+          CompletableFuture<Void> combine = mediaExecutor.run("combine", r,
+              () -> combinedVideoService.addScene(sessionId, new File(videoFilePath)));
+          CompletableFuture<Void> probe = CompletableFuture.allOf(
+              mediaExecutor.run("video_length", r, () -> videoLength(r, videoFilePath, progress)),
+              mediaExecutor.run("last_frame", r, () -> lastFrame(r, videoFilePath, progress)));
+          join(probe);
+
+          entry = toCacheEntry(cacheKey, result, System.currentTimeMillis() - renderStart);
+          renderCacheService.complete(cacheKey, entry);
+          completed = true;
+
+          CompletableFuture<Void> upload = mediaExecutor.run("upload", r,
+              uploadTask(input, r, videoFilePath, progress));
+          join(CompletableFuture.allOf(hls, upload, combine));
+        } else {
+          entry = toCacheEntry(cacheKey, result, System.currentTimeMillis() - renderStart);
+        }
+      } finally {
+        if (!completed) {
+          renderCacheService.complete(cacheKey, entry);
+        }
+      }
+    }
+    result.addTiming("total", System.currentTimeMillis() - start);
+    String outcome = result.getExitCode() != 0 ? RenderMetrics.ERROR
+        : cached != null ? RenderMetrics.CACHE_HIT : RenderMetrics.OK;
+    renderMetrics.record(quality, outcome, result);
+    return result;
+  }
+
+  /**
+   * 先渲染低画质预览并走完切片、上传、合并流程，再在后台渲染请求的画质
+   */
+  private ProcessResult progressive(VideoCodeInput input, RenderProgress progress)
+      throws IOException, InterruptedException {
+    Long taskId = input.getTaskId();
+    String previewQuality = upgradeService.getPreviewQuality();
+    VideoCodeInput preview = new VideoCodeInput(input.getSessionId(), taskId, input.getCode(), previewQuality,
+        input.getTimeout(), input.getStream(), input.getSessionPrt(), input.getM3u8Path(), input.getFigure(),
+        input.getStoragePlatform());
+    preview.setProgressive(false);
+    preview.setSeq(input.getSeq());
+    progress.event("preview", Kv.by("task_id", taskId).set("quality", previewQuality).set("target_quality",
+        input.getQuality()));
+
+    TimedProcessResult result = TimedProcessResult.from(executeCode(preview, progress));
+    if (result.getExitCode() == 0 && result.getOutput() != null) {
+      RenderUpgrade upgrade = upgradeService.schedule(input);
+      result.setUpgrade(upgrade);
+      progress.event("upgrade_scheduled", upgrade);
+    }
+    return result;
+  }
+
+  /**
+   * 后台渲染高画质版本，渲染到暂存目录，完成后在未被取消的前提下一次性替换场景文件、截图和 HLS
+   */
+  public void upgrade(VideoCodeInput input, RenderUpgrade upgrade) throws IOException, InterruptedException {
+    Long sessionId = input.getSessionId();
+    Long taskId = input.getTaskId();
+    String quality = upgrade.getQuality();
+    String cacheKey = renderCacheService.videoKey(input.getCode(), quality, input.getFigure());
+
+    File stagingDir = new File(FolderUtils.upgrade(sessionId, taskId));
+    FolderUtils.delete(stagingDir);
+    stagingDir.mkdirs();
+    String staging = stagingDir.getPath();
+    try {
+      TimedProcessResult result = null;
+      RenderCacheEntry cached = renderCacheService.acquire(cacheKey);
+      if (cached != null) {
+        result = fromCache(cached, sessionId, taskId, staging, staging);
+      } else {
+        RenderCacheEntry entry = null;
+        boolean completed = false;
+        try {
+          String taskName = taskId + "_" + quality + "_" + upgrade.getVersion();
+          String scriptPath = writeScript(input, taskName);
+          long renderStart;
+          try (RenderPermit permit = renderScheduler.acquire(RenderKind.UPGRADE)) {
+            renderStart = System.currentTimeMillis();
+            result = render(input, taskName, scriptPath, staging, staging, RenderKind.UPGRADE, RenderProgress.NONE);
+          }
+          String videoFilePath = result.getVideo();
+          if (result.getExitCode() == 0 && videoFilePath != null) {
+            TimedProcessResult r = result;
+            join(CompletableFuture.allOf(
+                mediaExecutor.run("video_length", r, () -> videoLength(r, videoFilePath, RenderProgress.NONE)),
+                mediaExecutor.run("last_frame", r, () -> lastFrame(r, videoFilePath, RenderProgress.NONE))));
+          }
+          entry = toCacheEntry(cacheKey, result, System.currentTimeMillis() - renderStart);
+          renderCacheService.complete(cacheKey, entry);
+          completed = true;
+        } finally {
+          if (!completed) {
+            renderCacheService.complete(cacheKey, entry);
+          }
+        }
+      }
+
+      if (result.getExitCode() != 0 || result.getVideo() == null) {
+        upgrade.setError("render failed, exit code:" + result.getExitCode());
+        return;
+      }
+      if (upgradeService.isCancelled(upgrade)) {
+        return;
+      }
+
+      String stagedVideo = result.getVideo();
+      String videoFilename = new File(stagedVideo).getName();
+      String baseName = FilenameUtils.getBaseName(videoFilename);
+      String dataHlsVideoDir = FolderUtils.hls(sessionId);
+      String videoFilePath = FolderUtils.scenes(sessionId) + File.separator + videoFilename;
+
+      // 会话直播流只能追加，已经推送的预览分片保持不变；单个场景的播放列表切片完成后整体替换
+      File stagedM3u8 = null;
+      if (input.getSessionPrt() == null) {
+        String prefix = baseName + "_" + upgrade.getVersion();
+        stagedM3u8 = new File(dataHlsVideoDir, prefix + ".m3u8");
+        NativeMedia.splitVideoToHLS(stagedM3u8.getPath(), stagedVideo,
+            dataHlsVideoDir + File.separator + prefix + "_%03d.ts", 10);
+      }
+
+      File m3u8 = stagedM3u8;
+      TimedProcessResult r = result;
+      boolean committed = upgradeService.commit(upgrade, () -> {
+        try {
+          swap(new File(stagedVideo), new File(videoFilePath));
+          File stagedJpg = new File(stagedVideo + ".jpg");
+          if (stagedJpg.exists()) {
+            swap(stagedJpg, new File(videoFilePath + ".jpg"));
+            upgrade.setImage((videoFilePath + ".jpg").replace("./", "/"));
+          }
+          if (r.getImages() != null) {
+            for (String image : r.getImages()) {
+              File stagedImage = new File(image);
+              swap(stagedImage, new File(dataHlsVideoDir, stagedImage.getName()));
+            }
+          }
+          if (m3u8 != null) {
+            swap(m3u8, new File(dataHlsVideoDir, baseName + ".m3u8"));
+            upgrade.setHlsUrl(FolderUtils.httpM3u8(sessionId, baseName + ".m3u8"));
+          }
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+        upgrade.setOutput(FolderUtils.httpScenes(sessionId, videoFilename)).setVideoLength(r.getVideo_length());
+      });
+      if (!committed) {
+        if (m3u8 != null) {
+          m3u8.delete();
+        }
+        return;
+      }
+
+      combinedVideoService.addScene(sessionId, new File(videoFilePath));
+      uploadTask(input, result, videoFilePath, RenderProgress.NONE).run();
+    } finally {
+      FolderUtils.delete(stagingDir);
+    }
+  }
+
+  private static void swap(File source, File target) throws IOException {
+    Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * 写入脚本和图表数据，返回脚本路径。脚本文件名决定了 manim 的输出目录
+   */
+  private String writeScript(VideoCodeInput input, String name) {
+    String scriptSessionFolder = WorkDirUtils.workingScriptsDir() + File.separator + input.getSessionId();
     File scriptDir = new File(scriptSessionFolder);
     if (!scriptDir.exists()) {
       scriptDir.mkdirs();
     }
 
     String figurePath = scriptSessionFolder + File.separator + pdgp_filename;
-    code = code.replace(pdgp_filename, figurePath);
+    String code = input.getCode().replace(pdgp_filename, figurePath);
+    String figure = input.getFigure();
     if (figure != null) {
       FileUtil.writeString(figure, figurePath, StandardCharsets.UTF_8.toString());
       log.info("write figure json to :{}", figurePath);
     }
 
-    String scriptPath = scriptSessionFolder + File.separator + taskId + ".py";
+    String scriptPath = scriptSessionFolder + File.separator + name + ".py";
     FileUtil.writeString(code, scriptPath, StandardCharsets.UTF_8.toString());
+    return scriptPath;
+  }
 
-    List<String> videoFolders = buildVideoFolder(WorkDirUtils.workingMediaDir, taskId.toString());
+  private static void join(CompletableFuture<Void> future) throws IOException {
+    try {
+      future.join();
+    } catch (CompletionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
 
-    // 执行脚本
-    ProcessResult result = execute(scriptPath, taskId + "", timeout, quality);
+  /**
+   * 执行 manim 并把生成的视频移动到 data/scenes/{sessionId}
+   */
+  private TimedProcessResult render(VideoCodeInput input, String taskName, String scriptPath, String dataHlsVideoDir,
+      String dataMp4VideoDir, RenderKind kind, RenderProgress progress) throws IOException, InterruptedException {
+    File taskMediaDir = new File(FolderUtils.taskMedia(WorkDirUtils.workingMediaDir, taskName));
+    try {
+      return render(input, taskName, scriptPath, dataHlsVideoDir, dataMp4VideoDir, taskMediaDir, kind, progress);
+    } finally {
+      // 视频已经移动到 data/scenes，任务目录只剩下中间文件
+      if (!EnvUtils.getBoolean("manim.task.media.keep", false)) {
+        FolderUtils.delete(taskMediaDir);
+      }
+    }
+  }
+
+  private TimedProcessResult render(VideoCodeInput input, String taskName, String scriptPath, String dataHlsVideoDir,
+      String dataMp4VideoDir, File taskMediaDir, RenderKind kind, RenderProgress progress)
+      throws IOException, InterruptedException {
+    Long taskId = input.getTaskId();
+    String quality = input.getQuality();
+    int timeout = input.getTimeout();
+
+    // 执行脚本，多个场景时每个场景单独渲染
+    long renderStart = System.currentTimeMillis();
+    List<String> sceneNames = ManimSceneParser.parse(FileUtil.readString(new File(scriptPath)));
+    List<String> scenes = parallelScenes(sceneNames);
+    Set<String> seeded = manimCacheService.seed(input.getSessionId(), taskMediaDir, sceneNames);
+    TimedProcessResult result = TimedProcessResult.from(scenes == null
+        ? execute(scriptPath, taskName, timeout, quality, taskMediaDir, progress)
+        : executeScenes(scriptPath, taskName, timeout, quality, taskMediaDir, progress, scenes, kind));
     result.setTaskId(taskId);
+    Kv cacheStats = manimCacheService.harvest(input.getSessionId(), taskMediaDir, seeded, renderStart);
+    result.setManimCache(cacheStats);
+    progress.event("manim_cache", cacheStats.set("task_id", taskId));
+    result.addTiming("render", System.currentTimeMillis() - renderStart);
     // 读取文字
-    String textPath = WorkDirUtils.workingMediaDir + File.separator + "tts_text" + File.separator + taskId + ".txt";
+    String textPath = WorkDirUtils.workingMediaDir + File.separator + "tts_text" + File.separator + taskName + ".txt";
     File scriptFile = new File(textPath);
     if (scriptFile.exists()) {
       String text = FileUtil.readString(scriptFile);
@@ -74,7 +432,7 @@ public class ManimVideoCodeExecuteService {
     }
 
     // 读取字幕
-    String subtitlePath = WorkDirUtils.workingMediaDir + File.separator + "tts_subtitle" + File.separator + taskId
+    String subtitlePath = WorkDirUtils.workingMediaDir + File.separator + "tts_subtitle" + File.separator + taskName
         + ".vtt";
     File subtitleFile = new File(subtitlePath);
     if (subtitleFile.exists()) {
@@ -85,127 +443,279 @@ public class ManimVideoCodeExecuteService {
     int exitCode = result.getExitCode();
     log.info("exitCode:{},{}", taskId, exitCode);
     boolean success = exitCode == 0;
+    progress.event("render_done", Kv.by("task_id", taskId).set("exit_code", exitCode));
 
     if (success) {
-      String dataHlsVideoDir = FolderUtils.hls(sessionId);
-      String dataMp4VideoDir = FolderUtils.scenes(sessionId);
-      File dataHlsVideoFolder = new File(dataHlsVideoDir);
-      if (!dataHlsVideoFolder.exists()) {
-        dataHlsVideoFolder.mkdirs();
-      }
-
-      File dataMp4VideoFolder = new File(dataMp4VideoDir);
-      if (!dataMp4VideoFolder.exists()) {
-        dataMp4VideoFolder.mkdirs();
-      }
-
-      boolean found = false;
-      for (String videoFolder : videoFolders) {
-        File videoDir = new File(videoFolder);
-        if (!videoDir.exists()) {
-          continue;
-        }
-        found = true;
-        File[] mp4Files = videoDir.listFiles((dir, name) -> name.toLowerCase().endsWith(".mp4"));
-
-        ManimVideoResult manimVideoResult = buildVideoFilePath(result, dataHlsVideoDir, videoFolder, mp4Files);
+      long discoverStart = System.currentTimeMillis();
+      File videoDir = findVideoFolder(taskMediaDir, taskName, quality);
+      File[] mp4Files = videoDir == null ? null
+          : videoDir.listFiles((dir, name) -> name.toLowerCase().endsWith(".mp4"));
+      result.addTiming("discover", System.currentTimeMillis() - discoverStart);
+      if (mp4Files != null && mp4Files.length > 0) {
+        String videoFolder = videoDir.getPath();
+        ManimVideoResult manimVideoResult = buildVideoFilePath(result, dataHlsVideoDir, videoFolder, mp4Files, scenes);
         String videoFilePath = manimVideoResult.videoFilePath;
 
         File videoFile = new File(videoFilePath);
         if (videoFile.exists()) {
           // 移动到mp4目录
           String videoFilename = videoFile.getName();
-          String baseName = FilenameUtils.getBaseName(videoFilename);
           String tagetVideoFilePath = dataMp4VideoDir + File.separator + videoFilename;
           File targetVideoFile = new File(tagetVideoFilePath);
+          long moveStart = System.currentTimeMillis();
           Files.move(videoFile.toPath(), targetVideoFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+          result.addTiming("move", System.currentTimeMillis() - moveStart);
 
           videoFilePath = tagetVideoFilePath;
           result.setVideo(tagetVideoFilePath);
-          result.setOutput(FolderUtils.httpScenes(sessionId, videoFilename));
+          result.setOutput(FolderUtils.httpScenes(input.getSessionId(), videoFilename));
 
           log.info("move to {}", videoFilePath);
-          // 获取音频时长
-          double videoLength = NativeMedia.getVideoLength(videoFilePath);
-          result.setVideo_length(videoLength);
+          progress.event("moved", Kv.by("task_id", taskId).set("output", result.getOutput()));
+        }
+      } else {
+        log.error("not found video:{},id:{}", taskMediaDir, taskId);
+      }
+    } else {
+      log.error("Failed to run task:{}", scriptPath);
+    }
+    return result;
+  }
 
-          log.info("video length {} {}", videoFilePath, videoLength);
+  private void videoLength(ProcessResult result, String videoFilePath, RenderProgress progress) {
+    // 获取音频时长
+    double videoLength = NativeMedia.getVideoLength(videoFilePath);
+    result.setVideo_length(videoLength);
+    log.info("video length {} {}", videoFilePath, videoLength);
+    progress.event("video_length", Kv.by("task_id", result.getTaskId()).set("video_length", videoLength));
+  }
 
-          // 获取最后一帧的图片
-          String outputJpgPath = dataMp4VideoDir + "/" + videoFile.getName() + ".jpg";
-          int saveExitCode = NativeMedia.saveLastFrame(tagetVideoFilePath, outputJpgPath);
-          if (saveExitCode == 0) {
-            result.setImage(outputJpgPath.replace("./", "/"));
-          }
+  private void lastFrame(ProcessResult result, String videoFilePath, RenderProgress progress) {
+    // 获取最后一帧的图片
+    String outputJpgPath = videoFilePath + ".jpg";
+    int saveExitCode = NativeMedia.saveLastFrame(videoFilePath, outputJpgPath);
+    if (saveExitCode == 0) {
+      result.setImage(outputJpgPath.replace("./", "/"));
+      progress.event("last_frame", Kv.by("task_id", result.getTaskId()).set("image", result.getImage()));
+    }
+  }
 
-          if (storagePlatform != null) {
-            String mp4Folder = "data/scenes/" + sessionId;
-            String targetName = mp4Folder + "/" + videoFilename;
-            List<UploadInput> uploadFile = new ArrayList<>();
-            uploadFile.add(new UploadInput(tagetVideoFilePath, targetName));
-            uploadFile.add(new UploadInput(outputJpgPath, mp4Folder + "/" + baseName + ".jpg"));
+  /**
+   * 上传到存储平台，默认放入后台上传队列
+   */
+  private Runnable uploadTask(VideoCodeInput input, ProcessResult result, String videoFilePath,
+      RenderProgress progress) {
+    return () -> {
+      Long sessionId = input.getSessionId();
+      String storagePlatform = input.getStoragePlatform();
+      if (storagePlatform == null) {
+        return;
+      }
+      String videoFilename = new File(videoFilePath).getName();
+      String baseName = FilenameUtils.getBaseName(videoFilename);
+      String mp4Folder = "data/scenes/" + sessionId;
+      String targetName = mp4Folder + "/" + videoFilename;
+      String outputJpgPath = videoFilePath + ".jpg";
+      if (uploadJobService.isAsync()) {
+        // 先返回本地地址，远程地址通过 /upload/status?biz_id={task_id} 查询
+        String bizId = String.valueOf(input.getTaskId());
+        uploadJobService.submit(storagePlatform, bizId, videoFilePath, targetName);
+        if (new File(outputJpgPath).exists()) {
+          uploadJobService.submit(storagePlatform, bizId, outputJpgPath, mp4Folder + "/" + baseName + ".jpg");
+        }
+        progress.event("upload_queued", Kv.by("task_id", input.getTaskId()).set("biz_id", bizId));
+        return;
+      }
+      List<UploadInput> uploadFile = new ArrayList<>();
+      uploadFile.add(new UploadInput(videoFilePath, targetName));
+      uploadFile.add(new UploadInput(outputJpgPath, mp4Folder + "/" + baseName + ".jpg"));
+
+      try {
+        List<UploadResultVo> uploadFileList = Aop.get(StorageUploadService.class).uploadFile(storagePlatform,
+            uploadFile);
+        if (uploadFileList.size() > 1) {
+          result.setVideo(uploadFileList.get(0).getUrl());
+          result.setImage(uploadFileList.get(1).getUrl());
+        }
+        progress.event("upload_done", Kv.by("task_id", input.getTaskId()).set("video", result.getVideo())
+            .set("image", result.getImage()));
 
-            try {
-              List<UploadResultVo> uploadFileList = Aop.get(StorageUploadService.class).uploadFile(storagePlatform,
-                  uploadFile);
-              if (uploadFileList.size() > 1) {
-                result.setVideo(uploadFileList.get(0).getUrl());
-                result.setImage(uploadFileList.get(1).getUrl());
-              }
-
-            } catch (Exception e) {
-              log.error(e.getMessage(), e);
-            }
+      } catch (Exception e) {
+        log.error(e.getMessage(), e);
+      }
+    };
+  }
 
-          }
-          if (sessionPrt != null) {
-            log.info("merge {} into {}", videoFilePath, m3u8Path);
-            String appendVideoSegmentToHls = NativeMedia.appendVideoSegmentToHls(sessionPrt, videoFilePath);
-            log.info("merge result:{}", appendVideoSegmentToHls);
-          } else {
-            log.info("skip merge to hls:{}", videoFilePath);
-            String dataM3u8Path = dataHlsVideoDir + File.separator + baseName + ".m3u8";
-            log.info("to hls:{}", dataM3u8Path);
-            NativeMedia.splitVideoToHLS(dataM3u8Path, tagetVideoFilePath,
-                dataHlsVideoDir + File.separator + "part_%03d.ts", 10);
-
-            String hlsUrl = FolderUtils.httpM3u8(sessionId, baseName + ".m3u8");
-            result.setHlsUrl(hlsUrl);
-          }
-          break;
+  /**
+   * 写入 hls
+   */
+  private Runnable hlsTask(VideoCodeInput input, AppendSlot slot, ProcessResult result, String videoFilePath,
+      String dataHlsVideoDir, RenderProgress progress) {
+    return () -> {
+      Long sessionId = input.getSessionId();
+      String m3u8Path = input.getM3u8Path();
+      // 由会话的追加队列按顺序写入，会话已经结束时单独切片
+      String appendVideoSegmentToHls = null;
+      if (slot != null) {
+        log.info("merge {} into {},seq:{}", videoFilePath, m3u8Path, slot.getSeq());
+        CompletableFuture<String> appended = hlsAppendService.submit(slot, videoFilePath);
+        try {
+          appendVideoSegmentToHls = appended.get(hlsAppendService.getWaitMillis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+          // 前面的场景还在渲染，追加在后台完成
+          progress.event("hls_queued", Kv.by("task_id", input.getTaskId()).set("hls_url", m3u8Path)
+              .set("seq", slot.getSeq()));
+          return;
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        } catch (ExecutionException e) {
+          log.error("merge failed:{}", e.getMessage());
         }
+        log.info("merge result:{}", appendVideoSegmentToHls);
       }
-      if (!found) {
-        log.error("not found video:{},id:{}", WorkDirUtils.workingMediaDir, taskId);
+      if (appendVideoSegmentToHls != null) {
+        progress.event("hls_appended", Kv.by("task_id", input.getTaskId()).set("hls_url", m3u8Path)
+            .set("message", appendVideoSegmentToHls));
+      } else {
+        log.info("skip merge to hls:{}", videoFilePath);
+        String baseName = FilenameUtils.getBaseName(new File(videoFilePath).getName());
+        String dataM3u8Path = dataHlsVideoDir + File.separator + baseName + ".m3u8";
+        log.info("to hls:{}", dataM3u8Path);
+        NativeMedia.splitVideoToHLS(dataM3u8Path, videoFilePath, dataHlsVideoDir + File.separator + "part_%03d.ts",
+            10);
+
+        String hlsUrl = FolderUtils.httpM3u8(sessionId, baseName + ".m3u8");
+        result.setHlsUrl(hlsUrl);
+        progress.event("hls_appended", Kv.by("task_id", input.getTaskId()).set("hls_url", hlsUrl));
       }
-    } else {
-      log.error("Failed to run task:{}", scriptPath);
+    };
+  }
+
+  private RenderCacheEntry toCacheEntry(String cacheKey, ProcessResult result, long renderMillis) {
+    RenderCacheEntry entry = new RenderCacheEntry();
+    entry.setKey(cacheKey).setExitCode(result.getExitCode());
+    entry.setStdOut(result.getStdOut()).setStdErr(result.getStdErr());
+    entry.setText(result.getText()).setSubtitle(result.getSubtitle());
+    entry.setRenderMillis(renderMillis);
+    if (result.getExitCode() != 0 || result.getVideo() == null) {
+      // 失败的结果只分享给正在等待的请求，不写入磁盘
+      entry.setExitCode(result.getExitCode() != 0 ? result.getExitCode() : -1);
+      return entry;
+    }
+
+    File videoFile = new File(result.getVideo());
+    File imageFile = new File(result.getVideo() + ".jpg");
+    entry.setVideo(videoFile.getName());
+    entry.setVideoLength(result.getVideo_length());
+    if (imageFile.exists()) {
+      entry.setImage(imageFile.getName());
+    }
+
+    List<File> files = new ArrayList<>();
+    files.add(videoFile);
+    files.add(imageFile);
+    List<String> images = result.getImages();
+    if (images != null) {
+      List<String> imageNames = new ArrayList<>(images.size());
+      for (String image : images) {
+        File file = new File(image);
+        imageNames.add(file.getName());
+        files.add(file);
+      }
+      entry.setImages(imageNames);
+    }
+    renderCacheService.put(entry, files.toArray(new File[0]));
+    return entry;
+  }
+
+  private TimedProcessResult fromCache(RenderCacheEntry entry, Long sessionId, Long taskId, String dataHlsVideoDir,
+      String dataMp4VideoDir) throws IOException {
+    TimedProcessResult result = new TimedProcessResult();
+    result.setTaskId(taskId);
+    result.setExitCode(entry.getExitCode());
+    result.setStdOut(entry.getStdOut());
+    result.setStdErr(entry.getStdErr());
+    result.setText(entry.getText());
+    result.setSubtitle(entry.getSubtitle());
+    if (entry.getExitCode() != 0 || entry.getVideo() == null) {
+      return result;
+    }
+
+    String key = entry.getKey();
+    String videoFilename = entry.getVideo();
+    String tagetVideoFilePath = dataMp4VideoDir + File.separator + videoFilename;
+    renderCacheService.copyTo(key, videoFilename, new File(tagetVideoFilePath));
+    result.setVideo(tagetVideoFilePath);
+    result.setOutput(FolderUtils.httpScenes(sessionId, videoFilename));
+    if (entry.getVideoLength() != null) {
+      result.setVideo_length(entry.getVideoLength());
+    }
+
+    if (entry.getImage() != null) {
+      String outputJpgPath = dataMp4VideoDir + "/" + entry.getImage();
+      renderCacheService.copyTo(key, entry.getImage(), new File(outputJpgPath));
+      result.setImage(outputJpgPath.replace("./", "/"));
+    }
+
+    if (entry.getImages() != null) {
+      List<String> imagesFilePaths = new ArrayList<>(entry.getImages().size());
+      for (String name : entry.getImages()) {
+        String outputJpgPath = dataHlsVideoDir + "/" + name;
+        renderCacheService.copyTo(key, name, new File(outputJpgPath));
+        imagesFilePaths.add(outputJpgPath.replace("./", "/"));
+      }
+      result.setImages(imagesFilePaths);
     }
     return result;
   }
 
-  private ManimVideoResult buildVideoFilePath(ProcessResult result, String dataHlsVideoDir, String videoFolder,
-      File[] mp4Files) {
+  /**
+   * @param scenes 并行渲染时的场景顺序(源码顺序)，为 null 时按文件名排序
+   */
+  private ManimVideoResult buildVideoFilePath(TimedProcessResult result, String dataHlsVideoDir, String videoFolder,
+      File[] mp4Files, List<String> scenes) throws IOException {
     String videoFilePath = null;
     String audoFilePath = null;
     if (mp4Files.length > 1) {
-      Arrays.sort(mp4Files, Comparator.comparing(File::getName));
+      Comparator<File> byName = Comparator.comparing(File::getName);
+      if (scenes != null) {
+        Comparator<File> bySource = Comparator.comparingInt(f -> {
+          int index = scenes.indexOf(FilenameUtils.getBaseName(f.getName()));
+          return index < 0 ? Integer.MAX_VALUE : index;
+        });
+        Arrays.sort(mp4Files, bySource.thenComparing(byName));
+      } else {
+        Arrays.sort(mp4Files, byName);
+      }
       String[] mp4FilePaths = new String[mp4Files.length];
-      List<String> imagesFilePaths = new ArrayList<>(mp4Files.length);
-
       for (int i = 0; i < mp4Files.length; i++) {
-        File mp4File = mp4Files[i];
-        String mp4Path = mp4File.getAbsolutePath();
+        mp4FilePaths[i] = mp4Files[i].getAbsolutePath();
+      }
+
+      // 每个场景的最后一帧和合并互不依赖，并行执行
+      List<CompletableFuture<String>> frames = new ArrayList<>(mp4Files.length);
+      for (File mp4File : mp4Files) {
         String outputJpgPath = dataHlsVideoDir + "/" + mp4File.getName() + ".jpg";
-        int saveExitCode = NativeMedia.saveLastFrame(mp4Path, outputJpgPath);
-        if (saveExitCode == 0) {
+        frames.add(mediaExecutor.supply("scene_frames", result,
+            () -> NativeMedia.saveLastFrame(mp4File.getAbsolutePath(), outputJpgPath) == 0 ? outputJpgPath : null));
+      }
+      String combinedFilePath = videoFolder + File.separator + "CombinedScene.mp4";
+      CompletableFuture<Void> merge = mediaExecutor.run("merge", result,
+          () -> NativeMedia.merge(mp4FilePaths, combinedFilePath));
+      List<CompletableFuture<?>> all = new ArrayList<>(frames);
+      all.add(merge);
+      join(CompletableFuture.allOf(all.toArray(new CompletableFuture[0])));
+
+      List<String> imagesFilePaths = new ArrayList<>(mp4Files.length);
+      for (CompletableFuture<String> frame : frames) {
+        String outputJpgPath = frame.join();
+        if (outputJpgPath != null) {
           imagesFilePaths.add(outputJpgPath.replace("./", "/"));
         }
-        mp4FilePaths[i] = mp4Path;
       }
       result.setImages(imagesFilePaths);
-      videoFilePath = videoFolder + File.separator + "CombinedScene.mp4";
-      NativeMedia.merge(mp4FilePaths, videoFilePath);
+      videoFilePath = combinedFilePath;
     } else {
       // 必须返回相对路径
       String filename = mp4Files[0].getName();
@@ -217,33 +727,183 @@ public class ManimVideoCodeExecuteService {
     return new ManimVideoResult(videoFilePath, audoFilePath);
   }
 
-  private List<String> buildVideoFolder(String mediaDir, String scriptFileName) {
-    List<String> videoFolders = new ArrayList<>();
-    String videoDir = mediaDir + File.separator + "videos";
-    videoFolders.add(videoDir + File.separator + "480p30");
-    videoFolders.add(videoDir + File.separator + "480p15");
-    videoFolders.add(videoDir + File.separator + "480p10");
-    videoFolders.add(videoDir + File.separator + "720p30");
-    videoFolders.add(videoDir + File.separator + "720p15");
-    videoFolders.add(videoDir + File.separator + "720p10");
-    videoFolders.add(videoDir + File.separator + "1080p30");
-    videoFolders.add(videoDir + File.separator + "1080p15");
-    videoFolders.add(videoDir + File.separator + "1080p10");
-
-    videoFolders.add(videoDir + File.separator + scriptFileName + File.separator + "480p30");
-    videoFolders.add(videoDir + File.separator + scriptFileName + File.separator + "480p15");
-    videoFolders.add(videoDir + File.separator + scriptFileName + File.separator + "480p10");
-    videoFolders.add(videoDir + File.separator + scriptFileName + File.separator + "720p30");
-    videoFolders.add(videoDir + File.separator + scriptFileName + File.separator + "720p15");
-    videoFolders.add(videoDir + File.separator + scriptFileName + File.separator + "720p10");
-    videoFolders.add(videoDir + File.separator + scriptFileName + File.separator + "1080p30");
-    videoFolders.add(videoDir + File.separator + scriptFileName + File.separator + "1080p15");
-    videoFolders.add(videoDir + File.separator + scriptFileName + File.separator + "1080p10");
-    return videoFolders;
+  /**
+   * 任务使用独立的 media 目录，输出位置固定为 {media_dir}/videos/{module}/{height}p{fps}
+   */
+  private File findVideoFolder(File taskMediaDir, String moduleName, String quality) {
+    File moduleDir = new File(taskMediaDir, "videos" + File.separator + moduleName);
+    File videoDir = new File(moduleDir, pixelHeight(quality) + "p" + FPS);
+    if (videoDir.exists()) {
+      return videoDir;
+    }
+    // 脚本内修改了分辨率或帧率时目录名不同，但任务目录下只会有一个
+    File[] dirs = moduleDir.listFiles(File::isDirectory);
+    if (dirs != null && dirs.length > 0) {
+      log.warn("unexpected video folder:{}", dirs[0]);
+      return dirs[0];
+    }
+    return null;
+  }
+
+  private static int pixelHeight(String quality) {
+    switch (quality) {
+    case "m":
+      return 720;
+    case "h":
+      return 1080;
+    case "p":
+      return 1440;
+    case "k":
+      return 2160;
+    default:
+      return 480;
+    }
+  }
+
+  /**
+   * 任务配置文件，Tex 和 Text 的渲染缓存与任务无关，继续放在共享目录。
+   * partial movie 放在固定位置便于从缓存中预先链接，数量由 ManimCacheService 管理，manim 不再自行清理
+   */
+  private static File writeTaskConfig(File mediaDir) {
+    if (!mediaDir.exists()) {
+      mediaDir.mkdirs();
+    }
+    String sharedMediaDir = new File(WorkDirUtils.workingMediaDir).getAbsolutePath();
+    StringBuilder cfg = new StringBuilder();
+    cfg.append("[CLI]\n");
+    cfg.append("tex_dir = ").append(sharedMediaDir).append(File.separator).append("Tex\n");
+    cfg.append("text_dir = ").append(sharedMediaDir).append(File.separator).append("texts\n");
+    File partialDir = ManimCacheService.partialFolder(mediaDir);
+    cfg.append("partial_movie_dir = ").append(partialDir.getAbsolutePath()).append(File.separator)
+        .append("{scene_name}\n");
+    cfg.append("max_files_cached = -1\n");
+    File file = new File(mediaDir, "manim.cfg");
+    FileUtil.writeString(cfg.toString(), file);
+    return file;
+  }
+
+  /**
+   * 脚本中有多个 Scene 时返回源码顺序的场景列表，否则返回 null 使用 manim -a
+   */
+  private List<String> parallelScenes(List<String> scenes) {
+    if (!EnvUtils.getBoolean("manim.scene.parallel.enable", true)) {
+      return null;
+    }
+    return scenes.size() > 1 ? scenes : null;
+  }
+
+  /**
+   * 每个场景单独执行 manim，并行度 = 任务自身的槽位 + 当前可以借用的空闲槽位。
+   * 某个场景失败后不再启动新的场景
+   */
+  private ProcessResult executeScenes(String scriptPath, String taskName, int timeout, String quality, File mediaDir,
+      RenderProgress progress, List<String> scenes, RenderKind kind) throws IOException, InterruptedException {
+    int cpus = Runtime.getRuntime().availableProcessors();
+    int max = Math.min(scenes.size(), EnvUtils.getInt("manim.scene.parallel.max", cpus));
+    List<RenderPermit> borrowed = new ArrayList<>();
+    try {
+      while (borrowed.size() + 1 < max) {
+        RenderPermit permit = renderScheduler.tryAcquire(kind);
+        if (permit == null) {
+          break;
+        }
+        borrowed.add(permit);
+      }
+      int parallelism = borrowed.size() + 1;
+      log.info("render {} scenes of {} with parallelism {}", scenes.size(), taskName, parallelism);
+      progress.event("scenes", Kv.by("task_id", taskName).set("scenes", scenes).set("parallelism", parallelism));
+
+      Queue<String> pending = new ConcurrentLinkedQueue<>(scenes);
+      Map<String, ProcessResult> results = new ConcurrentHashMap<>();
+      AtomicBoolean failed = new AtomicBoolean();
+      List<Thread> threads = new ArrayList<>(parallelism);
+      for (int i = 0; i < parallelism; i++) {
+        threads.add(Thread.ofVirtual().name("manim-scene-" + taskName + "-" + i).start(() -> {
+          String scene;
+          while (!failed.get() && (scene = pending.poll()) != null) {
+            ProcessResult r;
+            try {
+              r = execute(scriptPath, taskName, timeout, quality, mediaDir, progress, scene);
+            } catch (IOException e) {
+              r = new ProcessResult();
+              r.setExitCode(-1);
+              r.setStdErr(e.getMessage());
+            } catch (InterruptedException e) {
+              return;
+            }
+            results.put(scene, r);
+            if (r.getExitCode() != 0) {
+              failed.set(true);
+            }
+          }
+        }));
+      }
+      try {
+        for (Thread thread : threads) {
+          thread.join();
+        }
+      } catch (InterruptedException e) {
+        for (Thread thread : threads) {
+          thread.interrupt();
+        }
+        throw e;
+      }
+
+      // 按源码顺序合并输出，各场景的 spawn/import 耗时和 CPU 时间累加
+      TimedProcessResult result = new TimedProcessResult();
+      int exitCode = 0;
+      StringBuilder stdOut = new StringBuilder();
+      StringBuilder stdErr = new StringBuilder();
+      for (String scene : scenes) {
+        ProcessResult r = results.get(scene);
+        if (r == null) {
+          continue;
+        }
+        if (exitCode == 0 && r.getExitCode() != 0) {
+          exitCode = r.getExitCode();
+        }
+        if (r instanceof TimedProcessResult) {
+          TimedProcessResult timed = (TimedProcessResult) r;
+          timed.getTimings().forEach(result::addTiming);
+          result.addUsage(timed.getCpuMillis(), timed.getPeakRssKb());
+        }
+        if (r.getStdOut() != null && !r.getStdOut().isEmpty()) {
+          stdOut.append(r.getStdOut());
+        }
+        if (r.getStdErr() != null && !r.getStdErr().isEmpty()) {
+          stdErr.append(scene).append(":\n").append(r.getStdErr()).append('\n');
+        }
+      }
+      if (exitCode == 0 && results.size() < scenes.size()) {
+        exitCode = -1;
+      }
+      result.setExitCode(exitCode);
+      result.setStdOut(stdOut.toString());
+      result.setStdErr(stdErr.toString());
+      return result;
+    } finally {
+      for (RenderPermit permit : borrowed) {
+        permit.close();
+      }
+    }
   }
 
   public static ProcessResult execute(String scriptPath, String taskName, int timeout, String quality)
       throws IOException, InterruptedException {
+    return execute(scriptPath, taskName, timeout, quality, null, RenderProgress.NONE);
+  }
+
+  public static ProcessResult execute(String scriptPath, String taskName, int timeout, String quality, File mediaDir,
+      RenderProgress progress) throws IOException, InterruptedException {
+    return execute(scriptPath, taskName, timeout, quality, mediaDir, progress, null);
+  }
+
+  /**
+   * @param mediaDir 任务独立的 media 目录，为 null 时使用共享的 media 目录
+   * @param scene    只渲染指定的场景，为 null 时渲染全部场景(-a)
+   */
+  public static ProcessResult execute(String scriptPath, String taskName, int timeout, String quality, File mediaDir,
+      RenderProgress progress, String scene) throws IOException, InterruptedException {
     String osName = System.getProperty("os.name").toLowerCase();
     log.info("osName: {} scriptPath: {}", osName, scriptPath);
     // 获取脚本所在目录
@@ -252,36 +912,71 @@ public class ManimVideoCodeExecuteService {
 
     // manim -ql --fps 10 --progress_bar none --verbosity WARNING --media_dir
     // cache/01 --output_file CombinedScene scripts/01/script.py CombinedScene
-    String cmd = "manim -q%s --fps 10  --progress_bar none --verbosity WARNING %s -a";
-    cmd = String.format(cmd, quality, scriptPath);
+    List<String> args = new ArrayList<>(Arrays.asList("-q" + quality, "--fps", String.valueOf(FPS),
+        //
+        "--progress_bar", "none", "--verbosity", "WARNING"));
+    if (mediaDir != null) {
+      args.add("--media_dir");
+      args.add(mediaDir.getAbsolutePath());
+      args.add("--config_file");
+      args.add(writeTaskConfig(mediaDir).getAbsolutePath());
+    }
+    args.add(scriptPath);
+    args.add(scene == null ? "-a" : scene);
+    // 同一个任务的多个场景并行时日志分开
+    String logName = scene == null ? taskName : taskName + "_" + scene;
+
+    String cmd = "manim " + String.join(" ", args);
     log.info("cmd:{}", cmd);
-    File runSh = new File(scriptDir, taskName + "_run.sh");
+    File runSh = new File(scriptDir, logName + "_run.sh");
     FileUtil.writeString(cmd, runSh);
 
-    ProcessBuilder pb = new ProcessBuilder("manim", "-q" + quality, "--fps", "10",
-        //
-        "--progress_bar", "none", "--verbosity", "WARNING",
-        //
-        scriptPath, "-a");
-
+    Map<String, String> env = new HashMap<>();
     String workingDir = WorkDirUtils.getWorkingDir();
-    pb.environment().put("PYTHONIOENCODING", "utf-8");
+    env.put("PYTHONIOENCODING", "utf-8");
     if (EnvUtils.isDev()) {
       String str = EnvUtils.getStr("PYTHONPATH");
       if (str != null) {
-        pb.environment().put("PYTHONPATH", str);
+        env.put("PYTHONPATH", str);
       } else {
-        pb.environment().put("PYTHONPATH", workingDir);
+        env.put("PYTHONPATH", workingDir);
       }
     } else {
-      pb.environment().put("PYTHONPATH", workingDir);
+      env.put("PYTHONPATH", workingDir);
     }
 
-    pb.environment().put("TASK_ID", String.valueOf(taskName));
+    env.put("TASK_ID", String.valueOf(taskName));
+    // 音频缓存、tts 文本和字幕仍然写入共享的 media 目录
+    env.put("KIT_SHARED_MEDIA_DIR", new File(WorkDirUtils.workingMediaDir).getAbsolutePath());
+    ManimCacheService manimCache = Aop.get(ManimCacheService.class);
+    if (manimCache.isEnabled()) {
+      // worker 按 hash 到全局缓存查找 partial movie
+      env.put("KIT_MANIM_CACHE_DIR", manimCache.globalFolder().getAbsolutePath());
+    }
 
-    ProcessResult result = ProcessUtils.execute(scriptDir, taskName, pb, timeout);
+    // stdout/stderr 都写入日志文件，stream 模式下边写边推送
+    LogTailer tailer = progress.tail(scriptDir, logName);
+    ProcessGovernor governor = Aop.get(ProcessGovernor.class);
+    try (ProcessLease lease = governor.acquire(ProcessKind.MANIM)) {
+      // 优先使用预热的 worker，没有空闲 worker 时回退到命令行
+      ProcessResult result = Aop.get(ManimWorkerPool.class).execute(scriptDir, logName, args, env, timeout,
+          lease.getProcsFile());
+      if (result != null) {
+        return result;
+      }
 
-    return result;
+      List<String> command = new ArrayList<>(args.size() + 1);
+      command.add("manim");
+      command.addAll(args);
+      ProcessBuilder pb = new ProcessBuilder(command);
+      pb.environment().putAll(env);
+
+      return governor.execute(lease, scriptDir, logName, pb, timeout);
+    } finally {
+      if (tailer != null) {
+        tailer.stop();
+      }
+    }
   }
 
 }
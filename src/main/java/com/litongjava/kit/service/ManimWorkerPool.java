@@ -0,0 +1,184 @@
+package com.litongjava.kit.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.litongjava.kit.utils.ManimWorker;
+import com.litongjava.tio.utils.commandline.ProcessResult;
+import com.litongjava.tio.utils.environment.EnvUtils;
+import com.litongjava.tio.utils.hutool.FileUtil;
+import com.litongjava.tio.utils.hutool.ResourceUtil;
+import com.litongjava.tio.utils.path.WorkDirUtils;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 预热的 manim worker 池，避免每次渲染都重新启动 python 并 import manim
+ *
+ * <pre>
+ * manim.worker.enable=true
+ * manim.worker.pool.size=2
+ * manim.worker.max.tasks=100
+ * manim.worker.python=python3
+ * manim.worker.preload=manim_toolkit
+ * </pre>
+ */
+@Slf4j
+public class ManimWorkerPool {
+
+  public static final String WORKER_FOLDER = "workers";
+  private static final int MAX_START_FAILURES = 3;
+
+  private final BlockingQueue<ManimWorker> idle = new LinkedBlockingQueue<>();
+  private final Map<Integer, ManimWorker> all = new ConcurrentHashMap<>();
+  private final AtomicInteger workerIds = new AtomicInteger();
+  private final AtomicInteger startFailures = new AtomicInteger();
+
+  private volatile boolean started;
+  private volatile boolean disabled;
+  private volatile String manimVersion;
+
+  private int size;
+  private int maxTasks;
+  private String python;
+  private String preload;
+  private File script;
+
+  public synchronized void start() {
+    if (started) {
+      return;
+    }
+    started = true;
+    if (!EnvUtils.getBoolean("manim.worker.enable", true)) {
+      disabled = true;
+      log.info("manim worker pool disabled");
+      return;
+    }
+
+    size = EnvUtils.getInt("manim.worker.pool.size", 2);
+    maxTasks = EnvUtils.getInt("manim.worker.max.tasks", 100);
+    python = EnvUtils.get("manim.worker.python", "python3");
+    preload = EnvUtils.get("manim.worker.preload", "manim_toolkit");
+    if (size < 1) {
+      disabled = true;
+      return;
+    }
+
+    File folder = new File(WORKER_FOLDER);
+    if (!folder.exists()) {
+      folder.mkdirs();
+    }
+    script = new File(folder, "manim_worker.py");
+    URL url = ResourceUtil.getResource("python/manim_worker.py");
+    FileUtil.writeString(FileUtil.readString(url), script);
+
+    Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown));
+    for (int i = 0; i < size; i++) {
+      spawnAsync();
+    }
+  }
+
+  /**
+   * 使用空闲 worker 执行 manim，没有可用 worker 时返回 null，由调用方回退到命令行方式
+   *
+   * @param cgroupProcs fork 出的子进程加入的 cgroup，可以为 null
+   */
+  public ProcessResult execute(File logDir, String taskName, List<String> args, Map<String, String> env, int timeout,
+      String cgroupProcs) throws IOException, InterruptedException {
+    if (disabled) {
+      return null;
+    }
+    ManimWorker worker = idle.poll();
+    if (worker == null) {
+      return null;
+    }
+
+    try {
+      return worker.execute(logDir, taskName, args, env, timeout, cgroupProcs);
+    } finally {
+      release(worker);
+    }
+  }
+
+  private void release(ManimWorker worker) {
+    // 每个任务在 fork 出的子进程中执行，退出后内存全部归还，常驻的父进程不会随任务增长，
+    // 单个任务的内存由 ProcessGovernor 的 cgroup 限制，这里只按任务数回收
+    boolean recycle = !worker.isAlive() || worker.getTaskCount() >= maxTasks;
+    if (recycle) {
+      log.info("recycle manim worker {}, tasks:{}, rss:{}kb", worker.getId(), worker.getTaskCount(),
+          worker.getRssKb());
+      all.remove(worker.getId());
+      worker.destroy();
+      spawnAsync();
+    } else {
+      idle.offer(worker);
+    }
+  }
+
+  private void spawnAsync() {
+    if (disabled) {
+      return;
+    }
+    Thread.ofVirtual().name("manim-worker-start").start(() -> {
+      int id = workerIds.incrementAndGet();
+      File logFile = new File(WORKER_FOLDER, "manim_worker_" + id + ".log");
+      try {
+        ManimWorker worker = ManimWorker.start(id, python, script, preload, logFile, workerEnv(), 300);
+        startFailures.set(0);
+        manimVersion = worker.getManimVersion();
+        all.put(id, worker);
+        idle.offer(worker);
+      } catch (Exception e) {
+        log.error("Failed to start manim worker {}: {}", id, e.getMessage());
+        if (startFailures.incrementAndGet() >= MAX_START_FAILURES) {
+          disabled = true;
+          log.error("manim worker pool disabled after {} failures, fallback to manim cli", MAX_START_FAILURES);
+        } else {
+          spawnAsync();
+        }
+      }
+    });
+  }
+
+  private Map<String, String> workerEnv() {
+    Map<String, String> env = new HashMap<>();
+    env.put("PYTHONIOENCODING", "utf-8");
+    String pythonPath = EnvUtils.isDev() ? EnvUtils.getStr("PYTHONPATH") : null;
+    env.put("PYTHONPATH", pythonPath != null ? pythonPath : WorkDirUtils.getWorkingDir());
+    // manim_toolkit 在 worker 启动时导入，共享目录需要在导入前确定
+    env.put("KIT_SHARED_MEDIA_DIR", new File(WorkDirUtils.workingMediaDir).getAbsolutePath());
+    return env;
+  }
+
+  public void shutdown() {
+    disabled = true;
+    for (ManimWorker worker : all.values()) {
+      worker.destroy();
+    }
+    all.clear();
+    idle.clear();
+  }
+
+  /**
+   * worker 中加载的 manim 版本，worker 未就绪时为 null
+   */
+  public String getManimVersion() {
+    return manimVersion;
+  }
+
+  public boolean isDisabled() {
+    return disabled;
+  }
+
+  public int getIdleCount() {
+    return idle.size();
+  }
+}
@@ -0,0 +1,54 @@
+package com.litongjava.kit.service;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import com.litongjava.kit.vo.TimedProcessResult;
+import com.litongjava.tio.utils.environment.EnvUtils;
+
+/**
+ * 渲染后处理(截帧、合并、探测时长、切片、上传)使用的有界线程池，各阶段按依赖关系组合成 CompletableFuture
+ *
+ * <pre>
+ * media.executor.threads=CPU 核数
+ * </pre>
+ */
+public class MediaExecutor {
+
+  private final ExecutorService executor;
+
+  public MediaExecutor() {
+    int threads = EnvUtils.getInt("media.executor.threads", Runtime.getRuntime().availableProcessors());
+    AtomicInteger ids = new AtomicInteger();
+    // NativeMedia 是阻塞的 JNI 调用，使用平台线程并限制数量
+    executor = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+      Thread thread = new Thread(r, "media-executor-" + ids.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * 提交一个阶段，耗时累加到 result 的 timings 中
+   */
+  public <T> CompletableFuture<T> supply(String stage, TimedProcessResult result, Supplier<T> task) {
+    return CompletableFuture.supplyAsync(() -> {
+      long start = System.currentTimeMillis();
+      try {
+        return task.get();
+      } finally {
+        result.addTiming(stage, System.currentTimeMillis() - start);
+      }
+    }, executor);
+  }
+
+  public CompletableFuture<Void> run(String stage, TimedProcessResult result, Runnable task) {
+    return supply(stage, result, () -> {
+      task.run();
+      return null;
+    });
+  }
+}
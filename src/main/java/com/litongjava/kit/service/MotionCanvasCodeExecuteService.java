@@ -5,12 +5,16 @@ import java.io.IOException;
 import java.nio.file.Paths;
 
 import com.jfinal.kit.Kv;
+import com.litongjava.jfinal.aop.Aop;
+import com.litongjava.kit.service.RenderScheduler.RenderPermit;
+import com.litongjava.kit.service.RenderTaskService.RenderTask;
+import com.litongjava.kit.vo.ProcessKind;
+import com.litongjava.kit.vo.RenderKind;
 import com.litongjava.kit.vo.VideoCodeInput;
 import com.litongjava.linux.SessionFinishRequest;
 import com.litongjava.template.TemplateEngine;
 import com.litongjava.tio.core.ChannelContext;
 import com.litongjava.tio.utils.commandline.ProcessResult;
-import com.litongjava.tio.utils.commandline.ProcessUtils;
 import com.litongjava.tio.utils.hutool.FileUtil;
 import com.litongjava.tio.utils.snowflake.SnowflakeIdUtils;
 
@@ -51,7 +55,18 @@ public class MotionCanvasCodeExecuteService {
 
     FileUtil.writeString(code, sceneTsStr);
     // 执行脚本
-    ProcessResult result = executeFinish(projectPath, targetSubProjectPathStr, sessionId + "_" + taskName, timeout);
+    ProcessResult result = null;
+    RenderTask task = Aop.get(RenderTaskService.class).current();
+    if (task != null) {
+      // 客户端断开或取消时按子项目路径找到 npm 进程
+      task.addMarker(targetSubProjectPathStr);
+    }
+    try (RenderPermit permit = Aop.get(RenderScheduler.class).acquire(RenderKind.MOTION_CANVAS)) {
+      result = executeFinish(projectPath, targetSubProjectPathStr, sessionId + "_" + taskName, timeout);
+    }
+    if (task != null) {
+      task.checkCancelled();
+    }
     result.setTaskId(taskId);
     int exitCode = result.getExitCode();
     log.info("exitCode:{},{}", taskId, exitCode);
@@ -78,7 +93,7 @@ public class MotionCanvasCodeExecuteService {
     log.info("cmd:{}", cmd);
     ProcessBuilder pb = new ProcessBuilder("npm", "run", "build", "-w", subProject);
     pb.directory(new File("motion-canvas"));
-    ProcessResult result = ProcessUtils.execute(projectPath, taskName, pb, timeout);
+    ProcessResult result = Aop.get(ProcessGovernor.class).execute(ProcessKind.NODE, projectPath, taskName, pb, timeout);
     return result;
   }
 
@@ -98,7 +113,7 @@ public class MotionCanvasCodeExecuteService {
         "--json", "--frame-output", pngPathStr, projectPathStr);
     pb.directory(new File("motion-canvas"));
     pb.environment().put("PUPPETEER_EXECUTABLE_PATH", "/Applications/Google Chrome.app/Contents/MacOS/Google Chrome");
-    ProcessResult result = ProcessUtils.execute(projectPath, taskName, pb, timeout);
+    ProcessResult result = Aop.get(ProcessGovernor.class).execute(ProcessKind.NODE, projectPath, taskName, pb, timeout);
     return result;
   }
 
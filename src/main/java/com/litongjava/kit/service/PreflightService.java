@@ -0,0 +1,241 @@
+package com.litongjava.kit.service;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.lang.ProcessBuilder.Redirect;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.alibaba.fastjson2.JSONObject;
+import com.litongjava.kit.exception.PreflightException;
+import com.litongjava.kit.vo.PreflightError;
+import com.litongjava.kit.vo.PreflightResult;
+import com.litongjava.tio.utils.environment.EnvUtils;
+import com.litongjava.tio.utils.hutool.FileUtil;
+import com.litongjava.tio.utils.hutool.ResourceUtil;
+import com.litongjava.tio.utils.json.FastJson2Utils;
+import com.litongjava.tio.utils.path.WorkDirUtils;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 渲染前的脚本预检，在常驻的 python 进程中编译并静态检查脚本(语法、import、未定义名称、禁止的调用、Scene 类)，
+ * 没有通过时在进入渲染队列之前直接拒绝。
+ *
+ * 预检进程不可用或超时时放行，由渲染本身报告错误。
+ *
+ * <pre>
+ * render.preflight.enable=true
+ * render.preflight.timeout.ms=2000
+ * render.preflight.forbidden.modules=subprocess,socket,ctypes,multiprocessing
+ * render.preflight.forbidden.calls=eval,exec,__import__,os.system,os.popen,os.fork,os.kill,shutil.rmtree
+ * </pre>
+ */
+@Slf4j
+public class PreflightService {
+
+  private static final int CACHE_SIZE = 256;
+  private static final int MAX_START_FAILURES = 3;
+
+  private final Map<String, CompletableFuture<JSONObject>> pending = new ConcurrentHashMap<>();
+  private final AtomicLong ids = new AtomicLong();
+  // 同一段代码(例如渐进式渲染的预览和升级、重试)只检查一次
+  private final Map<String, PreflightResult> cache = new LinkedHashMap<String, PreflightResult>(16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, PreflightResult> eldest) {
+      return size() > CACHE_SIZE;
+    }
+  };
+
+  private Process process;
+  private BufferedWriter writer;
+  private int startFailures;
+  private boolean shutdownHook;
+  private volatile boolean disabled;
+
+  public boolean isEnabled() {
+    return !disabled && EnvUtils.getBoolean("render.preflight.enable", true);
+  }
+
+  /**
+   * 预先启动检查进程
+   */
+  public void start() {
+    if (!isEnabled()) {
+      return;
+    }
+    try {
+      ensureStarted();
+    } catch (IOException e) {
+      log.error("Failed to start code checker: {}", e.getMessage());
+    }
+  }
+
+  /**
+   * @throws PreflightException 没有通过预检
+   */
+  public void verify(String code, boolean requireScene) {
+    PreflightResult result = check(code, requireScene);
+    if (result != null && !result.isOk()) {
+      throw new PreflightException(result);
+    }
+  }
+
+  /**
+   * @return 预检不可用时返回 null
+   */
+  public PreflightResult check(String code, boolean requireScene) {
+    if (!isEnabled() || code == null) {
+      return null;
+    }
+    String key = requireScene + "\n" + code;
+    synchronized (cache) {
+      PreflightResult cached = cache.get(key);
+      if (cached != null) {
+        return cached;
+      }
+    }
+
+    long start = System.currentTimeMillis();
+    JSONObject response = call(code, requireScene);
+    if (response == null) {
+      return null;
+    }
+    PreflightResult result = new PreflightResult();
+    result.setOk(response.getBooleanValue("ok"));
+    result.setErrors(response.getList("errors", PreflightError.class));
+    result.setScenes(response.getList("scenes", String.class));
+    result.setMillis(System.currentTimeMillis() - start);
+    if (!result.isOk()) {
+      log.info("preflight failed in {}ms: {}", result.getMillis(), result.getErrors());
+    }
+    synchronized (cache) {
+      cache.put(key, result);
+    }
+    return result;
+  }
+
+  private JSONObject call(String code, boolean requireScene) {
+    String id = String.valueOf(ids.incrementAndGet());
+    JSONObject request = new JSONObject();
+    request.put("id", id);
+    request.put("code", code);
+    request.put("require_scene", requireScene);
+    request.put("forbidden_modules",
+        split(EnvUtils.get("render.preflight.forbidden.modules", "subprocess,socket,ctypes,multiprocessing")));
+    request.put("forbidden_calls", split(EnvUtils.get("render.preflight.forbidden.calls",
+        "eval,exec,__import__,os.system,os.popen,os.fork,os.kill,shutil.rmtree")));
+
+    CompletableFuture<JSONObject> future = new CompletableFuture<>();
+    pending.put(id, future);
+    try {
+      synchronized (this) {
+        ensureStarted();
+        writer.write(request.toJSONString());
+        writer.newLine();
+        writer.flush();
+      }
+      return future.get(EnvUtils.getLong("render.preflight.timeout.ms", 2000L), TimeUnit.MILLISECONDS);
+    } catch (IOException | ExecutionException e) {
+      log.error("code checker error: {}", e.getMessage());
+      destroy();
+      return null;
+    } catch (TimeoutException e) {
+      log.warn("code checker timeout, skip preflight");
+      return null;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    } finally {
+      pending.remove(id);
+    }
+  }
+
+  private synchronized void ensureStarted() throws IOException {
+    if (process != null && process.isAlive()) {
+      return;
+    }
+    File folder = new File(ManimWorkerPool.WORKER_FOLDER);
+    if (!folder.exists()) {
+      folder.mkdirs();
+    }
+    File script = new File(folder, "code_checker.py");
+    URL url = ResourceUtil.getResource("python/code_checker.py");
+    FileUtil.writeString(FileUtil.readString(url), script);
+
+    String python = EnvUtils.get("manim.worker.python", "python3");
+    ProcessBuilder pb = new ProcessBuilder(python, script.getAbsolutePath());
+    pb.environment().put("PYTHONIOENCODING", "utf-8");
+    // 与渲染使用相同的 PYTHONPATH，manim_toolkit 等本地模块才能通过 import 检查
+    String pythonPath = EnvUtils.isDev() ? EnvUtils.getStr("PYTHONPATH") : null;
+    pb.environment().put("PYTHONPATH", pythonPath != null ? pythonPath : WorkDirUtils.getWorkingDir());
+    pb.redirectError(Redirect.appendTo(new File(folder, "code_checker.log")));
+    try {
+      process = pb.start();
+    } catch (IOException e) {
+      if (++startFailures >= MAX_START_FAILURES) {
+        disabled = true;
+        log.error("code checker disabled after {} failures", MAX_START_FAILURES);
+      }
+      throw e;
+    }
+    startFailures = 0;
+    writer = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+    Process current = process;
+    Thread.ofVirtual().name("code-checker-reader").start(() -> readResponses(current));
+    if (!shutdownHook) {
+      shutdownHook = true;
+      Runtime.getRuntime().addShutdownHook(new Thread(this::destroy));
+    }
+    log.info("code checker started, pid:{}", current.pid());
+  }
+
+  private void readResponses(Process current) {
+    try (BufferedReader reader = new BufferedReader(
+        new InputStreamReader(current.getInputStream(), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        JSONObject response = FastJson2Utils.parseObject(line);
+        String id = response.getString("id");
+        CompletableFuture<JSONObject> future = id == null ? null : pending.get(id);
+        if (future != null) {
+          future.complete(response);
+        }
+      }
+    } catch (Exception e) {
+      log.error("code checker read error: {}", e.getMessage());
+    }
+    log.warn("code checker exited");
+    // 正在等待的请求直接放行，下次调用时重启
+    for (CompletableFuture<JSONObject> future : pending.values()) {
+      future.completeExceptionally(new IOException("code checker exited"));
+    }
+  }
+
+  private synchronized void destroy() {
+    if (process != null) {
+      process.destroyForcibly();
+      process = null;
+    }
+  }
+
+  private static List<String> split(String value) {
+    return Arrays.asList(value.split(","));
+  }
+}
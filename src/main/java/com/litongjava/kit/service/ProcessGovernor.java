@@ -0,0 +1,448 @@
+package com.litongjava.kit.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+import com.litongjava.kit.vo.ProcessKind;
+import com.litongjava.kit.vo.TimedProcessResult;
+import com.litongjava.tio.utils.environment.EnvUtils;
+import com.litongjava.tio.utils.hutool.FileUtil;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 所有子进程(manim、python、bash、npm/node、ffmpeg)统一从这里启动
+ *
+ * 每种进程有全局并发上限。支持 cgroup v2 时每个子进程放入单独的 cgroup
+ * ({root}/{kind}/p{seq})，设置 cpu.weight 和 memory.max，退出后从 cpu.stat、memory.peak 读取 CPU 时间和内存峰值；
+ * 不支持时定时采样 /proc 统计，内存超过上限时杀掉进程树。
+ *
+ * 进程内的 NativeMedia(JNI)调用不经过这里，无法限制。
+ *
+ * <pre>
+ * process.governor.enable=true
+ * process.governor.cgroup.root=/sys/fs/cgroup/java-kit-server
+ * process.governor.sample.ms=500
+ * process.{manim|python|cmd|node|ffmpeg}.concurrency
+ * process.{manim|python|cmd|node|ffmpeg}.cpu.weight
+ * process.{manim|python|cmd|node|ffmpeg}.memory.max.mb
+ * </pre>
+ */
+@Slf4j
+public class ProcessGovernor {
+
+  private static final String CGROUP_FS = "/sys/fs/cgroup";
+  // /proc/{pid}/stat 中的 CPU 时间单位，USER_HZ=100
+  private static final long CLOCK_TICK_MILLIS = 10;
+
+  private final int kinds = ProcessKind.values().length;
+  private final Semaphore[] semaphores = new Semaphore[kinds];
+  private final int[] concurrency = new int[kinds];
+  private final int[] cpuWeights = new int[kinds];
+  private final long[] memoryMaxBytes = new long[kinds];
+  private final LongAdder[] started = new LongAdder[kinds];
+  private final LongAdder[] cpuMillis = new LongAdder[kinds];
+  private final LongAdder[] memoryKilled = new LongAdder[kinds];
+  private final AtomicLong seq = new AtomicLong();
+  private final long sampleMillis;
+  // 不支持 cgroup v2 时为 null
+  private final File root;
+
+  public ProcessGovernor() {
+    int cpus = Runtime.getRuntime().availableProcessors();
+    for (ProcessKind kind : ProcessKind.values()) {
+      int i = kind.ordinal();
+      String value = kind.getValue();
+      // manim 渲染已经由 RenderScheduler 限流，这里只作为兜底
+      int defaultConcurrency = kind == ProcessKind.MANIM ? cpus * 2 : kind == ProcessKind.NODE ? Math.max(1, cpus / 2)
+          : cpus;
+      concurrency[i] = Math.max(1, EnvUtils.getInt("process." + value + ".concurrency", defaultConcurrency));
+      semaphores[i] = new Semaphore(concurrency[i], true);
+      cpuWeights[i] = EnvUtils.getInt("process." + value + ".cpu.weight", kind.getDefaultCpuWeight());
+      memoryMaxBytes[i] = EnvUtils.getLong("process." + value + ".memory.max.mb", kind.getDefaultMemoryMaxMb())
+          * 1024 * 1024;
+      started[i] = new LongAdder();
+      cpuMillis[i] = new LongAdder();
+      memoryKilled[i] = new LongAdder();
+    }
+    sampleMillis = EnvUtils.getLong("process.governor.sample.ms", 500L);
+    root = EnvUtils.getBoolean("process.governor.enable", true) ? initCgroup() : null;
+  }
+
+  private File initCgroup() {
+    if (!new File(CGROUP_FS, "cgroup.controllers").exists()) {
+      log.info("cgroup v2 is not available, use /proc sampling");
+      return null;
+    }
+    File dir = new File(EnvUtils.get("process.governor.cgroup.root", CGROUP_FS + "/java-kit-server"));
+    if (!dir.exists() && !dir.mkdirs()) {
+      log.warn("cgroup {} is not writable, use /proc sampling", dir);
+      return null;
+    }
+    // 子 cgroup 需要上级开启 cpu、memory 控制器，开启失败时只做统计不做限制
+    boolean limited = write(new File(dir.getParentFile(), "cgroup.subtree_control"), "+cpu +memory")
+        && write(new File(dir, "cgroup.subtree_control"), "+cpu +memory");
+    for (ProcessKind kind : ProcessKind.values()) {
+      File kindDir = new File(dir, kind.getValue());
+      kindDir.mkdirs();
+      limited = write(new File(kindDir, "cgroup.subtree_control"), "+cpu +memory") && limited;
+      // 清理上次退出时残留的空 cgroup
+      File[] leftovers = kindDir.listFiles(File::isDirectory);
+      if (leftovers != null) {
+        for (File leftover : leftovers) {
+          leftover.delete();
+        }
+      }
+    }
+    log.info("process governor cgroup:{}, limits:{}", dir, limited);
+    return dir;
+  }
+
+  /**
+   * 获取一个进程名额并创建 cgroup，必须在 finally 中关闭返回的 lease
+   */
+  public ProcessLease acquire(ProcessKind kind) throws InterruptedException {
+    int i = kind.ordinal();
+    long start = System.currentTimeMillis();
+    if (!semaphores[i].tryAcquire()) {
+      semaphores[i].acquire();
+      log.info("{} process waited {}ms for a slot", kind.getValue(), System.currentTimeMillis() - start);
+    }
+    started[i].increment();
+    return new ProcessLease(kind, createCgroup(kind));
+  }
+
+  private File createCgroup(ProcessKind kind) {
+    if (root == null) {
+      return null;
+    }
+    File dir = new File(new File(root, kind.getValue()), "p" + seq.incrementAndGet());
+    if (!dir.mkdir()) {
+      return null;
+    }
+    int i = kind.ordinal();
+    write(new File(dir, "cpu.weight"), String.valueOf(cpuWeights[i]));
+    write(new File(dir, "memory.max"), memoryMaxBytes[i] > 0 ? String.valueOf(memoryMaxBytes[i]) : "max");
+    return dir;
+  }
+
+  /**
+   * 与 ProcessUtils.execute 相同，stdout/stderr 写入 {logDir}/{taskName}_stdout.log、_stderr.log
+   *
+   * @param timeout 超时时间(秒)，小于等于 0 表示不限制
+   */
+  public TimedProcessResult execute(ProcessKind kind, File logDir, String taskName, ProcessBuilder pb, int timeout)
+      throws IOException, InterruptedException {
+    try (ProcessLease lease = acquire(kind)) {
+      return execute(lease, logDir, taskName, pb, timeout);
+    }
+  }
+
+  public TimedProcessResult execute(ProcessLease lease, File logDir, String taskName, ProcessBuilder pb, int timeout)
+      throws IOException, InterruptedException {
+    if (!logDir.exists()) {
+      logDir.mkdirs();
+    }
+    File stdoutFile = new File(logDir, taskName + "_stdout.log");
+    File stderrFile = new File(logDir, taskName + "_stderr.log");
+    if (lease.cgroup != null) {
+      // shell 先把自身加入 cgroup 再 exec 目标命令，之后 fork 的子孙进程都在 cgroup 中
+      List<String> command = new ArrayList<>();
+      command.add("sh");
+      command.add("-c");
+      command.add("{ echo $$ > \"$0\"; } 2>/dev/null; exec \"$@\"");
+      command.add(lease.getProcsFile());
+      command.addAll(pb.command());
+      pb.command(command);
+    }
+    pb.redirectOutput(stdoutFile);
+    pb.redirectError(stderrFile);
+
+    Process process = pb.start();
+    Sampler sampler = lease.cgroup == null ? new Sampler(process, lease.kind) : null;
+    boolean finished;
+    try {
+      if (timeout > 0) {
+        finished = process.waitFor(timeout, TimeUnit.SECONDS);
+      } else {
+        process.waitFor();
+        finished = true;
+      }
+    } catch (InterruptedException e) {
+      lease.kill(process);
+      throw e;
+    } finally {
+      if (sampler != null) {
+        sampler.stop();
+      }
+    }
+    if (!finished) {
+      log.error("{} process {} timeout after {}s", lease.kind.getValue(), taskName, timeout);
+      lease.kill(process);
+      process.waitFor(10, TimeUnit.SECONDS);
+    }
+
+    TimedProcessResult result = new TimedProcessResult();
+    result.setExitCode(finished ? process.exitValue() : -1);
+    if (stdoutFile.exists()) {
+      result.setStdOut(FileUtil.readString(stdoutFile));
+    }
+    String stdErr = stderrFile.exists() ? FileUtil.readString(stderrFile) : null;
+    if (!finished) {
+      stdErr = (stdErr == null ? "" : stdErr) + "\nProcess timed out after " + timeout + " seconds";
+    }
+    result.setStdErr(stdErr);
+    if (sampler != null) {
+      result.addUsage(sampler.cpuMillis(), sampler.peakRssKb);
+      if (sampler.memoryKilled) {
+        memoryKilled[lease.kind.ordinal()].increment();
+        result.setStdErr(result.getStdErr() + "\nProcess killed: memory limit exceeded");
+      }
+      cpuMillis[lease.kind.ordinal()].add(sampler.cpuMillis());
+    } else {
+      lease.account(result);
+    }
+    return result;
+  }
+
+  private static boolean write(File file, String value) {
+    try {
+      Files.write(file.toPath(), value.getBytes(StandardCharsets.UTF_8));
+      return true;
+    } catch (IOException e) {
+      log.debug("Failed to write {} to {}: {}", value, file, e.getMessage());
+      return false;
+    }
+  }
+
+  private static String read(File file) {
+    try {
+      return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * 读取 cpu.stat、memory.events 这类 "key value" 格式文件中的一项
+   */
+  private static long readKey(File file, String key) {
+    String content = read(file);
+    if (content == null) {
+      return -1;
+    }
+    for (String line : content.split("\n")) {
+      if (line.startsWith(key + " ")) {
+        return Long.parseLong(line.substring(key.length() + 1).trim());
+      }
+    }
+    return -1;
+  }
+
+  private static void killTree(ProcessHandle handle) {
+    handle.descendants().forEach(ProcessHandle::destroyForcibly);
+    handle.destroyForcibly();
+  }
+
+  /**
+   * Prometheus 文本格式
+   */
+  public void export(StringBuilder out) {
+    out.append("# HELP process_governor_running Running subprocesses\n");
+    out.append("# TYPE process_governor_running gauge\n");
+    for (ProcessKind kind : ProcessKind.values()) {
+      int i = kind.ordinal();
+      int running = concurrency[i] - semaphores[i].availablePermits();
+      out.append("process_governor_running{kind=\"").append(kind.getValue()).append("\"} ").append(running)
+          .append('\n');
+    }
+    out.append("# HELP process_governor_waiting Subprocesses waiting for a slot\n");
+    out.append("# TYPE process_governor_waiting gauge\n");
+    for (ProcessKind kind : ProcessKind.values()) {
+      out.append("process_governor_waiting{kind=\"").append(kind.getValue()).append("\"} ")
+          .append(semaphores[kind.ordinal()].getQueueLength()).append('\n');
+    }
+    counter(out, "process_governor_started_total", "Started subprocesses", started, 1);
+    counter(out, "process_governor_cpu_seconds_total", "CPU time of finished subprocesses", cpuMillis, 1000);
+    counter(out, "process_governor_memory_killed_total", "Subprocesses killed by the memory limit", memoryKilled, 1);
+  }
+
+  private static void counter(StringBuilder out, String name, String help, LongAdder[] values, int divisor) {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(" counter\n");
+    for (ProcessKind kind : ProcessKind.values()) {
+      long value = values[kind.ordinal()].sum();
+      out.append(name).append("{kind=\"").append(kind.getValue()).append("\"} ")
+          .append(divisor == 1 ? String.valueOf(value) : String.valueOf((double) value / divisor)).append('\n');
+    }
+  }
+
+  public class ProcessLease implements AutoCloseable {
+    private final ProcessKind kind;
+    private final File cgroup;
+    private boolean closed;
+
+    private ProcessLease(ProcessKind kind, File cgroup) {
+      this.kind = kind;
+      this.cgroup = cgroup;
+    }
+
+    /**
+     * 子进程写入自身 pid 即加入 cgroup，没有 cgroup 时返回 null
+     */
+    public String getProcsFile() {
+      return cgroup == null ? null : new File(cgroup, "cgroup.procs").getAbsolutePath();
+    }
+
+    /**
+     * 从 cgroup 读取 CPU 时间和内存峰值
+     */
+    public void account(TimedProcessResult result) {
+      if (cgroup == null) {
+        return;
+      }
+      long usageUsec = readKey(new File(cgroup, "cpu.stat"), "usage_usec");
+      String peak = read(new File(cgroup, "memory.peak"));
+      Long peakKb = peak == null ? null : Long.parseLong(peak.trim()) / 1024;
+      result.addUsage(usageUsec < 0 ? null : usageUsec / 1000, peakKb);
+      if (usageUsec > 0) {
+        cpuMillis[kind.ordinal()].add(usageUsec / 1000);
+      }
+      if (readKey(new File(cgroup, "memory.events"), "oom_kill") > 0) {
+        memoryKilled[kind.ordinal()].increment();
+        String stdErr = result.getStdErr() == null ? "" : result.getStdErr();
+        result.setStdErr(stdErr + "\nProcess killed: memory limit exceeded");
+      }
+    }
+
+    private void kill(Process process) {
+      if (cgroup != null) {
+        write(new File(cgroup, "cgroup.kill"), "1");
+      }
+      killTree(process.toHandle());
+    }
+
+    @Override
+    public void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      semaphores[kind.ordinal()].release();
+      if (cgroup == null) {
+        return;
+      }
+      // 杀掉脱离父进程仍在运行的后台进程，cgroup 为空后才能删除
+      write(new File(cgroup, "cgroup.kill"), "1");
+      for (int i = 0; i < 20 && !cgroup.delete(); i++) {
+        try {
+          Thread.sleep(50);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+    }
+  }
+
+  /**
+   * 不支持 cgroup 时定时采样进程树的 CPU 时间和 RSS
+   */
+  private class Sampler {
+    private final Process process;
+    private final long memoryMaxKb;
+    private final Map<Long, Long> cpuTicks = new HashMap<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+    private volatile long peakRssKb;
+    private volatile boolean memoryKilled;
+
+    private Sampler(Process process, ProcessKind kind) {
+      this.process = process;
+      this.memoryMaxKb = memoryMaxBytes[kind.ordinal()] / 1024;
+      this.thread = Thread.ofVirtual().name("process-sampler-" + process.pid()).start(this::run);
+    }
+
+    private void run() {
+      while (running && process.isAlive()) {
+        sample();
+        try {
+          Thread.sleep(sampleMillis);
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+    }
+
+    private void sample() {
+      long rssKb = 0;
+      List<ProcessHandle> handles = new ArrayList<>();
+      handles.add(process.toHandle());
+      try (Stream<ProcessHandle> descendants = process.descendants()) {
+        descendants.forEach(handles::add);
+      }
+      for (ProcessHandle handle : handles) {
+        long pid = handle.pid();
+        String stat = read(new File("/proc/" + pid + "/stat"));
+        if (stat == null) {
+          continue;
+        }
+        // comm 可能包含空格，从最后一个 ')' 之后开始解析，utime、stime 是第 14、15 项
+        String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+        synchronized (cpuTicks) {
+          cpuTicks.put(pid, Long.parseLong(fields[11]) + Long.parseLong(fields[12]));
+        }
+        String status = read(new File("/proc/" + pid + "/status"));
+        if (status != null) {
+          rssKb += parseVmRss(status);
+        }
+      }
+      peakRssKb = Math.max(peakRssKb, rssKb);
+      if (memoryMaxKb > 0 && rssKb > memoryMaxKb && !memoryKilled) {
+        memoryKilled = true;
+        log.error("process {} uses {}kb, exceeds memory limit {}kb", process.pid(), rssKb, memoryMaxKb);
+        killTree(process.toHandle());
+      }
+    }
+
+    private long cpuMillis() {
+      synchronized (cpuTicks) {
+        long ticks = 0;
+        for (Long value : cpuTicks.values()) {
+          ticks += value;
+        }
+        return ticks * CLOCK_TICK_MILLIS;
+      }
+    }
+
+    private void stop() {
+      running = false;
+      thread.interrupt();
+      try {
+        thread.join(1000);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private static long parseVmRss(String status) {
+    for (String line : status.split("\n")) {
+      if (line.startsWith("VmRSS:")) {
+        return Long.parseLong(line.replaceAll("[^0-9]", ""));
+      }
+    }
+    return 0;
+  }
+}
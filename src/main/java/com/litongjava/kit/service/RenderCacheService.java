@@ -0,0 +1,376 @@
+package com.litongjava.kit.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.jfinal.kit.Kv;
+import com.litongjava.jfinal.aop.Aop;
+import com.litongjava.kit.vo.ProcessKind;
+import com.litongjava.kit.vo.RenderCacheEntry;
+import com.litongjava.tio.utils.commandline.ProcessResult;
+import com.litongjava.tio.utils.environment.EnvUtils;
+import com.litongjava.tio.utils.hutool.FileUtil;
+import com.litongjava.tio.utils.json.JsonUtils;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 基于内容寻址的渲染结果缓存
+ *
+ * key = sha256(kind, code, quality, figure, manim version)，目录 cache/render/{key}，超过磁盘预算时按 LRU 淘汰。
+ * 相同 key 的并发请求只渲染一次，其余请求等待第一个请求的结果。
+ */
+@Slf4j
+public class RenderCacheService {
+
+  public static final String CACHE_FOLDER = "cache" + File.separator + "render";
+  public static final String META_FILENAME = "meta.json";
+
+  private final Map<String, CompletableFuture<RenderCacheEntry>> inflight = new ConcurrentHashMap<>();
+  // key -> 占用字节数, 访问顺序
+  private final LinkedHashMap<String, Long> index = new LinkedHashMap<>(16, 0.75f, true);
+  private long totalBytes;
+  private volatile boolean loaded;
+  private volatile String manimVersion;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong coalesced = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong savedRenderMillis = new AtomicLong();
+
+  public boolean isEnabled() {
+    return EnvUtils.getBoolean("render.cache.enable", true);
+  }
+
+  public String videoKey(String code, String quality, String figure) {
+    return key("video", code, quality, figure);
+  }
+
+  public String imageKey(String code) {
+    return key("image", code, "h", null);
+  }
+
+  private String key(String kind, String code, String quality, String figure) {
+    StringBuilder sb = new StringBuilder();
+    sb.append(kind).append('\n');
+    sb.append(quality).append('\n');
+    sb.append(getManimVersion()).append('\n');
+    sb.append(figure == null ? "" : figure).append('\n');
+    sb.append(code == null ? "" : code);
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      byte[] bytes = digest.digest(sb.toString().getBytes(StandardCharsets.UTF_8));
+      StringBuilder hex = new StringBuilder(bytes.length * 2);
+      for (byte b : bytes) {
+        hex.append(String.format("%02x", b));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * 查找缓存，命中时直接返回；同一个 key 正在渲染时等待其结果。
+   * 返回 null 表示调用方需要自己渲染，并且渲染结束后必须调用 {@link #complete(String, RenderCacheEntry)}
+   */
+  public RenderCacheEntry acquire(String key) throws InterruptedException {
+    if (!isEnabled()) {
+      return null;
+    }
+    while (true) {
+      RenderCacheEntry entry = get(key);
+      if (entry != null) {
+        return entry;
+      }
+
+      CompletableFuture<RenderCacheEntry> future = new CompletableFuture<>();
+      CompletableFuture<RenderCacheEntry> running = inflight.putIfAbsent(key, future);
+      if (running == null) {
+        // 成为 leader 后再检查一次，防止刚好有其他请求写入了缓存
+        entry = get(key);
+        if (entry != null) {
+          inflight.remove(key, future);
+          future.complete(entry);
+          return entry;
+        }
+        misses.incrementAndGet();
+        return null;
+      }
+
+      coalesced.incrementAndGet();
+      log.info("wait for running render:{}", key);
+      try {
+        entry = running.get();
+      } catch (ExecutionException e) {
+        entry = null;
+      }
+      if (entry != null) {
+        if (entry.getExitCode() == 0) {
+          hits.incrementAndGet();
+          savedRenderMillis.addAndGet(entry.getRenderMillis());
+        }
+        return entry;
+      }
+      // leader 异常退出，重新竞争
+    }
+  }
+
+  /**
+   * 结束渲染，唤醒等待同一个 key 的请求。entry 为 null 表示渲染异常
+   */
+  public void complete(String key, RenderCacheEntry entry) {
+    if (!isEnabled()) {
+      return;
+    }
+    CompletableFuture<RenderCacheEntry> future = inflight.remove(key);
+    if (future != null) {
+      future.complete(entry);
+    }
+  }
+
+  /**
+   * 只判断是否存在，不计入命中统计
+   */
+  public boolean contains(String key) {
+    if (!isEnabled()) {
+      return false;
+    }
+    loadIndex();
+    synchronized (index) {
+      return index.containsKey(key) && new File(folder(key), META_FILENAME).exists();
+    }
+  }
+
+  public RenderCacheEntry get(String key) {
+    loadIndex();
+    synchronized (index) {
+      if (!index.containsKey(key)) {
+        return null;
+      }
+      index.get(key);
+    }
+    File metaFile = new File(folder(key), META_FILENAME);
+    if (!metaFile.exists()) {
+      remove(key);
+      return null;
+    }
+    RenderCacheEntry entry = JsonUtils.parse(FileUtil.readString(metaFile), RenderCacheEntry.class);
+    metaFile.setLastModified(System.currentTimeMillis());
+    hits.incrementAndGet();
+    savedRenderMillis.addAndGet(entry.getRenderMillis());
+    return entry;
+  }
+
+  /**
+   * 写入缓存。files 为需要保存的文件，保存后使用文件名访问
+   */
+  public void put(RenderCacheEntry entry, File... files) {
+    if (!isEnabled() || entry.getExitCode() != 0) {
+      return;
+    }
+    loadIndex();
+    String key = entry.getKey();
+    File folder = folder(key);
+    File tmpFolder = new File(CACHE_FOLDER, key + ".tmp" + System.nanoTime());
+    tmpFolder.mkdirs();
+    try {
+      for (File file : files) {
+        if (file != null && file.exists()) {
+          link(file, new File(tmpFolder, file.getName()));
+        }
+      }
+      entry.setCreateTime(System.currentTimeMillis());
+      FileUtil.writeString(JsonUtils.toJson(entry), new File(tmpFolder, META_FILENAME));
+      if (folder.exists()) {
+        deleteFolder(folder);
+      }
+      Files.move(tmpFolder.toPath(), folder.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      log.error("Failed to save render cache {}: {}", key, e.getMessage());
+      deleteFolder(tmpFolder);
+      return;
+    }
+
+    long size = folderSize(folder);
+    synchronized (index) {
+      Long old = index.put(key, size);
+      totalBytes += size - (old == null ? 0 : old);
+    }
+    evict();
+  }
+
+  public File folder(String key) {
+    return new File(CACHE_FOLDER, key);
+  }
+
+  public File file(String key, String name) {
+    return new File(folder(key), name);
+  }
+
+  /**
+   * 从缓存中复制文件到目标位置，优先使用硬链接
+   */
+  public void copyTo(String key, String name, File target) throws IOException {
+    link(file(key, name), target);
+  }
+
+  private void link(File source, File target) throws IOException {
+    File parent = target.getParentFile();
+    if (parent != null && !parent.exists()) {
+      parent.mkdirs();
+    }
+    Files.deleteIfExists(target.toPath());
+    try {
+      Files.createLink(target.toPath(), source.toPath());
+    } catch (IOException | UnsupportedOperationException e) {
+      Files.copy(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  private void remove(String key) {
+    synchronized (index) {
+      Long size = index.remove(key);
+      if (size != null) {
+        totalBytes -= size;
+      }
+    }
+    deleteFolder(folder(key));
+  }
+
+  private void evict() {
+    long maxBytes = EnvUtils.getLong("render.cache.max.mb", 2048L) * 1024 * 1024;
+    while (true) {
+      String eldest = null;
+      synchronized (index) {
+        if (totalBytes <= maxBytes || index.isEmpty()) {
+          return;
+        }
+        Iterator<Map.Entry<String, Long>> iterator = index.entrySet().iterator();
+        Map.Entry<String, Long> first = iterator.next();
+        eldest = first.getKey();
+        totalBytes -= first.getValue();
+        iterator.remove();
+      }
+      log.info("evict render cache:{}", eldest);
+      deleteFolder(folder(eldest));
+      evictions.incrementAndGet();
+    }
+  }
+
+  private void loadIndex() {
+    if (loaded) {
+      return;
+    }
+    synchronized (index) {
+      if (loaded) {
+        return;
+      }
+      File root = new File(CACHE_FOLDER);
+      if (!root.exists()) {
+        root.mkdirs();
+      }
+      File[] folders = root.listFiles(File::isDirectory);
+      if (folders != null) {
+        // 按最近访问时间排序，最久未使用的在前
+        Arrays.sort(folders, Comparator.comparingLong(f -> new File(f, META_FILENAME).lastModified()));
+        for (File folder : folders) {
+          if (!new File(folder, META_FILENAME).exists()) {
+            deleteFolder(folder);
+            continue;
+          }
+          long size = folderSize(folder);
+          index.put(folder.getName(), size);
+          totalBytes += size;
+        }
+      }
+      loaded = true;
+      log.info("render cache loaded, entries:{}, bytes:{}", index.size(), totalBytes);
+    }
+    evict();
+  }
+
+  private long folderSize(File folder) {
+    long size = 0;
+    File[] files = folder.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        size += file.length();
+      }
+    }
+    return size;
+  }
+
+  private void deleteFolder(File folder) {
+    File[] files = folder.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    folder.delete();
+  }
+
+  /**
+   * manim 版本也是缓存 key 的一部分，升级 manim 后旧缓存自动失效
+   */
+  public String getManimVersion() {
+    if (manimVersion != null) {
+      return manimVersion;
+    }
+    String version = EnvUtils.get("manim.version");
+    if (version == null) {
+      version = Aop.get(ManimWorkerPool.class).getManimVersion();
+    }
+    if (version == null) {
+      try {
+        ProcessBuilder pb = new ProcessBuilder("manim", "--version");
+        ProcessResult result = Aop.get(ProcessGovernor.class).execute(ProcessKind.MANIM,
+            new File(ManimWorkerPool.WORKER_FOLDER), "manim_version", pb, 60);
+        if (result.getExitCode() == 0 && result.getStdOut() != null) {
+          version = result.getStdOut().trim();
+        }
+      } catch (IOException | InterruptedException e) {
+        log.error("Failed to get manim version:{}", e.getMessage());
+      }
+    }
+    if (version == null) {
+      return "unknown";
+    }
+    manimVersion = version;
+    return version;
+  }
+
+  public Kv stats() {
+    long hitCount = hits.get();
+    long missCount = misses.get();
+    long total = hitCount + missCount;
+    int entries;
+    long bytes;
+    synchronized (index) {
+      entries = index.size();
+      bytes = totalBytes;
+    }
+    Kv kv = Kv.by("hits", hitCount).set("misses", missCount).set("coalesced", coalesced.get());
+    kv.set("hit_ratio", total == 0 ? 0d : (double) hitCount / total);
+    kv.set("evictions", evictions.get()).set("entries", entries).set("bytes", bytes);
+    kv.set("saved_render_millis", savedRenderMillis.get());
+    kv.set("saved_render_minutes", savedRenderMillis.get() / 60000d);
+    return kv;
+  }
+}
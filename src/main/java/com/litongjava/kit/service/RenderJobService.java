@@ -0,0 +1,275 @@
+package com.litongjava.kit.service;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.jfinal.kit.Kv;
+import com.litongjava.db.activerecord.Db;
+import com.litongjava.db.activerecord.Row;
+import com.litongjava.jfinal.aop.Aop;
+import com.litongjava.kit.exception.PreflightException;
+import com.litongjava.kit.exception.RenderCancelledException;
+import com.litongjava.kit.exception.RenderRejectedException;
+import com.litongjava.kit.service.RenderTaskService.RenderTask;
+import com.litongjava.kit.utils.RenderProgress;
+import com.litongjava.kit.vo.HlsSession;
+import com.litongjava.kit.vo.RenderKind;
+import com.litongjava.kit.vo.VideoCodeInput;
+import com.litongjava.tio.utils.commandline.ProcessResult;
+import com.litongjava.tio.utils.environment.EnvUtils;
+import com.litongjava.tio.utils.json.FastJson2Utils;
+import com.litongjava.tio.utils.json.JsonUtils;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * /manim/run?async=true 的异步渲染任务，请求和结果按 code_id 保存在 sqlite 的 manim_render_job 表中
+ *
+ * 客户端断开或者服务重启后，用同一个 code_id 查询 /manim/result 即可拿到结果，不需要重新渲染。
+ * 重新提交相同 code_id 和相同脚本时直接返回已有任务，脚本不同时重新渲染。
+ *
+ * <pre>
+ * render.job.max.attempts=3
+ * render.job.rejected.wait.max.ms=1800000
+ * render.job.retention.hours=72
+ * </pre>
+ */
+@Slf4j
+public class RenderJobService {
+
+  public static final String TABLE_NAME = "manim_render_job";
+  public static final String STATUS_QUEUED = "queued";
+  public static final String STATUS_RUNNING = "running";
+  public static final String STATUS_DONE = "done";
+  public static final String STATUS_FAILED = "failed";
+  public static final String STATUS_CANCELLED = "cancelled";
+
+  private static final long PURGE_INTERVAL_MILLIS = 60 * 60 * 1000L;
+
+  private final ManimVideoCodeExecuteService manimService = Aop.get(ManimVideoCodeExecuteService.class);
+  private final RenderCacheService renderCacheService = Aop.get(RenderCacheService.class);
+  private final PreflightService preflightService = Aop.get(PreflightService.class);
+  private final RenderTaskService renderTaskService = Aop.get(RenderTaskService.class);
+  private final HlsSessionService hlsSessionService = Aop.get(HlsSessionService.class);
+
+  // 本进程中未结束的任务，用于长轮询
+  private final Map<Long, CompletableFuture<Boolean>> running = new ConcurrentHashMap<>();
+  private volatile boolean started;
+
+  public synchronized void start() {
+    if (started) {
+      return;
+    }
+    started = true;
+    // 上次退出时没有结束的任务重新执行，渲染缓存命中时不会真正渲染
+    List<Row> jobs = Db.find("select code_id from " + TABLE_NAME + " where status in (?,?)", STATUS_QUEUED,
+        STATUS_RUNNING);
+    for (Row job : jobs) {
+      launch(job.getLong("code_id"));
+    }
+    if (!jobs.isEmpty()) {
+      log.info("resume {} render jobs", jobs.size());
+    }
+    Thread.ofVirtual().name("render-job-purge").start(this::purgeLoop);
+  }
+
+  /**
+   * 提交一个异步渲染任务，立即返回任务
+   *
+   * @throws PreflightException 没有通过预检
+   */
+  public Row submit(VideoCodeInput input) {
+    Long codeId = input.getTaskId();
+    String codeKey = renderCacheService.videoKey(input.getCode(), input.getQuality(), input.getFigure());
+    synchronized (this) {
+      Row job = findById(codeId);
+      if (job != null && codeKey.equals(job.getStr("code_key"))) {
+        String status = job.getStr("status");
+        if (STATUS_DONE.equals(status) || running.containsKey(codeId)) {
+          // 已经完成或者正在执行，不重复渲染
+          return job;
+        }
+      }
+    }
+
+    preflightService.verify(input.getCode(), true);
+    input.setStream(false);
+
+    synchronized (this) {
+      if (running.containsKey(codeId)) {
+        // 脚本变化，取消旧任务后由新的任务覆盖结果
+        renderTaskService.cancel(String.valueOf(codeId), "superseded");
+      }
+      String sql = "insert or replace into " + TABLE_NAME
+          + " (code_id, session_id, quality, code_key, input, status, attempts) values (?,?,?,?,?,?,?)";
+      Db.update(sql, codeId, input.getSessionId(), input.getQuality(), codeKey, JsonUtils.toJson(input),
+          STATUS_QUEUED, 0);
+      log.info("submit render job:{},{},{}", codeId, input.getSessionId(), input.getQuality());
+      launch(codeId);
+      return findById(codeId);
+    }
+  }
+
+  private void launch(Long codeId) {
+    CompletableFuture<Boolean> done = new CompletableFuture<>();
+    CompletableFuture<Boolean> previous = running.put(codeId, done);
+    Thread.ofVirtual().name("render-job-" + codeId).start(() -> {
+      if (previous != null) {
+        // 等旧任务退出，避免旧任务的结果覆盖新任务
+        previous.join();
+      }
+      try {
+        run(codeId);
+      } catch (Exception e) {
+        log.error("render job {} crashed:{}", codeId, e.getMessage(), e);
+      } finally {
+        running.remove(codeId, done);
+        done.complete(true);
+      }
+    });
+  }
+
+  private void run(Long codeId) {
+    Row job = findById(codeId);
+    if (job == null) {
+      return;
+    }
+    int attempts = job.getInt("attempts") + 1;
+    int maxAttempts = EnvUtils.getInt("render.job.max.attempts", 3);
+    if (attempts > maxAttempts) {
+      // 每次执行中重启都会增加一次，防止一个导致进程崩溃的脚本反复执行
+      finish(codeId, STATUS_FAILED, null, "too many attempts:" + job.getInt("attempts"), null);
+      return;
+    }
+    VideoCodeInput input = JsonUtils.parse(job.getStr("input"), VideoCodeInput.class);
+    // 保存的 native 句柄在重启后已经失效，按 session_id 重新获取
+    HlsSession hlsSession = hlsSessionService.get(input.getSessionId());
+    input.setSessionPrt(hlsSession == null ? null : hlsSession.getPrt());
+    input.setM3u8Path(hlsSession == null ? null : hlsSession.getHls());
+    Db.update("update " + TABLE_NAME + " set status=?, attempts=?, update_time=CURRENT_TIMESTAMP where code_id=?",
+        STATUS_RUNNING, attempts, codeId);
+
+    long start = System.currentTimeMillis();
+    // 可以通过 /render/cancel 取消
+    RenderTask task = renderTaskService.register(String.valueOf(codeId), RenderKind.VIDEO, null);
+    try {
+      ProcessResult result = executeCode(input, start);
+      log.info("render job done:{},{}ms", codeId, System.currentTimeMillis() - start);
+      finish(codeId, STATUS_DONE, JsonUtils.toJson(result), null, System.currentTimeMillis() - start);
+    } catch (RenderCancelledException e) {
+      finish(codeId, STATUS_CANCELLED, null, e.getReason(), System.currentTimeMillis() - start);
+    } catch (PreflightException e) {
+      Kv kv = Kv.by("errors", e.getResult().getErrors());
+      finish(codeId, STATUS_FAILED, JsonUtils.toJson(kv), e.getMessage(), System.currentTimeMillis() - start);
+    } catch (Exception e) {
+      long elapsed = System.currentTimeMillis() - start;
+      if (task.isCancelled()) {
+        finish(codeId, STATUS_CANCELLED, null, task.getReason(), elapsed);
+      } else {
+        log.error("render job {} failed:{}", codeId, e.getMessage(), e);
+        String error = e.getMessage() != null ? e.getMessage() : e.getClass().getName();
+        finish(codeId, STATUS_FAILED, null, error, elapsed);
+      }
+    } finally {
+      task.close();
+    }
+  }
+
+  /**
+   * 渲染队列已满时按预计等待时间重试，不把 429 返回给已经离开的客户端
+   */
+  private ProcessResult executeCode(VideoCodeInput input, long start) throws Exception {
+    long maxWait = EnvUtils.getLong("render.job.rejected.wait.max.ms", 30 * 60 * 1000L);
+    while (true) {
+      try {
+        return manimService.executeCode(input, RenderProgress.NONE);
+      } catch (RenderRejectedException e) {
+        if (System.currentTimeMillis() - start > maxWait) {
+          throw e;
+        }
+        long delay = Math.min(Math.max(e.getEtaSeconds(), 1) * 1000L, 30000L);
+        log.info("render job {} rejected, retry in {}ms", input.getTaskId(), delay);
+        Thread.sleep(delay);
+      }
+    }
+  }
+
+  private void finish(Long codeId, String status, String result, String error, Long elapsed) {
+    String sql = "update " + TABLE_NAME
+        + " set status=?, result=?, error=?, elapsed_ms=?, update_time=CURRENT_TIMESTAMP where code_id=?";
+    Db.update(sql, status, result, error, elapsed, codeId);
+  }
+
+  public Row findById(Long codeId) {
+    return Db.findFirst("select * from " + TABLE_NAME + " where code_id=?", codeId);
+  }
+
+  /**
+   * 任务未结束时最多等待 waitMillis，然后返回当前状态
+   */
+  public Row await(Long codeId, long waitMillis) throws InterruptedException {
+    CompletableFuture<Boolean> done = running.get(codeId);
+    if (done != null && waitMillis > 0) {
+      try {
+        done.get(waitMillis, TimeUnit.MILLISECONDS);
+      } catch (ExecutionException | TimeoutException e) {
+        // 返回当前状态
+      }
+    }
+    return findById(codeId);
+  }
+
+  private void purgeLoop() {
+    while (true) {
+      try {
+        long hours = EnvUtils.getLong("render.job.retention.hours", 72L);
+        int deleted = Db.update("delete from " + TABLE_NAME
+            + " where status in (?,?,?) and update_time < datetime('now', ?)", STATUS_DONE, STATUS_FAILED,
+            STATUS_CANCELLED, "-" + hours + " hours");
+        if (deleted > 0) {
+          log.info("purged {} render jobs", deleted);
+        }
+        Thread.sleep(PURGE_INTERVAL_MILLIS);
+      } catch (InterruptedException e) {
+        return;
+      } catch (Exception e) {
+        log.error("purge render jobs failed:{}", e.getMessage(), e);
+        try {
+          Thread.sleep(PURGE_INTERVAL_MILLIS);
+        } catch (InterruptedException ie) {
+          return;
+        }
+      }
+    }
+  }
+
+  public static Kv toKv(Row job) {
+    Kv kv = Kv.by("code_id", String.valueOf(job.getLong("code_id")));
+    Long sessionId = job.getLong("session_id");
+    kv.set("session_id", sessionId == null ? null : String.valueOf(sessionId));
+    kv.set("quality", job.getStr("quality")).set("status", job.getStr("status"));
+    kv.set("attempts", job.getInt("attempts")).set("error", job.getStr("error"));
+    kv.set("elapsed_ms", job.getLong("elapsed_ms"));
+    String result = job.getStr("result");
+    if (result != null) {
+      kv.set("result", FastJson2Utils.parseObject(result));
+    }
+    return kv;
+  }
+
+  public Kv stats() {
+    Kv kv = Kv.create();
+    for (String status : new String[] { STATUS_QUEUED, STATUS_RUNNING, STATUS_DONE, STATUS_FAILED,
+        STATUS_CANCELLED }) {
+      Long count = Db.queryLong("select count(*) from " + TABLE_NAME + " where status=?", status);
+      kv.set(status, count == null ? 0 : count);
+    }
+    kv.set("in_process", running.size());
+    return kv;
+  }
+}
@@ -0,0 +1,115 @@
+package com.litongjava.kit.service;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.litongjava.kit.vo.TimedProcessResult;
+
+/**
+ * /manim/run 各阶段耗时的直方图，按画质和结果分组，以 Prometheus 文本格式导出
+ *
+ * 阶段名与 TimedProcessResult 的 timings 一致(video_length 导出为 probe)。spawn 和 import 只有使用预热 worker 时才有，
+ * 命令行方式启动时包含在 render 中。
+ *
+ * 计数使用预先分配的 AtomicLongArray，记录时不分配对象
+ */
+public class RenderMetrics {
+
+  public static final String OK = "ok";
+  public static final String ERROR = "error";
+  public static final String CACHE_HIT = "cache_hit";
+  public static final String CANCELLED = "cancelled";
+
+  private static final String[] PHASES = { "queue", "spawn", "import", "render", "discover", "move", "video_length",
+      "last_frame", "merge", "hls", "upload", "total" };
+  private static final String[] PHASE_LABELS = { "queue", "spawn", "import", "render", "discover", "move", "probe",
+      "last_frame", "merge", "hls", "upload", "total" };
+  private static final String[] QUALITIES = { "l", "m", "h", "p", "k", "other" };
+  private static final String[] OUTCOMES = { OK, ERROR, CACHE_HIT, CANCELLED };
+  // 毫秒
+  private static final long[] BUCKETS = { 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000, 120000,
+      300000, 600000 };
+
+  private static final int SERIES = PHASES.length * QUALITIES.length * OUTCOMES.length;
+
+  // 每个序列 BUCKETS.length + 1 个桶(最后一个是 +Inf)，非累计
+  private final AtomicLongArray buckets = new AtomicLongArray(SERIES * (BUCKETS.length + 1));
+  private final AtomicLongArray sums = new AtomicLongArray(SERIES);
+  private final AtomicLongArray counts = new AtomicLongArray(SERIES);
+
+  /**
+   * 记录一个任务的所有阶段
+   */
+  public void record(String quality, String outcome, TimedProcessResult result) {
+    if (result == null) {
+      return;
+    }
+    int q = indexOf(QUALITIES, quality, QUALITIES.length - 1);
+    int o = indexOf(OUTCOMES, outcome, 1);
+    Map<String, Long> timings = result.getTimings();
+    for (int p = 0; p < PHASES.length; p++) {
+      Long millis = timings.get(PHASES[p]);
+      if (millis != null) {
+        observe(series(p, q, o), millis);
+      }
+    }
+  }
+
+  private void observe(int series, long millis) {
+    int b = 0;
+    while (b < BUCKETS.length && millis > BUCKETS[b]) {
+      b++;
+    }
+    buckets.incrementAndGet(series * (BUCKETS.length + 1) + b);
+    sums.addAndGet(series, millis);
+    counts.incrementAndGet(series);
+  }
+
+  private static int series(int phase, int quality, int outcome) {
+    return (phase * QUALITIES.length + quality) * OUTCOMES.length + outcome;
+  }
+
+  private static int indexOf(String[] values, String value, int defaultIndex) {
+    for (int i = 0; i < values.length; i++) {
+      if (values[i].equals(value)) {
+        return i;
+      }
+    }
+    return defaultIndex;
+  }
+
+  /**
+   * Prometheus 文本格式，没有数据的序列不输出
+   */
+  public void export(StringBuilder out) {
+    String name = "manim_render_phase_seconds";
+    out.append("# HELP ").append(name).append(" Time spent in each phase of a /manim/run task\n");
+    out.append("# TYPE ").append(name).append(" histogram\n");
+    for (int p = 0; p < PHASES.length; p++) {
+      for (int q = 0; q < QUALITIES.length; q++) {
+        for (int o = 0; o < OUTCOMES.length; o++) {
+          int s = series(p, q, o);
+          long count = counts.get(s);
+          if (count == 0) {
+            continue;
+          }
+          String labels = "phase=\"" + PHASE_LABELS[p] + "\",quality=\"" + QUALITIES[q] + "\",outcome=\"" + OUTCOMES[o]
+              + "\"";
+          long cumulative = 0;
+          for (int b = 0; b <= BUCKETS.length; b++) {
+            cumulative += buckets.get(s * (BUCKETS.length + 1) + b);
+            String le = b < BUCKETS.length ? seconds(BUCKETS[b]) : "+Inf";
+            out.append(name).append("_bucket{").append(labels).append(",le=\"").append(le).append("\"} ")
+                .append(cumulative).append('\n');
+          }
+          out.append(name).append("_sum{").append(labels).append("} ").append(seconds(sums.get(s))).append('\n');
+          out.append(name).append("_count{").append(labels).append("} ").append(count).append('\n');
+        }
+      }
+    }
+  }
+
+  private static String seconds(long millis) {
+    return String.valueOf(millis / 1000d);
+  }
+}
@@ -0,0 +1,366 @@
+package com.litongjava.kit.service;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntConsumer;
+
+import com.jfinal.kit.Kv;
+import com.litongjava.kit.exception.RenderRejectedException;
+import com.litongjava.kit.vo.RenderKind;
+import com.litongjava.tio.utils.environment.EnvUtils;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 渲染准入调度
+ *
+ * 所有渲染共享 render.slots 个执行槽位，每种任务另有并发上限，等待队列按优先级排序(图片优先于视频)。
+ * 队列已满或排队超时直接拒绝，由 handler 返回 429 和排队位置、预计等待时间。
+ *
+ * <pre>
+ * render.slots=CPU 核数
+ * render.video.concurrency / render.image.concurrency / render.motion_canvas.concurrency / render.upgrade.concurrency
+ * render.video.queue.max / render.image.queue.max / render.motion_canvas.queue.max / render.upgrade.queue.max
+ * render.queue.max.wait.seconds=300
+ * </pre>
+ */
+@Slf4j
+public class RenderScheduler {
+
+  /** 排队时间直方图的桶上限(毫秒) */
+  public static final long[] WAIT_BUCKETS = { 100, 500, 1000, 5000, 10000, 30000, 60000, 120000, 300000 };
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final PriorityQueue<Waiter> queue = new PriorityQueue<>(
+      Comparator.comparingInt((Waiter w) -> w.kind.getPriority()).thenComparingLong(w -> w.seq));
+
+  private final int slots;
+  private final int[] limits = new int[RenderKind.values().length];
+  private final int[] queueMax = new int[RenderKind.values().length];
+  private final int[] running = new int[RenderKind.values().length];
+  private final int[] queued = new int[RenderKind.values().length];
+  private final double[] avgServiceMillis = new double[RenderKind.values().length];
+  private final long maxWaitMillis;
+  private int totalRunning;
+  private long seq;
+
+  private final LongAdder[][] waitHistogram = new LongAdder[RenderKind.values().length][WAIT_BUCKETS.length + 1];
+  private final LongAdder[] waitSum = new LongAdder[RenderKind.values().length];
+  private final AtomicLong[] rejected = new AtomicLong[RenderKind.values().length];
+
+  public RenderScheduler() {
+    slots = EnvUtils.getInt("render.slots", Runtime.getRuntime().availableProcessors());
+    for (RenderKind kind : RenderKind.values()) {
+      int i = kind.ordinal();
+      // 后台升级至少给交互请求留一个槽位，只有一个槽位时不做升级
+      int limit = kind == RenderKind.UPGRADE ? Math.max(0, slots - 1) : slots;
+      limits[i] = EnvUtils.getInt("render." + kind.getValue() + ".concurrency", limit);
+      int max = kind == RenderKind.IMAGE || kind == RenderKind.UPGRADE ? 16 : 4;
+      queueMax[i] = EnvUtils.getInt("render." + kind.getValue() + ".queue.max", max);
+      avgServiceMillis[i] = kind.getDefaultServiceMillis();
+      waitSum[i] = new LongAdder();
+      rejected[i] = new AtomicLong();
+      for (int b = 0; b <= WAIT_BUCKETS.length; b++) {
+        waitHistogram[i][b] = new LongAdder();
+      }
+    }
+    maxWaitMillis = EnvUtils.getInt("render.queue.max.wait.seconds", 300) * 1000L;
+  }
+
+  public RenderPermit acquire(RenderKind kind) throws InterruptedException {
+    return acquire(kind, null);
+  }
+
+  /**
+   * 获取一个渲染槽位，必须在 finally 中关闭返回的 permit
+   *
+   * @param onQueued 需要排队时回调当前排队位置(从 1 开始)
+   * @throws RenderRejectedException 队列已满或排队超时
+   */
+  public RenderPermit acquire(RenderKind kind, IntConsumer onQueued) throws InterruptedException {
+    int i = kind.ordinal();
+    long start = System.currentTimeMillis();
+    Waiter waiter;
+    int position;
+    if (!isEnabled(kind)) {
+      rejected[i].incrementAndGet();
+      throw new RenderRejectedException(kind, 0, 0, "Render kind is disabled:" + kind.getValue());
+    }
+    lock.lock();
+    try {
+      // 每次释放都会唤醒所有可运行的等待者，留在队列里的都是暂时不能运行的，所以这里只需判断自身是否可运行
+      if (canRun(kind)) {
+        grant(kind);
+        return permit(kind, start);
+      }
+      position = positionOf(kind.getPriority());
+      if (queued[i] >= queueMax[i]) {
+        rejected[i].incrementAndGet();
+        long eta = etaSeconds(kind);
+        log.warn("reject {} render, queued:{}, position:{}, eta:{}s", kind.getValue(), queued[i], position, eta);
+        throw new RenderRejectedException(kind, position, eta, "Render queue is full");
+      }
+      waiter = new Waiter(kind, seq++, lock.newCondition());
+      queue.add(waiter);
+      queued[i]++;
+    } finally {
+      lock.unlock();
+    }
+
+    if (onQueued != null) {
+      onQueued.accept(position);
+    }
+
+    lock.lock();
+    try {
+      long deadline = start + maxWaitMillis;
+      while (!waiter.granted) {
+        long remain = deadline - System.currentTimeMillis();
+        if (remain <= 0) {
+          queue.remove(waiter);
+          queued[i]--;
+          rejected[i].incrementAndGet();
+          int current = positionOf(waiter);
+          throw new RenderRejectedException(kind, current, etaSeconds(kind), "Render queue wait timeout");
+        }
+        try {
+          waiter.condition.await(remain, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+          if (waiter.granted) {
+            release(kind, 0);
+          } else {
+            queue.remove(waiter);
+            queued[i]--;
+          }
+          throw e;
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+    return permit(kind, start);
+  }
+
+  /**
+   * 不排队，只有槽位空闲并且没有其他请求在等待时才返回 permit，否则返回 null。
+   * 用于已经持有 permit 的任务借用额外的槽位(例如多场景并行渲染)，不会因为互相等待而死锁
+   */
+  public RenderPermit tryAcquire(RenderKind kind) {
+    lock.lock();
+    try {
+      if (!queue.isEmpty() || !canRun(kind)) {
+        return null;
+      }
+      grant(kind);
+      return new RenderPermit(kind, 0, false);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private RenderPermit permit(RenderKind kind, long start) {
+    long waitMillis = System.currentTimeMillis() - start;
+    int i = kind.ordinal();
+    waitSum[i].add(waitMillis);
+    waitHistogram[i][bucket(waitMillis)].increment();
+    return new RenderPermit(kind, waitMillis, true);
+  }
+
+  private static int bucket(long millis) {
+    for (int b = 0; b < WAIT_BUCKETS.length; b++) {
+      if (millis <= WAIT_BUCKETS[b]) {
+        return b;
+      }
+    }
+    return WAIT_BUCKETS.length;
+  }
+
+  private boolean canRun(RenderKind kind) {
+    return totalRunning < slots && running[kind.ordinal()] < limits[kind.ordinal()];
+  }
+
+  private void grant(RenderKind kind) {
+    running[kind.ordinal()]++;
+    totalRunning++;
+  }
+
+  private void release(RenderKind kind, long serviceMillis) {
+    lock.lock();
+    try {
+      int i = kind.ordinal();
+      running[i]--;
+      totalRunning--;
+      if (serviceMillis > 0) {
+        avgServiceMillis[i] = avgServiceMillis[i] * 0.8 + serviceMillis * 0.2;
+      }
+      dispatch();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * 按优先级依次唤醒可以运行的等待者，必须持有锁
+   */
+  private void dispatch() {
+    if (queue.isEmpty() || totalRunning >= slots) {
+      return;
+    }
+    List<Waiter> ordered = new ArrayList<>(queue);
+    ordered.sort(queue.comparator());
+    for (Waiter waiter : ordered) {
+      if (totalRunning >= slots) {
+        break;
+      }
+      if (canRun(waiter.kind)) {
+        queue.remove(waiter);
+        queued[waiter.kind.ordinal()]--;
+        grant(waiter.kind);
+        waiter.granted = true;
+        waiter.condition.signal();
+      }
+    }
+  }
+
+  private int positionOf(int priority) {
+    int position = 1;
+    for (Waiter w : queue) {
+      if (w.kind.getPriority() <= priority) {
+        position++;
+      }
+    }
+    return position;
+  }
+
+  private int positionOf(Waiter waiter) {
+    int position = 1;
+    for (Waiter w : queue) {
+      if (queue.comparator().compare(w, waiter) < 0) {
+        position++;
+      }
+    }
+    return position;
+  }
+
+  /**
+   * 预计等待时间: 前面排队任务的平均耗时之和加上自身耗时，再按槽位数平摊
+   */
+  private long etaSeconds(RenderKind kind) {
+    double total = avgServiceMillis[kind.ordinal()];
+    for (Waiter w : queue) {
+      if (w.kind.getPriority() <= kind.getPriority()) {
+        total += avgServiceMillis[w.kind.ordinal()];
+      }
+    }
+    return (long) Math.ceil(total / Math.max(1, slots) / 1000d);
+  }
+
+  /**
+   * 并发上限为 0 的任务类型不会被执行，例如单槽位时的后台升级
+   */
+  public boolean isEnabled(RenderKind kind) {
+    return limits[kind.ordinal()] > 0;
+  }
+
+  public long getEtaSeconds(RenderKind kind) {
+    lock.lock();
+    try {
+      return etaSeconds(kind);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public int getQueued(RenderKind kind) {
+    lock.lock();
+    try {
+      return queued[kind.ordinal()];
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public int getRunning(RenderKind kind) {
+    lock.lock();
+    try {
+      return running[kind.ordinal()];
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public Kv stats() {
+    Kv kv = Kv.by("slots", slots);
+    lock.lock();
+    try {
+      kv.set("running", totalRunning).set("queued", queue.size());
+      for (RenderKind kind : RenderKind.values()) {
+        int i = kind.ordinal();
+        Map<String, Long> histogram = new LinkedHashMap<>();
+        long count = 0;
+        for (int b = 0; b <= WAIT_BUCKETS.length; b++) {
+          count += waitHistogram[i][b].sum();
+          histogram.put(b < WAIT_BUCKETS.length ? String.valueOf(WAIT_BUCKETS[b]) : "+Inf", count);
+        }
+        Kv item = Kv.by("running", running[i]).set("queued", queued[i]).set("limit", limits[i]);
+        item.set("queue_max", queueMax[i]).set("avg_service_ms", (long) avgServiceMillis[i]);
+        item.set("rejected", rejected[i].get()).set("wait_count", count).set("wait_sum_ms", waitSum[i].sum());
+        item.set("wait_ms_bucket", histogram);
+        kv.set(kind.getValue(), item);
+      }
+    } finally {
+      lock.unlock();
+    }
+    return kv;
+  }
+
+  private static class Waiter {
+    private final RenderKind kind;
+    private final long seq;
+    private final Condition condition;
+    private boolean granted;
+
+    private Waiter(RenderKind kind, long seq, Condition condition) {
+      this.kind = kind;
+      this.seq = seq;
+      this.condition = condition;
+    }
+  }
+
+  public class RenderPermit implements AutoCloseable {
+    private final RenderKind kind;
+    private final long waitMillis;
+    private final long grantedTime = System.currentTimeMillis();
+    // 借用的槽位不计入平均耗时，避免影响预计等待时间
+    private final boolean tracked;
+    private boolean closed;
+
+    private RenderPermit(RenderKind kind, long waitMillis, boolean tracked) {
+      this.kind = kind;
+      this.waitMillis = waitMillis;
+      this.tracked = tracked;
+    }
+
+    public long getWaitMillis() {
+      return waitMillis;
+    }
+
+    @Override
+    public void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      release(kind, tracked ? System.currentTimeMillis() - grantedTime : 0);
+    }
+  }
+}
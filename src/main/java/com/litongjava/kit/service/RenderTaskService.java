@@ -0,0 +1,248 @@
+package com.litongjava.kit.service;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.jfinal.kit.Kv;
+import com.litongjava.kit.exception.RenderCancelledException;
+import com.litongjava.kit.vo.RenderKind;
+import com.litongjava.tio.core.ChannelContext;
+import com.litongjava.tio.utils.environment.EnvUtils;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 正在执行的渲染请求，按 code_id 登记。客户端断开连接、调用取消接口或者同一个 code_id 的新请求到达时，
+ * 杀掉渲染子进程(连同子孙进程)并释放渲染槽位
+ *
+ * 同一个 code_id 的新旧请求同时存在时各自使用 {code_id}_{n} 命名的脚本、标记和任务目录，执行过程中通过 current()
+ * 拿到本次请求自己的 RenderTask，旧请求能看到自己被取消，也不会删除新请求的文件。
+ *
+ * 命令行直接启动的子进程(manim、npm)按命令行中的标记(脚本路径、子项目路径)查找；
+ * 预热 worker fork 出的子进程和排队中的请求通过中断等待线程结束，由 ManimWorker 和 RenderScheduler 处理
+ *
+ * <pre>
+ * render.cancel.watch.interval.ms=1000
+ * </pre>
+ */
+@Slf4j
+public class RenderTaskService {
+
+  private static final int RECENT_SIZE = 50;
+
+  private final Map<String, RenderTask> tasks = new ConcurrentHashMap<>();
+  private final Map<String, AtomicLong> cancelled = new ConcurrentHashMap<>();
+  private final Deque<Kv> recent = new ArrayDeque<>();
+  private final AtomicLong killed = new AtomicLong();
+  private final AtomicLong attempts = new AtomicLong();
+  // 请求线程登记的任务，渲染在请求线程上执行
+  private final ThreadLocal<RenderTask> current = new ThreadLocal<>();
+  private volatile boolean started;
+
+  /**
+   * 启动断开连接检测
+   */
+  public synchronized void start() {
+    if (started) {
+      return;
+    }
+    started = true;
+    Thread.ofVirtual().name("render-task-watchdog").start(this::watch);
+  }
+
+  private void watch() {
+    long interval = EnvUtils.getLong("render.cancel.watch.interval.ms", 1000L);
+    while (true) {
+      try {
+        Thread.sleep(interval);
+      } catch (InterruptedException e) {
+        return;
+      }
+      for (RenderTask task : tasks.values()) {
+        ChannelContext channelContext = task.channelContext;
+        if (channelContext != null && channelContext.isClosed && task.reason == null) {
+          cancel(task, "client disconnected");
+        }
+      }
+    }
+  }
+
+  /**
+   * 登记一个渲染请求，必须在 finally 中关闭返回的 task。同一个 code_id 正在执行的旧请求会被取消
+   *
+   * @param channelContext 用于检测客户端断开，可以为 null
+   */
+  public RenderTask register(String id, RenderKind kind, ChannelContext channelContext) {
+    RenderTask task = new RenderTask(id, attemptName(id), kind, channelContext);
+    current.set(task);
+    RenderTask previous = tasks.put(id, task);
+    if (previous != null) {
+      cancel(previous, "superseded");
+    }
+    return task;
+  }
+
+  /**
+   * 当前线程登记的任务，按 code_id 查找会拿到替换它的新请求
+   *
+   * @return 没有登记时返回 null，例如后台升级
+   */
+  public RenderTask current() {
+    return current.get();
+  }
+
+  /**
+   * 本次执行使用的名称，同一个 code_id 的每次请求都不同
+   */
+  public String attemptName(String id) {
+    return id + "_" + attempts.incrementAndGet();
+  }
+
+  /**
+   * @return 没有正在执行的任务时返回 null
+   */
+  public RenderTask cancel(String id, String reason) {
+    RenderTask task = tasks.get(id);
+    if (task != null) {
+      cancel(task, reason);
+    }
+    return task;
+  }
+
+  private void cancel(RenderTask task, String reason) {
+    synchronized (task) {
+      if (task.reason != null) {
+        return;
+      }
+      task.reason = reason;
+      if (!task.closed) {
+        // 排队中或者等待 worker 的线程
+        task.owner.interrupt();
+      }
+    }
+    long elapsed = System.currentTimeMillis() - task.startTime;
+    int count = kill(task.markers);
+    log.info("cancel render {} {}, reason:{}, elapsed:{}ms, killed:{}", task.kind.getValue(), task.id, reason, elapsed,
+        count);
+
+    cancelled.computeIfAbsent(reason, k -> new AtomicLong()).incrementAndGet();
+    synchronized (recent) {
+      recent.addFirst(Kv.by("code_id", task.id).set("kind", task.kind.getValue()).set("reason", reason)
+          .set("elapsed_ms", elapsed).set("killed", count).set("time", System.currentTimeMillis()));
+      while (recent.size() > RECENT_SIZE) {
+        recent.removeLast();
+      }
+    }
+  }
+
+  /**
+   * 杀掉命令行中包含标记的子进程及其子孙进程
+   */
+  private int kill(Set<String> markers) {
+    if (markers.isEmpty()) {
+      return 0;
+    }
+    int count = 0;
+    for (ProcessHandle handle : (Iterable<ProcessHandle>) ProcessHandle.current().descendants()::iterator) {
+      String commandLine = handle.info().commandLine().orElse(null);
+      if (commandLine == null || markers.stream().noneMatch(commandLine::contains)) {
+        continue;
+      }
+      handle.descendants().forEach(ProcessHandle::destroyForcibly);
+      if (handle.destroyForcibly()) {
+        count++;
+      }
+    }
+    killed.addAndGet(count);
+    return count;
+  }
+
+  public Kv stats() {
+    List<Kv> running = new ArrayList<>();
+    long now = System.currentTimeMillis();
+    for (RenderTask task : tasks.values()) {
+      running.add(Kv.by("code_id", task.id).set("kind", task.kind.getValue())
+          .set("elapsed_ms", now - task.startTime).set("cancelled", task.reason != null));
+    }
+    Kv counts = Kv.create();
+    cancelled.forEach((reason, count) -> counts.set(reason, count.get()));
+    synchronized (recent) {
+      return Kv.by("running", running).set("cancelled", counts).set("killed_processes", killed.get())
+          .set("recent", new ArrayList<>(recent));
+    }
+  }
+
+  public class RenderTask implements AutoCloseable {
+    private final String id;
+    private final String name;
+    private final RenderKind kind;
+    private final ChannelContext channelContext;
+    private final Thread owner = Thread.currentThread();
+    private final Set<String> markers = new CopyOnWriteArraySet<>();
+    private final long startTime = System.currentTimeMillis();
+    private volatile String reason;
+    private boolean closed;
+
+    private RenderTask(String id, String name, RenderKind kind, ChannelContext channelContext) {
+      this.id = id;
+      this.name = name;
+      this.kind = kind;
+      this.channelContext = channelContext;
+    }
+
+    /**
+     * 脚本、任务目录和进程标记使用的名称
+     */
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * 在启动子进程之前记录命令行中的标记，取消时按标记查找子进程
+     *
+     * @throws RenderCancelledException 任务已经被取消
+     */
+    public void addMarker(String marker) {
+      markers.add(marker);
+      checkCancelled();
+    }
+
+    public boolean isCancelled() {
+      return reason != null;
+    }
+
+    public String getReason() {
+      return reason;
+    }
+
+    public void checkCancelled() {
+      if (reason != null) {
+        throw new RenderCancelledException(reason);
+      }
+    }
+
+    @Override
+    public void close() {
+      synchronized (this) {
+        closed = true;
+      }
+      tasks.remove(id, this);
+      if (Thread.currentThread() == owner) {
+        if (current.get() == this) {
+          current.remove();
+        }
+        if (reason != null) {
+          // 请求线程可能来自线程池，清除取消时设置的中断状态
+          Thread.interrupted();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,9 @@
+package com.litongjava.kit.service;
+
+/**
+ * 上传单个文件到存储平台，返回远程 URL
+ */
+@FunctionalInterface
+public interface StorageUploader {
+  String upload(String platform, String localPath, String targetName) throws Exception;
+}
@@ -0,0 +1,253 @@
+package com.litongjava.kit.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.litongjava.model.http.response.ResponseVo;
+import com.litongjava.tio.utils.crypto.Md5Utils;
+import com.litongjava.tio.utils.environment.EnvUtils;
+import com.litongjava.tio.utils.http.HttpUtils;
+import com.litongjava.tio.utils.path.WorkDirUtils;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 渲染前从脚本中提取 custom_voiceover_tts 的文本，在渲染排队和执行的同时合成语音
+ *
+ * 音频写入 manim_toolkit 使用的缓存 media/audio/{md5}.mp3，合成期间存在 {md5}.mp3.part 标记，
+ * manim_toolkit 看到标记时等待合成结束，不再重复请求 /tts。合成仍然走 /tts 接口，复用 uni_tts_cache。
+ *
+ * <pre>
+ * tts.prefetch.enabled=true
+ * tts.prefetch.base.url=http://127.0.0.1
+ * tts.prefetch.token=123456
+ * tts.prefetch.concurrency=4
+ * </pre>
+ */
+@Slf4j
+public class TtsPrefetchService {
+
+  public static final String PART_SUFFIX = ".part";
+
+  // custom_voiceover_tts("...") 或 custom_voiceover_tts(text="...")，只处理字符串字面量，f-string 和变量跳过
+  private static final Pattern CALL = Pattern.compile("custom_voiceover_tts\\(\\s*(?:text\\s*=\\s*)?([rRuU]?)"
+      + "(\"\"\"|'''|\"|')");
+
+  private final AtomicLong requested = new AtomicLong();
+  private final AtomicLong cached = new AtomicLong();
+  private final AtomicLong synthesized = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private volatile Semaphore permits;
+
+  /**
+   * 上次退出时残留的标记会让 manim_toolkit 空等，启动时删除
+   */
+  public void start() {
+    File[] parts = audioDir().listFiles((dir, name) -> name.endsWith(PART_SUFFIX));
+    if (parts != null) {
+      for (File part : parts) {
+        part.delete();
+      }
+    }
+  }
+
+  /**
+   * 异步合成脚本中还没有缓存的语音，立即返回
+   *
+   * @return 开始合成的文本数量
+   */
+  public int prefetch(String code) {
+    if (code == null || !EnvUtils.getBoolean("tts.prefetch.enabled", true)) {
+      return 0;
+    }
+    List<String> texts = extract(code);
+    if (texts.isEmpty()) {
+      return 0;
+    }
+    File audioDir = audioDir();
+    audioDir.mkdirs();
+    int started = 0;
+    for (String text : texts) {
+      requested.incrementAndGet();
+      // 与 manim_toolkit 的 get_cache_filename 一致
+      String md5 = Md5Utils.md5Hex(text);
+      File audio = new File(audioDir, md5 + ".mp3");
+      if (audio.exists()) {
+        cached.incrementAndGet();
+        continue;
+      }
+      File part = new File(audioDir, md5 + ".mp3" + PART_SUFFIX);
+      try {
+        if (!part.createNewFile()) {
+          // 其他请求正在合成
+          continue;
+        }
+      } catch (IOException e) {
+        log.warn("create tts marker failed:{}", e.getMessage());
+        continue;
+      }
+      started++;
+      Thread.ofVirtual().name("tts-prefetch-" + md5).start(() -> synthesize(text, audio, part));
+    }
+    if (started > 0) {
+      log.info("tts prefetch:{}/{}", started, texts.size());
+    }
+    return started;
+  }
+
+  private void synthesize(String text, File audio, File part) {
+    Semaphore semaphore = permits();
+    long start = System.currentTimeMillis();
+    try {
+      semaphore.acquire();
+      try {
+        String baseUrl = EnvUtils.get("tts.prefetch.base.url", "http://127.0.0.1");
+        String token = EnvUtils.get("tts.prefetch.token", "123456");
+        String url = baseUrl + "/tts?token=" + token + "&input=" + URLEncoder.encode(text, StandardCharsets.UTF_8);
+        ResponseVo responseVo = HttpUtils.download(url);
+        if (!responseVo.isOk() || responseVo.getBodyBytes() == null || responseVo.getBodyBytes().length == 0) {
+          failed.incrementAndGet();
+          log.warn("tts prefetch failed:{}", audio.getName());
+          return;
+        }
+        // 先写临时文件再改名，manim_toolkit 不会读到写了一半的音频
+        File tmp = new File(audio.getParentFile(), audio.getName() + ".tmp");
+        Files.write(tmp.toPath(), responseVo.getBodyBytes());
+        Files.move(tmp.toPath(), audio.toPath(), StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+        synthesized.incrementAndGet();
+        log.info("tts prefetched:{},{}ms", audio.getName(), System.currentTimeMillis() - start);
+      } finally {
+        semaphore.release();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (Exception e) {
+      failed.incrementAndGet();
+      log.warn("tts prefetch failed:{},{}", audio.getName(), e.getMessage());
+    } finally {
+      // 失败时由 manim_toolkit 自己请求
+      part.delete();
+    }
+  }
+
+  private Semaphore permits() {
+    if (permits == null) {
+      synchronized (this) {
+        if (permits == null) {
+          permits = new Semaphore(Math.max(1, EnvUtils.getInt("tts.prefetch.concurrency", 4)), true);
+        }
+      }
+    }
+    return permits;
+  }
+
+  private static File audioDir() {
+    return new File(WorkDirUtils.workingMediaDir, "audio");
+  }
+
+  /**
+   * 提取 custom_voiceover_tts 的文本参数，按出现顺序去重。含有无法确定取值的转义时跳过该文本
+   */
+  public static List<String> extract(String code) {
+    Set<String> texts = new LinkedHashSet<>();
+    Matcher matcher = CALL.matcher(code);
+    while (matcher.find()) {
+      boolean raw = matcher.group(1).equalsIgnoreCase("r");
+      String quote = matcher.group(2);
+      int end = code.indexOf(quote, matcher.end());
+      while (end > 0 && isEscaped(code, end)) {
+        end = code.indexOf(quote, end + 1);
+      }
+      if (end < 0) {
+        continue;
+      }
+      String literal = code.substring(matcher.end(), end);
+      // 紧跟的字面量会被 python 拼接，这种情况交给 manim_toolkit
+      String rest = code.substring(end + quote.length()).stripLeading();
+      if (!rest.startsWith(",") && !rest.startsWith(")")) {
+        continue;
+      }
+      String text = raw ? literal : unescape(literal);
+      if (text != null && !text.isEmpty()) {
+        texts.add(text);
+      }
+    }
+    return new ArrayList<>(texts);
+  }
+
+  private static boolean isEscaped(String code, int index) {
+    int backslashes = 0;
+    for (int i = index - 1; i >= 0 && code.charAt(i) == '\\'; i--) {
+      backslashes++;
+    }
+    return backslashes % 2 == 1;
+  }
+
+  private static String unescape(String literal) {
+    StringBuilder sb = new StringBuilder(literal.length());
+    for (int i = 0; i < literal.length(); i++) {
+      char c = literal.charAt(i);
+      if (c != '\\') {
+        sb.append(c);
+        continue;
+      }
+      if (i + 1 >= literal.length()) {
+        return null;
+      }
+      char next = literal.charAt(++i);
+      switch (next) {
+      case 'n':
+        sb.append('\n');
+        break;
+      case 't':
+        sb.append('\t');
+        break;
+      case '\\':
+      case '\'':
+      case '"':
+        sb.append(next);
+        break;
+      case '\n':
+        // 行尾的反斜杠是续行
+        break;
+      case 'u':
+        if (i + 4 >= literal.length()) {
+          return null;
+        }
+        try {
+          sb.append((char) Integer.parseInt(literal.substring(i + 1, i + 5), 16));
+        } catch (NumberFormatException e) {
+          return null;
+        }
+        i += 4;
+        break;
+      default:
+        return null;
+      }
+    }
+    return sb.toString();
+  }
+
+  public void export(StringBuilder out) {
+    String name = "manim_tts_prefetch_total";
+    out.append("# HELP ").append(name).append(" Voiceover texts seen by the TTS prefetcher\n");
+    out.append("# TYPE ").append(name).append(" counter\n");
+    out.append(name).append("{result=\"requested\"} ").append(requested.get()).append('\n');
+    out.append(name).append("{result=\"cached\"} ").append(cached.get()).append('\n');
+    out.append(name).append("{result=\"synthesized\"} ").append(synthesized.get()).append('\n');
+    out.append(name).append("{result=\"failed\"} ").append(failed.get()).append('\n');
+  }
+}
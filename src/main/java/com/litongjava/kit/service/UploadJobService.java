@@ -0,0 +1,237 @@
+package com.litongjava.kit.service;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.jfinal.kit.Kv;
+import com.litongjava.db.activerecord.Db;
+import com.litongjava.db.activerecord.Row;
+import com.litongjava.jfinal.aop.Aop;
+import com.litongjava.tio.boot.admin.services.storage.StorageUploadService;
+import com.litongjava.tio.boot.admin.vo.UploadInput;
+import com.litongjava.tio.boot.admin.vo.UploadResultVo;
+import com.litongjava.tio.utils.environment.EnvUtils;
+import com.litongjava.tio.utils.snowflake.SnowflakeIdUtils;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 后台上传队列，任务保存在 sqlite 的 kit_upload_job 表中，失败后按指数退避重试，服务重启后继续执行
+ *
+ * <pre>
+ * upload.async=true
+ * upload.concurrency=4
+ * upload.max.attempts=8
+ * upload.retry.base.ms=2000
+ * upload.retry.max.ms=600000
+ * upload.poll.interval.ms=1000
+ * </pre>
+ */
+@Slf4j
+public class UploadJobService {
+
+  public static final String TABLE_NAME = "kit_upload_job";
+  public static final String STATUS_PENDING = "pending";
+  public static final String STATUS_RUNNING = "running";
+  public static final String STATUS_DONE = "done";
+  public static final String STATUS_FAILED = "failed";
+
+  private final BlockingQueue<Boolean> signals = new LinkedBlockingQueue<>();
+  private volatile StorageUploader uploader = UploadJobService::uploadToStorage;
+  private volatile boolean started;
+  private Semaphore permits;
+
+  public synchronized void start() {
+    if (started) {
+      return;
+    }
+    started = true;
+    permits = new Semaphore(Math.max(1, EnvUtils.getInt("upload.concurrency", 4)));
+    // 上次退出时正在上传的任务重新执行
+    int reset = Db.update("update " + TABLE_NAME + " set status=? where status=?", STATUS_PENDING, STATUS_RUNNING);
+    if (reset > 0) {
+      log.info("reset {} running upload jobs", reset);
+    }
+    Thread.ofVirtual().name("upload-job-poller").start(this::loop);
+  }
+
+  public boolean isAsync() {
+    return EnvUtils.getBoolean("upload.async", true);
+  }
+
+  /**
+   * 添加一个上传任务
+   *
+   * @param bizId 业务 id，例如 task id 或 session id，用于查询状态
+   * @return 任务 id
+   */
+  public long submit(String platform, String bizId, String localPath, String targetName) {
+    long id = SnowflakeIdUtils.id();
+    String sql = "insert into " + TABLE_NAME
+        + " (id, biz_id, platform, local_path, target_name, status, attempts, next_run_time) values (?,?,?,?,?,?,?,?)";
+    Db.update(sql, id, bizId, platform, localPath, targetName, STATUS_PENDING, 0, 0L);
+    log.info("submit upload job:{},{},{}", id, bizId, targetName);
+    signals.offer(Boolean.TRUE);
+    return id;
+  }
+
+  public Row findById(long id) {
+    return Db.findFirst("select * from " + TABLE_NAME + " where id=?", id);
+  }
+
+  public List<Row> findByBizId(String bizId) {
+    return Db.find("select * from " + TABLE_NAME + " where biz_id=? order by id", bizId);
+  }
+
+  private void loop() {
+    long interval = EnvUtils.getLong("upload.poll.interval.ms", 1000L);
+    while (true) {
+      try {
+        dispatch();
+      } catch (Exception e) {
+        log.error("Failed to dispatch upload jobs:{}", e.getMessage(), e);
+      }
+      try {
+        signals.poll(interval, TimeUnit.MILLISECONDS);
+        signals.clear();
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  private void dispatch() {
+    int available = permits.availablePermits();
+    if (available < 1) {
+      return;
+    }
+    String sql = "select * from " + TABLE_NAME + " where status=? and next_run_time<=? order by next_run_time, id limit ?";
+    List<Row> jobs = Db.find(sql, STATUS_PENDING, System.currentTimeMillis(), available);
+    for (Row job : jobs) {
+      if (!permits.tryAcquire()) {
+        return;
+      }
+      Long id = job.getLong("id");
+      String claim = "update " + TABLE_NAME
+          + " set status=?, attempts=attempts+1, update_time=CURRENT_TIMESTAMP where id=? and status=?";
+      if (Db.update(claim, STATUS_RUNNING, id, STATUS_PENDING) != 1) {
+        permits.release();
+        continue;
+      }
+      Thread.ofVirtual().name("upload-job-" + id).start(() -> {
+        try {
+          run(job);
+        } finally {
+          permits.release();
+          signals.offer(Boolean.TRUE);
+        }
+      });
+    }
+  }
+
+  private void run(Row job) {
+    Long id = job.getLong("id");
+    int attempts = job.getInt("attempts") + 1;
+    String platform = job.getStr("platform");
+    String localPath = job.getStr("local_path");
+    String targetName = job.getStr("target_name");
+
+    if (!new File(localPath).exists()) {
+      // 文件已经不存在，重试没有意义
+      finish(id, STATUS_FAILED, null, "file not found:" + localPath, 0);
+      return;
+    }
+
+    long start = System.currentTimeMillis();
+    try {
+      String url = uploader.upload(platform, localPath, targetName);
+      log.info("uploaded job:{},{},{}ms", id, url, System.currentTimeMillis() - start);
+      finish(id, STATUS_DONE, url, null, 0);
+    } catch (Exception e) {
+      String error = e.getMessage() != null ? e.getMessage() : e.getClass().getName();
+      int maxAttempts = EnvUtils.getInt("upload.max.attempts", 8);
+      if (attempts >= maxAttempts) {
+        log.error("upload job {} failed after {} attempts:{}", id, attempts, error);
+        finish(id, STATUS_FAILED, null, error, 0);
+      } else {
+        long delay = backoffMillis(attempts);
+        log.warn("upload job {} failed, attempt:{}, retry in {}ms:{}", id, attempts, delay, error);
+        finish(id, STATUS_PENDING, null, error, System.currentTimeMillis() + delay);
+      }
+    }
+  }
+
+  private void finish(Long id, String status, String url, String error, long nextRunTime) {
+    String sql = "update " + TABLE_NAME
+        + " set status=?, url=?, last_error=?, next_run_time=?, update_time=CURRENT_TIMESTAMP where id=?";
+    Db.update(sql, status, url, error, nextRunTime, id);
+  }
+
+  /**
+   * 指数退避，带 20% 的随机抖动，避免大量任务同时重试
+   */
+  private long backoffMillis(int attempts) {
+    long base = EnvUtils.getLong("upload.retry.base.ms", 2000L);
+    long max = EnvUtils.getLong("upload.retry.max.ms", 600000L);
+    long delay = base << Math.min(attempts - 1, 20);
+    delay = Math.min(delay, max);
+    double jitter = 0.8 + ThreadLocalRandom.current().nextDouble() * 0.4;
+    return (long) (delay * jitter);
+  }
+
+  /**
+   * 同步上传，upload.async=false 时使用
+   */
+  public String uploadNow(String platform, String localPath, String targetName) throws Exception {
+    return uploader.upload(platform, localPath, targetName);
+  }
+
+  private static String uploadToStorage(String platform, String localPath, String targetName) throws Exception {
+    List<UploadInput> inputs = Collections.singletonList(new UploadInput(localPath, targetName));
+    List<UploadResultVo> results = Aop.get(StorageUploadService.class).uploadFile(platform, inputs);
+    if (results == null || results.isEmpty() || results.get(0).getUrl() == null) {
+      throw new IllegalStateException("empty upload result:" + targetName);
+    }
+    return results.get(0).getUrl();
+  }
+
+  /**
+   * 替换上传实现，例如测试时指向本地的 S3 兼容服务
+   */
+  public void setUploader(StorageUploader uploader) {
+    this.uploader = uploader;
+  }
+
+  public static Kv toKv(Row job) {
+    Kv kv = Kv.by("id", String.valueOf(job.getLong("id"))).set("biz_id", job.getStr("biz_id"));
+    kv.set("target_name", job.getStr("target_name")).set("status", job.getStr("status"));
+    kv.set("url", job.getStr("url")).set("attempts", job.getInt("attempts"));
+    kv.set("last_error", job.getStr("last_error"));
+    return kv;
+  }
+
+  public List<Kv> status(String bizId) {
+    List<Row> jobs = findByBizId(bizId);
+    List<Kv> list = new ArrayList<>(jobs.size());
+    for (Row job : jobs) {
+      list.add(toKv(job));
+    }
+    return list;
+  }
+
+  public Kv stats() {
+    Kv kv = Kv.create();
+    for (String status : new String[] { STATUS_PENDING, STATUS_RUNNING, STATUS_DONE, STATUS_FAILED }) {
+      Long count = Db.queryLong("select count(*) from " + TABLE_NAME + " where status=?", status);
+      kv.set(status, count == null ? 0 : count);
+    }
+    return kv;
+  }
+}
@@ -1,5 +1,6 @@
 package com.litongjava.kit.store;
 
+import java.util.Collection;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
@@ -22,6 +23,12 @@ public class HlsSessionStore {
     }
   }
 
+  public static void put(Long sessionId, HlsSession session) {
+    if (sessionId != null && session != null && session.getPrt() != null) {
+      SESSION_MAP.put(sessionId, session);
+    }
+  }
+
   public static HlsSession get(Long sessionId) {
     if (sessionId == null) {
       return null;
@@ -36,6 +43,21 @@ public class HlsSessionStore {
     return SESSION_MAP.remove(sessionId);
   }
 
+  /**
+   * 只有映射的仍然是同一个会话时才删除，避免删除刚恢复的新句柄
+   */
+  public static boolean remove(Long sessionId, HlsSession session) {
+    return sessionId != null && SESSION_MAP.remove(sessionId, session);
+  }
+
+  public static Collection<HlsSession> sessions() {
+    return SESSION_MAP.values();
+  }
+
+  public static int size() {
+    return SESSION_MAP.size();
+  }
+
   // 如果需要，可以增加一个 contains 方法
   public static boolean contains(Long sessionId) {
     return sessionId != null && SESSION_MAP.containsKey(sessionId);
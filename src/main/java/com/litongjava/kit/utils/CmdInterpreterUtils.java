@@ -3,8 +3,10 @@ package com.litongjava.kit.utils;
 import java.io.File;
 import java.io.IOException;
 
+import com.litongjava.jfinal.aop.Aop;
+import com.litongjava.kit.service.ProcessGovernor;
+import com.litongjava.kit.vo.ProcessKind;
 import com.litongjava.tio.utils.commandline.ProcessResult;
-import com.litongjava.tio.utils.commandline.ProcessUtils;
 import com.litongjava.tio.utils.snowflake.SnowflakeIdUtils;
 
 public class CmdInterpreterUtils {
@@ -27,7 +29,7 @@ public class CmdInterpreterUtils {
     }
 
     try {
-      result = ProcessUtils.execute(fileFolder, processBuilder);
+      result = Aop.get(ProcessGovernor.class).execute(ProcessKind.CMD, fileFolder, "cmd", processBuilder, 0);
       result.setTaskId(id);
     } catch (IOException | InterruptedException e) {
       result.setStdErr(e.getMessage());
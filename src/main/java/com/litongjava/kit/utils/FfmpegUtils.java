@@ -10,8 +10,10 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
 
+import com.litongjava.jfinal.aop.Aop;
+import com.litongjava.kit.service.ProcessGovernor;
+import com.litongjava.kit.vo.ProcessKind;
 import com.litongjava.tio.utils.commandline.ProcessResult;
-import com.litongjava.tio.utils.commandline.ProcessUtils;
 import com.litongjava.tio.utils.snowflake.SnowflakeIdUtils;
 
 import lombok.extern.slf4j.Slf4j;
@@ -64,7 +66,159 @@ public class FfmpegUtils {
     long id = SnowflakeIdUtils.id();
     log.info("id:{} cmd:{}", id, String.join(" ", command));
     File logDir = new File(LOG_FOLDER, String.valueOf(id));
-    return ProcessUtils.execute(logDir, id + "", pb, 10 * 60);
+    return Aop.get(ProcessGovernor.class).execute(ProcessKind.FFMPEG, logDir, id + "", pb, 10 * 60);
+  }
+
+  /**
+   * 不重新编码，把 mp4 转为 mpegts，时间戳整体偏移 offsetSeconds，便于多个 ts 直接按字节拼接
+   */
+  public static ProcessResult mp4ToTs(String inputFile, String outputFile, double offsetSeconds)
+      throws IOException, InterruptedException {
+    List<String> command = new ArrayList<>();
+    command.add("ffmpeg");
+    command.add("-v");
+    command.add("error");
+    command.add("-i");
+    command.add(new File(inputFile).getAbsolutePath());
+    command.add("-c");
+    command.add("copy");
+    command.add("-bsf:v");
+    command.add("h264_mp4toannexb");
+    command.add("-muxdelay");
+    command.add("0");
+    command.add("-muxpreload");
+    command.add("0");
+    command.add("-output_ts_offset");
+    command.add(String.format(Locale.ROOT, "%.6f", offsetSeconds));
+    command.add("-f");
+    command.add("mpegts");
+    command.add("-y");
+    command.add(new File(outputFile).getAbsolutePath());
+    return execute(command, 5 * 60);
+  }
+
+  /** 不重新编码，把拼接好的 ts 封装为 mp4 */
+  public static ProcessResult tsToMp4(String inputFile, String outputFile) throws IOException, InterruptedException {
+    List<String> command = new ArrayList<>();
+    command.add("ffmpeg");
+    command.add("-v");
+    command.add("error");
+    command.add("-i");
+    command.add(new File(inputFile).getAbsolutePath());
+    command.add("-c");
+    command.add("copy");
+    command.add("-bsf:a");
+    command.add("aac_adtstoasc");
+    command.add("-movflags");
+    command.add("+faststart");
+    command.add("-y");
+    command.add(new File(outputFile).getAbsolutePath());
+    return execute(command, 10 * 60);
+  }
+
+  /**
+   * 一次解码同时生成 mp4、加水印的 mp4 和 mp3
+   *
+   * <pre>
+   * combined.ts -+- copy -------------------> combined.mp4
+   *              +- [0:v] drawtext + x264 --> combined_watermark.mp4 (音频 copy)
+   *              +- [0:a] mp3 --------------> combined.mp3
+   * </pre>
+   *
+   * @param watermarkFile 水印文本文件，避免命令行转义
+   * @param fontFile      字体文件，为 null 时使用 fontconfig 默认字体
+   * @param outputMp3     为 null 时不输出 mp3
+   */
+  public static ProcessResult finishSinglePass(String inputTs, String outputMp4, String outputWatermark,
+      File watermarkFile, String fontFile, int fontSize, String outputMp3) throws IOException, InterruptedException {
+    StringBuilder drawtext = new StringBuilder("[0:v]drawtext=textfile='");
+    drawtext.append(escapeFilterPath(watermarkFile.getAbsolutePath())).append('\'');
+    if (fontFile != null) {
+      drawtext.append(":fontfile='").append(escapeFilterPath(fontFile)).append('\'');
+    }
+    drawtext.append(":fontsize=").append(fontSize);
+    drawtext.append(":fontcolor=white@0.6:x=w-tw-10:y=h-th-10[wm]");
+
+    List<String> command = new ArrayList<>();
+    command.add("ffmpeg");
+    command.add("-v");
+    command.add("error");
+    command.add("-i");
+    command.add(new File(inputTs).getAbsolutePath());
+    command.add("-filter_complex");
+    command.add(drawtext.toString());
+
+    // 1. 原始视频，不重新编码
+    command.add("-map");
+    command.add("0:v");
+    command.add("-map");
+    command.add("0:a?");
+    command.add("-c");
+    command.add("copy");
+    command.add("-bsf:a");
+    command.add("aac_adtstoasc");
+    command.add("-movflags");
+    command.add("+faststart");
+    command.add("-y");
+    command.add(new File(outputMp4).getAbsolutePath());
+
+    // 2. 水印视频，只有视频需要重新编码
+    command.add("-map");
+    command.add("[wm]");
+    command.add("-map");
+    command.add("0:a?");
+    command.add("-c:v");
+    command.add("libx264");
+    command.add("-preset");
+    command.add("veryfast");
+    command.add("-crf");
+    command.add("23");
+    command.add("-pix_fmt");
+    command.add("yuv420p");
+    command.add("-c:a");
+    command.add("copy");
+    command.add("-bsf:a");
+    command.add("aac_adtstoasc");
+    command.add("-movflags");
+    command.add("+faststart");
+    command.add("-y");
+    command.add(new File(outputWatermark).getAbsolutePath());
+
+    // 3. 音频
+    if (outputMp3 != null) {
+      command.add("-map");
+      command.add("0:a");
+      command.add("-c:a");
+      command.add("libmp3lame");
+      command.add("-q:a");
+      command.add("4");
+      command.add("-y");
+      command.add(new File(outputMp3).getAbsolutePath());
+    }
+    return execute(command, 20 * 60);
+  }
+
+  private static String escapeFilterPath(String path) {
+    return path.replace("\\", "/").replace(":", "\\:").replace("'", "\\'");
+  }
+
+  /**
+   * 音视频流参数签名，签名相同的文件才能不重新编码直接拼接
+   */
+  public static String streamSignature(File mp4) throws IOException, InterruptedException {
+    List<String> command = Arrays.asList("ffprobe", "-v", "error", "-show_entries",
+        "stream=codec_type,codec_name,profile,width,height,pix_fmt,sample_rate,channels", "-of", "csv=p=0",
+        mp4.getAbsolutePath());
+    return execAndGetStdout(command, 15).trim().replace("\r", "").replace('\n', '|');
+  }
+
+  private static ProcessResult execute(List<String> command, int timeoutSeconds)
+      throws IOException, InterruptedException {
+    long id = SnowflakeIdUtils.id();
+    log.info("id:{} cmd:{}", id, String.join(" ", command));
+    File logDir = new File(LOG_FOLDER, String.valueOf(id));
+    return Aop.get(ProcessGovernor.class).execute(ProcessKind.FFMPEG, logDir, id + "", new ProcessBuilder(command),
+        timeoutSeconds);
   }
 
   /** 检测 MP4 是否“可播放”：有视频流 && 时长 > 0 */
@@ -95,7 +249,7 @@ public class FfmpegUtils {
     long id = SnowflakeIdUtils.id();
     File logDir = new File(LOG_FOLDER, String.valueOf(id));
     ProcessBuilder pb = new ProcessBuilder(command);
-    ProcessResult pr = ProcessUtils.execute(logDir, id + "", pb, timeoutSeconds);
+    ProcessResult pr = Aop.get(ProcessGovernor.class).execute(ProcessKind.FFMPEG, logDir, id + "", pb, timeoutSeconds);
     if (pr.getExitCode() != 0) {
       // 将 stderr 合并到异常信息中，方便排查
       throw new IOException("Command failed, exit=" + pr.getExitCode() + ", cmd=" + String.join(" ", command)
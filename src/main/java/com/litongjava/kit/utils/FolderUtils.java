@@ -1,6 +1,7 @@
 package com.litongjava.kit.utils;
 
 import java.io.File;
+import java.nio.file.Files;
 
 public class FolderUtils {
 
@@ -24,4 +25,36 @@ public class FolderUtils {
     return "/data/scenes/" + sessionId + "/" + name;
   }
 
+  /**
+   * 每个渲染任务独立的 manim media 目录
+   */
+  public static final String taskMedia(String mediaDir, Long taskId) {
+    return taskMedia(mediaDir, String.valueOf(taskId));
+  }
+
+  public static final String taskMedia(String mediaDir, String taskName) {
+    return mediaDir + File.separator + "tasks" + File.separator + taskName;
+  }
+
+  /**
+   * 高画质渲染的暂存目录，完成后再移动到 data/scenes/{sessionId}
+   */
+  public static final String upgrade(Long sessionId, Long taskId) {
+    return scenes(sessionId) + File.separator + ".upgrade" + File.separator + taskId;
+  }
+
+  /**
+   * 递归删除目录
+   */
+  public static final void delete(File file) {
+    // 不进入符号链接指向的目录
+    File[] files = Files.isSymbolicLink(file.toPath()) ? null : file.listFiles();
+    if (files != null) {
+      for (File child : files) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+
 }
@@ -0,0 +1,144 @@
+package com.litongjava.kit.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+import com.litongjava.tio.utils.environment.EnvUtils;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 轮询读取正在写入的 stdout/stderr 文件，把新增的完整行合并成一批回调，减少每行一个事件的开销
+ *
+ * <pre>
+ * render.progress.interval.ms=200
+ * render.progress.max.lines=200
+ * </pre>
+ */
+@Slf4j
+public class LogTailer {
+
+  private final Tail stdout;
+  private final Tail stderr;
+  private final BiConsumer<List<String>, List<String>> consumer;
+  private final long intervalMillis;
+  private final int maxLines;
+  private volatile boolean running = true;
+  private Thread thread;
+
+  private LogTailer(File stdout, File stderr, BiConsumer<List<String>, List<String>> consumer) {
+    this.stdout = new Tail(stdout);
+    this.stderr = new Tail(stderr);
+    this.consumer = consumer;
+    this.intervalMillis = EnvUtils.getLong("render.progress.interval.ms", 200L);
+    this.maxLines = EnvUtils.getInt("render.progress.max.lines", 200);
+  }
+
+  public static LogTailer start(File stdout, File stderr, BiConsumer<List<String>, List<String>> consumer) {
+    LogTailer tailer = new LogTailer(stdout, stderr, consumer);
+    tailer.thread = Thread.ofVirtual().name("log-tailer-" + stdout.getName()).start(tailer::run);
+    return tailer;
+  }
+
+  private void run() {
+    while (running) {
+      poll(false);
+      try {
+        Thread.sleep(intervalMillis);
+      } catch (InterruptedException e) {
+        break;
+      }
+    }
+  }
+
+  private void poll(boolean last) {
+    List<String> out = stdout.read(last);
+    List<String> err = stderr.read(last);
+    // 单批行数过多时只保留最后的部分
+    if (out.size() > maxLines) {
+      out = new ArrayList<>(out.subList(out.size() - maxLines, out.size()));
+    }
+    if (err.size() > maxLines) {
+      err = new ArrayList<>(err.subList(err.size() - maxLines, err.size()));
+    }
+    if (!out.isEmpty() || !err.isEmpty()) {
+      consumer.accept(out, err);
+    }
+  }
+
+  /**
+   * 停止轮询并推送剩余内容(包括没有换行结尾的最后一行)
+   */
+  public void stop() {
+    running = false;
+    if (thread != null) {
+      thread.interrupt();
+      try {
+        thread.join(1000);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    poll(true);
+  }
+
+  private static class Tail {
+    private final File file;
+    private long position;
+    private final StringBuilder partial = new StringBuilder();
+
+    private Tail(File file) {
+      this.file = file;
+    }
+
+    private synchronized List<String> read(boolean last) {
+      List<String> lines = new ArrayList<>();
+      if (file.exists() && file.length() > position) {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+          raf.seek(position);
+          byte[] bytes = new byte[(int) Math.min(file.length() - position, 1024 * 1024)];
+          int n = raf.read(bytes);
+          if (n > 0) {
+            // 只在换行处切分，避免截断多字节字符
+            int end = n;
+            while (end > 0 && bytes[end - 1] != '\n' && !last) {
+              end--;
+            }
+            if (end == 0 && n == bytes.length) {
+              // 超长的行没有换行，整块读出
+              end = n;
+            }
+            if (end > 0) {
+              position += end;
+              partial.append(new String(bytes, 0, end, StandardCharsets.UTF_8));
+            }
+          }
+        } catch (IOException e) {
+          log.error("Failed to read {}: {}", file.getName(), e.getMessage());
+        }
+      }
+
+      int start = 0;
+      int index;
+      while ((index = partial.indexOf("\n", start)) >= 0) {
+        lines.add(trimCr(partial.substring(start, index)));
+        start = index + 1;
+      }
+      partial.delete(0, start);
+      if (last && partial.length() > 0) {
+        lines.add(trimCr(partial.toString()));
+        partial.setLength(0);
+      }
+      return lines;
+    }
+
+    private static String trimCr(String line) {
+      return line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
+    }
+  }
+}
@@ -0,0 +1,92 @@
+package com.litongjava.kit.utils;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 从 manim 脚本中找出 manim -a 会渲染的 Scene 类，按源码顺序返回
+ *
+ * 只解析顶层的 class 定义，父类名以 Scene 结尾(Scene、ThreeDScene、VoiceoverScene 等)
+ * 或者父类是本文件中的 Scene 类时认为是 Scene
+ */
+public class ManimSceneParser {
+
+  private static final Pattern CLASS_PATTERN = Pattern.compile("^class\\s+(\\w+)\\s*(?:\\(([^)]*)\\))?\\s*:");
+
+  public static List<String> parse(String code) {
+    Map<String, List<String>> classes = new LinkedHashMap<>();
+    boolean inString = false;
+    String quote = null;
+    for (String line : code.split("\r?\n")) {
+      if (inString) {
+        if (line.contains(quote)) {
+          inString = false;
+        }
+        continue;
+      }
+      Matcher matcher = CLASS_PATTERN.matcher(line);
+      if (matcher.find()) {
+        classes.put(matcher.group(1), bases(matcher.group(2)));
+        continue;
+      }
+      // 跳过多行字符串，避免把文档里的 class 当作定义
+      String stripped = line.trim();
+      for (String q : new String[] { "\"\"\"", "'''" }) {
+        int first = stripped.indexOf(q);
+        if (first >= 0 && stripped.indexOf(q, first + 3) < 0) {
+          inString = true;
+          quote = q;
+          break;
+        }
+      }
+    }
+
+    List<String> scenes = new ArrayList<>();
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (Map.Entry<String, List<String>> e : classes.entrySet()) {
+        if (scenes.contains(e.getKey())) {
+          continue;
+        }
+        for (String base : e.getValue()) {
+          if (base.endsWith("Scene") || scenes.contains(base)) {
+            scenes.add(e.getKey());
+            changed = true;
+            break;
+          }
+        }
+      }
+    }
+
+    // 恢复源码顺序
+    List<String> ordered = new ArrayList<>(scenes.size());
+    for (String name : classes.keySet()) {
+      if (scenes.contains(name)) {
+        ordered.add(name);
+      }
+    }
+    return ordered;
+  }
+
+  private static List<String> bases(String group) {
+    List<String> bases = new ArrayList<>();
+    if (group == null) {
+      return bases;
+    }
+    for (String base : group.split(",")) {
+      base = base.trim();
+      if (base.isEmpty() || base.contains("=")) {
+        // metaclass=... 等关键字参数
+        continue;
+      }
+      int dot = base.lastIndexOf('.');
+      bases.add(dot >= 0 ? base.substring(dot + 1) : base);
+    }
+    return bases;
+  }
+}
@@ -0,0 +1,272 @@
+package com.litongjava.kit.utils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.lang.ProcessBuilder.Redirect;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.alibaba.fastjson2.JSONObject;
+import com.litongjava.kit.vo.TimedProcessResult;
+import com.litongjava.tio.utils.commandline.ProcessResult;
+import com.litongjava.tio.utils.hutool.FileUtil;
+import com.litongjava.tio.utils.json.FastJson2Utils;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 一个常驻的 python 进程，已经 import 了 manim，通过 stdin/stdout 按行收发 JSON 任务
+ */
+@Slf4j
+public class ManimWorker {
+
+  private static final JSONObject EOF = new JSONObject();
+
+  private final int id;
+  private final Process process;
+  private final BufferedWriter writer;
+  private final BlockingQueue<JSONObject> events = new LinkedBlockingQueue<>();
+
+  private String manimVersion;
+  private int taskCount;
+  private long rssKb;
+  private boolean broken;
+
+  private ManimWorker(int id, Process process) {
+    this.id = id;
+    this.process = process;
+    this.writer = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+    Thread.ofVirtual().name("manim-worker-reader-" + id).start(this::readEvents);
+  }
+
+  /**
+   * 启动 worker 并等待 ready 事件
+   */
+  public static ManimWorker start(int id, String python, File script, String preload, File logFile,
+      Map<String, String> env, int readyTimeoutSeconds) throws IOException, InterruptedException {
+
+    ProcessBuilder pb = new ProcessBuilder(python, script.getAbsolutePath(), preload == null ? "" : preload);
+    pb.environment().putAll(env);
+    pb.redirectError(Redirect.appendTo(logFile));
+
+    ManimWorker worker = new ManimWorker(id, pb.start());
+    JSONObject ready = worker.events.poll(readyTimeoutSeconds, TimeUnit.SECONDS);
+    if (ready == null || ready == EOF || !"ready".equals(ready.getString("event"))) {
+      worker.destroy();
+      String message = ready == null ? "timeout" : ready.getString("message");
+      throw new IOException("manim worker " + id + " failed to start: " + message);
+    }
+    worker.manimVersion = ready.getString("manim_version");
+    log.info("manim worker {} ready, pid:{}, manim:{}, import:{}ms", id, ready.getLong("pid"), worker.manimVersion,
+        ready.getLong("import_ms"));
+    return worker;
+  }
+
+  private void readEvents() {
+    try (BufferedReader reader = new BufferedReader(
+        new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        try {
+          events.offer(FastJson2Utils.parseObject(line));
+        } catch (Exception e) {
+          log.error("manim worker {} bad event:{}", id, line);
+        }
+      }
+    } catch (IOException e) {
+      log.error("manim worker {} read error:{}", id, e.getMessage());
+    } finally {
+      events.offer(EOF);
+    }
+  }
+
+  /**
+   * 在 worker 中执行一次 manim 命令，返回结果与 ProcessUtils.execute 保持一致
+   *
+   * @param logDir   stdout/stderr 日志目录
+   * @param taskName 任务名称
+   * @param args     manim 命令行参数(不含 manim 本身)
+   * @param env      子进程额外的环境变量
+   * @param timeout  超时时间(秒)
+   * @param cgroup   子进程加入的 cgroup.procs，可以为 null
+   */
+  public ProcessResult execute(File logDir, String taskName, List<String> args, Map<String, String> env, int timeout,
+      String cgroup) throws IOException, InterruptedException {
+    if (!logDir.exists()) {
+      logDir.mkdirs();
+    }
+    File stdoutFile = new File(logDir, taskName + "_stdout.log");
+    File stderrFile = new File(logDir, taskName + "_stderr.log");
+    File timingsFile = new File(logDir, taskName + "_timings.json");
+    timingsFile.delete();
+
+    taskCount++;
+    String requestId = taskName + "-" + taskCount;
+    JSONObject task = new JSONObject();
+    task.put("id", requestId);
+    task.put("args", args);
+    task.put("env", env);
+    task.put("stdout", stdoutFile.getAbsolutePath());
+    task.put("stderr", stderrFile.getAbsolutePath());
+    task.put("timings", timingsFile.getAbsolutePath());
+    if (cgroup != null) {
+      task.put("cgroup", cgroup);
+    }
+
+    events.clear();
+    long sentAt = System.currentTimeMillis();
+    long spawnMillis = -1;
+    try {
+      writer.write(task.toJSONString());
+      writer.newLine();
+      writer.flush();
+    } catch (IOException e) {
+      broken = true;
+      throw e;
+    }
+
+    long deadline = System.currentTimeMillis() + timeout * 1000L;
+    boolean timedOut = false;
+    Long childPid = null;
+    Integer exitCode = null;
+    JSONObject exitEvent = null;
+    try {
+      while (exitCode == null) {
+        long remain = deadline - System.currentTimeMillis();
+        JSONObject event = remain > 0 ? events.poll(remain, TimeUnit.MILLISECONDS) : null;
+        if (event == EOF) {
+          broken = true;
+          throw new IOException("manim worker " + id + " exited unexpectedly");
+        }
+        if (event == null) {
+          if (timedOut) {
+            // 子进程杀掉后仍然没有回应，整个 worker 作废
+            broken = true;
+            exitCode = -1;
+            break;
+          }
+          log.error("manim worker {} task {} timeout after {}s", id, taskName, timeout);
+          timedOut = true;
+          killTree(childPid);
+          deadline = System.currentTimeMillis() + 10 * 1000L;
+          continue;
+        }
+
+        String type = event.getString("event");
+        if ("started".equals(type)) {
+          childPid = event.getLong("pid");
+          spawnMillis = System.currentTimeMillis() - sentAt;
+        } else if ("exit".equals(type)) {
+          exitCode = event.getInteger("exit_code");
+          exitEvent = event;
+          rssKb = event.getLongValue("rss_kb");
+        } else if ("error".equals(type)) {
+          log.error("manim worker {} error:{}", id, event.getString("message"));
+        }
+      }
+    } catch (InterruptedException e) {
+      // 请求被取消，杀掉子进程后等待 exit 事件，worker 仍然可以继续使用
+      if (!awaitKilled(childPid)) {
+        broken = true;
+      }
+      throw e;
+    }
+
+    TimedProcessResult result = new TimedProcessResult();
+    result.setExitCode(timedOut ? -1 : exitCode);
+    if (spawnMillis >= 0) {
+      result.addTiming("spawn", spawnMillis);
+    }
+    if (exitEvent != null) {
+      // wait4 返回的子进程 CPU 时间和内存峰值
+      result.addUsage(exitEvent.getLong("cpu_ms"), exitEvent.getLong("peak_rss_kb"));
+    }
+    // 子进程记录的导入场景脚本的耗时
+    if (timingsFile.exists()) {
+      JSONObject timings = FastJson2Utils.parseObject(FileUtil.readString(timingsFile));
+      if (timings != null && timings.containsKey("import_ms")) {
+        result.addTiming("import", timings.getLongValue("import_ms"));
+      }
+    }
+    if (stdoutFile.exists()) {
+      result.setStdOut(FileUtil.readString(stdoutFile));
+    }
+    String stdErr = stderrFile.exists() ? FileUtil.readString(stderrFile) : null;
+    if (timedOut) {
+      stdErr = (stdErr == null ? "" : stdErr) + "\nProcess timed out after " + timeout + " seconds";
+    }
+    result.setStdErr(stdErr);
+    return result;
+  }
+
+  private boolean awaitKilled(Long childPid) {
+    killTree(childPid);
+    long deadline = System.currentTimeMillis() + 10 * 1000L;
+    try {
+      while (true) {
+        long remain = deadline - System.currentTimeMillis();
+        JSONObject event = remain > 0 ? events.poll(remain, TimeUnit.MILLISECONDS) : null;
+        if (event == null || event == EOF) {
+          return false;
+        }
+        String type = event.getString("event");
+        if ("started".equals(type)) {
+          // 中断时子进程还没有启动
+          killTree(event.getLong("pid"));
+        } else if ("exit".equals(type)) {
+          return true;
+        }
+      }
+    } catch (InterruptedException e) {
+      return false;
+    }
+  }
+
+  private void killTree(Long pid) {
+    if (pid == null) {
+      return;
+    }
+    ProcessHandle.of(pid).ifPresent(handle -> {
+      handle.descendants().forEach(ProcessHandle::destroyForcibly);
+      handle.destroyForcibly();
+    });
+  }
+
+  public boolean isAlive() {
+    return !broken && process.isAlive();
+  }
+
+  public void destroy() {
+    try {
+      writer.close();
+    } catch (IOException e) {
+      // ignore
+    }
+    process.descendants().forEach(ProcessHandle::destroyForcibly);
+    process.destroyForcibly();
+  }
+
+  public int getId() {
+    return id;
+  }
+
+  public String getManimVersion() {
+    return manimVersion;
+  }
+
+  public int getTaskCount() {
+    return taskCount;
+  }
+
+  public long getRssKb() {
+    return rssKb;
+  }
+}
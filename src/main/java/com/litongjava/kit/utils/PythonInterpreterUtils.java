@@ -8,10 +8,12 @@ import java.util.ArrayList;
 import java.util.List;
 
 import com.jfinal.kit.Kv;
+import com.litongjava.jfinal.aop.Aop;
+import com.litongjava.kit.service.ProcessGovernor;
+import com.litongjava.kit.vo.ProcessKind;
 import com.litongjava.template.PythonCodeEngine;
 import com.litongjava.tio.utils.base64.Base64Utils;
 import com.litongjava.tio.utils.commandline.ProcessResult;
-import com.litongjava.tio.utils.commandline.ProcessUtils;
 import com.litongjava.tio.utils.hutool.FileUtil;
 import com.litongjava.tio.utils.snowflake.SnowflakeIdUtils;
 
@@ -66,7 +68,7 @@ public class PythonInterpreterUtils {
     File file = new File(script_dir);
     ProcessResult result = null;
     try {
-      result = ProcessUtils.execute(file, processBuilder);
+      result = Aop.get(ProcessGovernor.class).execute(ProcessKind.PYTHON, file, "main", processBuilder, 0);
     } catch (IOException | InterruptedException e) {
       result = new ProcessResult();
       result.setStdErr(e.getMessage());
@@ -0,0 +1,84 @@
+package com.litongjava.kit.utils;
+
+import java.io.File;
+
+import com.jfinal.kit.Kv;
+import com.litongjava.tio.core.ChannelContext;
+import com.litongjava.tio.http.server.util.SseEmitter;
+import com.litongjava.tio.utils.json.JsonUtils;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 渲染过程中通过 SSE 推送进度事件，stream=false 时使用 {@link #NONE}，所有方法都是空操作
+ *
+ * <pre>
+ * queued, started, cache_hit, output, render_done, moved, video_length, last_frame, upload_done, hls_appended, result
+ * </pre>
+ */
+@Slf4j
+public class RenderProgress {
+
+  public static final RenderProgress NONE = new RenderProgress(null);
+
+  private final ChannelContext channelContext;
+  private final long startTime = System.currentTimeMillis();
+  private volatile boolean closed;
+
+  public RenderProgress(ChannelContext channelContext) {
+    this.channelContext = channelContext;
+  }
+
+  public boolean isEnabled() {
+    return channelContext != null && !closed;
+  }
+
+  public void event(String name, Kv data) {
+    if (!isEnabled()) {
+      return;
+    }
+    data.set("elapsed_ms", System.currentTimeMillis() - startTime);
+    send(name, JsonUtils.toSkipNullJson(data));
+  }
+
+  /**
+   * 推送一个对象，例如最终的 ProcessResult
+   */
+  public void event(String name, Object data) {
+    if (!isEnabled()) {
+      return;
+    }
+    send(name, JsonUtils.toSkipNullJson(data));
+  }
+
+  private void send(String name, String json) {
+    // 多个线程(渲染线程和日志读取线程)都会推送，保证事件不交错
+    synchronized (this) {
+      try {
+        SseEmitter.pushSSEChunk(channelContext, name, json);
+      } catch (Exception e) {
+        log.error("Failed to push sse event {}: {}", name, e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * 开始读取进程的 stdout/stderr 日志文件并按批推送 output 事件，没有开启 stream 时返回 null
+   */
+  public LogTailer tail(File logDir, String taskName) {
+    if (!isEnabled()) {
+      return null;
+    }
+    File stdout = new File(logDir, taskName + "_stdout.log");
+    File stderr = new File(logDir, taskName + "_stderr.log");
+    return LogTailer.start(stdout, stderr, (out, err) -> event("output", Kv.by("stdout", out).set("stderr", err)));
+  }
+
+  public void close() {
+    if (!isEnabled()) {
+      return;
+    }
+    closed = true;
+    SseEmitter.closeChunkConnection(channelContext);
+  }
+}
@@ -0,0 +1,139 @@
+package com.litongjava.kit.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 把一个 MPEG-TS 分片按视频帧切成 LL-HLS 的部分分片（EXT-X-PART）
+ *
+ * 只在视频 PES 的起始包处切分，每个部分分片不超过 partTarget 秒。部分分片以随机访问点（关键帧）开始时
+ * 标记为 independent。第一个部分分片从文件开头开始，包含 PAT 和 PMT。
+ */
+public class TsPartSplitter {
+
+  public static final int PACKET_SIZE = 188;
+  private static final int SYNC_BYTE = 0x47;
+  private static final long CLOCK = 90000L;
+  private static final long TIMESTAMP_MASK = 0x1FFFFFFFFL;
+
+  /**
+   * @param data 分片内容
+   * @param partTarget 部分分片的目标时长，秒
+   * @param segmentDuration 播放列表中 EXTINF 的时长，用于计算最后一个部分分片的时长
+   */
+  public static List<TsPart> split(byte[] data, double partTarget, double segmentDuration) {
+    List<long[]> frames = frames(data);
+    List<TsPart> parts = new ArrayList<>();
+    if (frames.isEmpty()) {
+      parts.add(new TsPart(0, data.length, segmentDuration, false));
+      return parts;
+    }
+
+    long target = Math.max(1, Math.round(partTarget * CLOCK));
+    int start = 0;
+    int startIndex = 0;
+    int previousIndex = 0;
+    double elapsed = 0;
+    for (int i = 1; i < frames.size(); i++) {
+      long startDts = frames.get(startIndex)[1];
+      if (((frames.get(i)[1] - startDts) & TIMESTAMP_MASK) <= target) {
+        previousIndex = i;
+        continue;
+      }
+      // 加入这一帧会超过目标时长，在上一帧处结束，只有一帧时只能在这一帧处结束
+      int endIndex = previousIndex > startIndex ? previousIndex : i;
+      long[] end = frames.get(endIndex);
+      double duration = (double) ((end[1] - startDts) & TIMESTAMP_MASK) / CLOCK;
+      parts.add(new TsPart(start, (int) end[0] - start, duration, frames.get(startIndex)[2] == 1));
+      elapsed += duration;
+      start = (int) end[0];
+      startIndex = endIndex;
+      previousIndex = i;
+    }
+    boolean independent = frames.get(startIndex)[2] == 1;
+    double duration = Math.max(segmentDuration - elapsed, 0.001);
+    parts.add(new TsPart(start, data.length - start, duration, independent));
+    return parts;
+  }
+
+  /**
+   * 视频 PES 起始包的 {包偏移, DTS, 是否随机访问点}
+   */
+  private static List<long[]> frames(byte[] data) {
+    List<long[]> frames = new ArrayList<>();
+    for (int offset = 0; offset + PACKET_SIZE <= data.length; offset += PACKET_SIZE) {
+      if ((data[offset] & 0xFF) != SYNC_BYTE) {
+        continue;
+      }
+      boolean unitStart = (data[offset + 1] & 0x40) != 0;
+      int control = (data[offset + 3] >> 4) & 0x03;
+      if (!unitStart || (control & 0x01) == 0) {
+        continue;
+      }
+      int payload = offset + 4;
+      boolean randomAccess = false;
+      if ((control & 0x02) != 0) {
+        int length = data[payload] & 0xFF;
+        if (length > 0) {
+          randomAccess = (data[payload + 1] & 0x40) != 0;
+        }
+        payload += 1 + length;
+      }
+      if (payload + 19 > offset + PACKET_SIZE) {
+        continue;
+      }
+      // PES 起始码 00 00 01，stream_id 0xE0-0xEF 为视频
+      if (data[payload] != 0 || data[payload + 1] != 0 || data[payload + 2] != 1) {
+        continue;
+      }
+      int streamId = data[payload + 3] & 0xFF;
+      if (streamId < 0xE0 || streamId > 0xEF) {
+        continue;
+      }
+      int flags = (data[payload + 7] >> 6) & 0x03;
+      if ((flags & 0x02) == 0) {
+        continue;
+      }
+      // 有 B 帧时 PTS 不是单调的，优先使用 DTS
+      long dts = flags == 3 ? timestamp(data, payload + 14) : timestamp(data, payload + 9);
+      frames.add(new long[] { offset, dts, randomAccess ? 1 : 0 });
+    }
+    return frames;
+  }
+
+  private static long timestamp(byte[] data, int index) {
+    return ((long) (data[index] >> 1) & 0x07) << 30 | (long) (data[index + 1] & 0xFF) << 22
+        | (long) ((data[index + 2] & 0xFF) >> 1) << 15 | (long) (data[index + 3] & 0xFF) << 7
+        | (long) ((data[index + 4] & 0xFF) >> 1);
+  }
+
+  public static class TsPart {
+    private final int offset;
+    private final int length;
+    private final double duration;
+    private final boolean independent;
+
+    public TsPart(int offset, int length, double duration, boolean independent) {
+      this.offset = offset;
+      this.length = length;
+      this.duration = duration;
+      this.independent = independent;
+    }
+
+    public int getOffset() {
+      return offset;
+    }
+
+    public int getLength() {
+      return length;
+    }
+
+    public double getDuration() {
+      return duration;
+    }
+
+    public boolean isIndependent() {
+      return independent;
+    }
+  }
+}
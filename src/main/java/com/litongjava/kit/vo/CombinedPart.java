@@ -0,0 +1,25 @@
+package com.litongjava.kit.vo;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.experimental.Accessors;
+
+/**
+ * 增量合并视频中的一个场景，对应 data/combined/{sessionId}/parts/{name}.ts
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Accessors(chain = true)
+public class CombinedPart {
+  // 场景文件名，例如 CombinedScene.mp4，排序与 finish 时一致
+  private String name;
+  private double duration;
+  // 在合并视频中的起始时间(秒)
+  private double offset;
+  private String signature;
+  // 源文件的大小和修改时间，用于判断场景是否被重新渲染
+  private long size;
+  private long lastModified;
+}
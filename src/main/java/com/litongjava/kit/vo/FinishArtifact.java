@@ -0,0 +1,34 @@
+package com.litongjava.kit.vo;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.experimental.Accessors;
+
+/**
+ * /manim/finish 生成的一个产物(pptx、mp4、水印 mp4、mp3)的状态
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Accessors(chain = true)
+public class FinishArtifact {
+  public static final String PENDING = "pending";
+  public static final String RUNNING = "running";
+  public static final String READY = "ready";
+  public static final String SKIPPED = "skipped";
+  public static final String FAILED = "failed";
+
+  private String name;
+  private String status = PENDING;
+  // 本地访问地址，例如 /data/combined/{sessionId}/combined.pptx
+  private String path;
+  // 存储平台地址，上传完成后才有
+  private String url;
+  private Long millis;
+  private String error;
+
+  public FinishArtifact(String name) {
+    this.name = name;
+  }
+}
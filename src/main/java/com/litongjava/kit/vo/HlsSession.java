@@ -12,6 +12,12 @@ public class HlsSession {
   private Long prt;
   private String hls;
   private boolean finished;
+  private String tsPattern;
+  private Integer segmentDuration;
+  // 重启后恢复的会话，重新创建 native 句柄之前播放列表中已有的分片
+  private String restoredSegments;
+  // 最近一次使用的时间，空闲超时和超过句柄上限时按它回收
+  private volatile long lastAccess = System.currentTimeMillis();
 
   public HlsSession(Long sessionId, String playFilePath) {
     this.sessionId = sessionId;
@@ -0,0 +1,20 @@
+package com.litongjava.kit.vo;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.experimental.Accessors;
+
+/**
+ * 预检发现的一个错误，type 为 syntax、import、undefined、forbidden、scene
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Accessors(chain = true)
+public class PreflightError {
+  private Integer line;
+  private Integer column;
+  private String type;
+  private String message;
+}
@@ -0,0 +1,23 @@
+package com.litongjava.kit.vo;
+
+import java.util.List;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.experimental.Accessors;
+
+/**
+ * 脚本预检结果
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Accessors(chain = true)
+public class PreflightResult {
+  private boolean ok;
+  private List<PreflightError> errors;
+  // 源码顺序的 Scene 类
+  private List<String> scenes;
+  private long millis;
+}
@@ -0,0 +1,33 @@
+package com.litongjava.kit.vo;
+
+/**
+ * 子进程类型，每种类型有独立的并发上限、cpu.weight 和单个进程的内存上限
+ */
+public enum ProcessKind {
+
+  MANIM("manim", 100, 4096), PYTHON("python", 50, 1024), CMD("cmd", 50, 1024), NODE("node", 100, 2048),
+  // 用户等待的合并、转码，权重高于渲染
+  FFMPEG("ffmpeg", 200, 2048);
+
+  private final String value;
+  private final int defaultCpuWeight;
+  private final long defaultMemoryMaxMb;
+
+  ProcessKind(String value, int defaultCpuWeight, long defaultMemoryMaxMb) {
+    this.value = value;
+    this.defaultCpuWeight = defaultCpuWeight;
+    this.defaultMemoryMaxMb = defaultMemoryMaxMb;
+  }
+
+  public String getValue() {
+    return value;
+  }
+
+  public int getDefaultCpuWeight() {
+    return defaultCpuWeight;
+  }
+
+  public long getDefaultMemoryMaxMb() {
+    return defaultMemoryMaxMb;
+  }
+}
@@ -0,0 +1,36 @@
+package com.litongjava.kit.vo;
+
+import java.util.List;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.experimental.Accessors;
+
+/**
+ * 渲染结果缓存条目，对应 cache/render/{key}/meta.json
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Accessors(chain = true)
+public class RenderCacheEntry {
+  private String key;
+  private int exitCode;
+  private String stdOut;
+  private String stdErr;
+  // 视频文件名，例如 CombinedScene.mp4
+  private String video;
+  // 最后一帧图片文件名
+  private String image;
+  // 多个场景时每个场景最后一帧的图片文件名
+  private List<String> images;
+  // 图片渲染的输出文件名
+  private String output;
+  private Double videoLength;
+  private String text;
+  private String subtitle;
+  // 原始渲染耗时，用于统计缓存节省的时间
+  private long renderMillis;
+  private long createTime;
+}
@@ -0,0 +1,33 @@
+package com.litongjava.kit.vo;
+
+/**
+ * 渲染任务类型，priority 越小越优先
+ */
+public enum RenderKind {
+
+  IMAGE("image", 0, 10 * 1000L), VIDEO("video", 1, 60 * 1000L), MOTION_CANVAS("motion_canvas", 1, 60 * 1000L),
+  // 渐进式渲染的后台高画质渲染，不与交互请求抢占
+  UPGRADE("upgrade", 2, 180 * 1000L);
+
+  private final String value;
+  private final int priority;
+  private final long defaultServiceMillis;
+
+  RenderKind(String value, int priority, long defaultServiceMillis) {
+    this.value = value;
+    this.priority = priority;
+    this.defaultServiceMillis = defaultServiceMillis;
+  }
+
+  public String getValue() {
+    return value;
+  }
+
+  public int getPriority() {
+    return priority;
+  }
+
+  public long getDefaultServiceMillis() {
+    return defaultServiceMillis;
+  }
+}
@@ -0,0 +1,39 @@
+package com.litongjava.kit.vo;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.experimental.Accessors;
+
+/**
+ * 渐进式渲染: 预览返回后在后台渲染请求的画质，完成后替换场景文件、HLS 和截图
+ */
+@Data
+@NoArgsConstructor
+@Accessors(chain = true)
+public class RenderUpgrade {
+  public static final String PENDING = "pending";
+  public static final String RUNNING = "running";
+  public static final String READY = "ready";
+  public static final String FAILED = "failed";
+  public static final String CANCELLED = "cancelled";
+
+  private Long sessionId;
+  private Long taskId;
+  // 每次调度递增，新版本的场景到达时旧版本被取消
+  private long version;
+  private String previewQuality;
+  private String quality;
+  private volatile String status = PENDING;
+  // 以下字段在 ready 之后才有
+  private String output;
+  private String image;
+  private String hlsUrl;
+  private Double videoLength;
+  private String error;
+  private long createTime = System.currentTimeMillis();
+  private Long readyTime;
+
+  public boolean isDone() {
+    return READY.equals(status) || FAILED.equals(status) || CANCELLED.equals(status);
+  }
+}
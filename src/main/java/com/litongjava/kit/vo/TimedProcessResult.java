@@ -0,0 +1,54 @@
+package com.litongjava.kit.vo;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import com.jfinal.kit.Kv;
+import com.litongjava.tio.utils.commandline.ProcessResult;
+
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+
+/**
+ * 带有各阶段耗时的执行结果，timings 的单位为毫秒
+ */
+@Data
+@EqualsAndHashCode(callSuper = true)
+public class TimedProcessResult extends ProcessResult {
+  // 多个阶段并行执行，需要线程安全
+  private Map<String, Long> timings = new ConcurrentSkipListMap<>();
+  // 渐进式渲染时后台高画质渲染的状态
+  private RenderUpgrade upgrade;
+  // manim partial movie 缓存的命中情况
+  private Kv manimCache;
+  // 子进程(含子孙进程)的 CPU 时间和内存峰值，多个进程时 CPU 累加、内存取最大值
+  private Long cpuMillis;
+  private Long peakRssKb;
+
+  public TimedProcessResult addTiming(String stage, long millis) {
+    timings.merge(stage, millis, Long::sum);
+    return this;
+  }
+
+  public TimedProcessResult addUsage(Long cpuMillis, Long peakRssKb) {
+    if (cpuMillis != null) {
+      this.cpuMillis = this.cpuMillis == null ? cpuMillis : this.cpuMillis + cpuMillis;
+    }
+    if (peakRssKb != null) {
+      this.peakRssKb = this.peakRssKb == null ? peakRssKb : Math.max(this.peakRssKb, peakRssKb);
+    }
+    return this;
+  }
+
+  public static TimedProcessResult from(ProcessResult source) {
+    if (source instanceof TimedProcessResult) {
+      return (TimedProcessResult) source;
+    }
+    TimedProcessResult result = new TimedProcessResult();
+    result.setExitCode(source.getExitCode());
+    result.setStdOut(source.getStdOut());
+    result.setStdErr(source.getStdErr());
+    result.setTaskId(source.getTaskId());
+    return result;
+  }
+}
@@ -23,6 +23,10 @@ public class VideoCodeInput {
   private String m3u8Path;
   private String figure;
   private String storagePlatform;
+  // 先渲染低画质预览，再在后台渲染请求的画质
+  private Boolean progressive;
+  // 场景在脚本中的顺序，同一会话的场景按 seq 追加到直播流
+  private Integer seq;
 
   public VideoCodeInput(Long sessionId, Long codeId, String code_name, String code, Integer code_timeout) {
     this.sessionId = sessionId;
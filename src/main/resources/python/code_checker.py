@@ -0,0 +1,162 @@
+# -*- coding: utf-8 -*-
+"""
+常驻的脚本预检进程，只做编译和静态检查，不 import manim，单次检查只需要几毫秒
+
+协议(每行一个 JSON):
+  <- {"event": "ready", "pid": 1}
+  -> {"id": "c1", "code": "...", "require_scene": true, "forbidden_modules": ["subprocess"], "forbidden_calls": ["os.system"]}
+  <- {"id": "c1", "ok": false, "scenes": [], "millis": 2,
+      "errors": [{"line": 3, "column": 5, "type": "syntax", "message": "invalid syntax"}]}
+
+错误类型: syntax、import、undefined、forbidden、scene
+"""
+import ast
+import importlib.util
+import json
+import os
+import sys
+import time
+
+try:
+    from pyflakes import api as _flakes_api
+    from pyflakes import messages as _flakes_messages
+except Exception:
+    _flakes_api = None
+
+_spec_cache = {}
+
+
+def _emit(message):
+    sys.stdout.write(json.dumps(message, ensure_ascii=False) + "\n")
+    sys.stdout.flush()
+
+
+def _error(errors, type_, message, line=None, column=None):
+    errors.append({"line": line, "column": column, "type": type_, "message": message})
+
+
+def _module_exists(name):
+    if name not in _spec_cache:
+        try:
+            _spec_cache[name] = importlib.util.find_spec(name) is not None
+        except Exception:
+            _spec_cache[name] = False
+    return _spec_cache[name]
+
+
+def _dotted(node):
+    parts = []
+    while isinstance(node, ast.Attribute):
+        parts.append(node.attr)
+        node = node.value
+    if isinstance(node, ast.Name):
+        parts.append(node.id)
+        return ".".join(reversed(parts))
+    return None
+
+
+def _base_name(node):
+    name = _dotted(node)
+    return name.rsplit(".", 1)[-1] if name else None
+
+
+def _scenes(tree):
+    classes = [(n.name, [_base_name(b) for b in n.bases]) for n in tree.body if isinstance(n, ast.ClassDef)]
+    scenes = set()
+    changed = True
+    while changed:
+        changed = False
+        for name, bases in classes:
+            if name in scenes:
+                continue
+            if any(b and (b.endswith("Scene") or b in scenes) for b in bases):
+                scenes.add(name)
+                changed = True
+    return [name for name, _ in classes if name in scenes]
+
+
+class _Reporter(object):
+    """只收集未定义的名称，star import 无法判断的不报错"""
+
+    def __init__(self, errors):
+        self.errors = errors
+
+    def unexpectedError(self, filename, message):
+        pass
+
+    def syntaxError(self, filename, msg, lineno, offset, text):
+        pass
+
+    def flake(self, message):
+        if isinstance(message, _flakes_messages.UndefinedName):
+            _error(self.errors, "undefined", message.message % message.message_args, message.lineno,
+                   getattr(message, "col", None))
+
+
+def check(task):
+    errors = []
+    code = task.get("code") or ""
+    forbidden_modules = set(task.get("forbidden_modules") or [])
+    forbidden_calls = set(task.get("forbidden_calls") or [])
+    try:
+        tree = ast.parse(code, "<scene>")
+        compile(tree, "<scene>", "exec")
+    except SyntaxError as e:
+        _error(errors, "syntax", e.msg, e.lineno, e.offset)
+        return errors, []
+    except ValueError as e:
+        _error(errors, "syntax", str(e))
+        return errors, []
+
+    for node in ast.walk(tree):
+        if isinstance(node, ast.Import):
+            names = [alias.name for alias in node.names]
+        elif isinstance(node, ast.ImportFrom):
+            names = [node.module] if node.module and not node.level else []
+        elif isinstance(node, ast.Call):
+            name = _dotted(node.func)
+            if name in forbidden_calls:
+                _error(errors, "forbidden", "%s() is not allowed" % name, node.lineno, node.col_offset + 1)
+            continue
+        else:
+            continue
+        for name in names:
+            top = name.split(".")[0]
+            if top in forbidden_modules:
+                _error(errors, "forbidden", "import of '%s' is not allowed" % name, node.lineno, node.col_offset + 1)
+            elif not _module_exists(top):
+                _error(errors, "import", "No module named '%s'" % top, node.lineno, node.col_offset + 1)
+
+    if _flakes_api is not None:
+        try:
+            _flakes_api.check(code, "<scene>", _Reporter(errors))
+        except Exception:
+            pass
+
+    scenes = _scenes(tree)
+    if task.get("require_scene") and not scenes:
+        _error(errors, "scene", "No Scene subclass found", 1, 1)
+    return errors, scenes
+
+
+def main():
+    _emit({"event": "ready", "pid": os.getpid()})
+    for line in sys.stdin:
+        line = line.strip()
+        if not line:
+            continue
+        start = time.time()
+        task_id = None
+        try:
+            task = json.loads(line)
+            task_id = task.get("id")
+            errors, scenes = check(task)
+            errors.sort(key=lambda e: (e["line"] or 0, e["column"] or 0))
+            _emit({"id": task_id, "ok": not errors, "errors": errors, "scenes": scenes,
+                   "millis": int((time.time() - start) * 1000)})
+        except Exception as e:
+            _emit({"id": task_id, "ok": True, "errors": [], "scenes": [], "message": str(e)})
+
+
+if __name__ == "__main__":
+    main()
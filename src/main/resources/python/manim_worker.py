@@ -0,0 +1,238 @@
+# -*- coding: utf-8 -*-
+"""
+常驻 manim 渲染 worker
+
+启动时预先 import manim，然后从 stdin 逐行读取 JSON 任务。每个任务 fork 一个子进程执行 manim 命令行，
+子进程继承父进程已经加载好的模块，省去 CPython 启动和 import manim(cairo/numpy/pango) 的开销。
+
+协议(每行一个 JSON):
+  <- {"event": "ready", "pid": 1, "manim_version": "0.19.0", "import_ms": 1200}
+  -> {"id": "t1", "args": ["-ql", "a.py", "-a"], "env": {"TASK_ID": "1"}, "stdout": "a.log", "stderr": "b.log",
+      "timings": "t.json", "cgroup": "/sys/fs/cgroup/x/p1/cgroup.procs"}
+  <- {"event": "started", "id": "t1", "pid": 2}
+  <- {"event": "exit", "id": "t1", "exit_code": 0, "cpu_ms": 800, "peak_rss_kb": 200000, "rss_kb": 150000}
+"""
+import json
+import os
+import shutil
+import sys
+import time
+import traceback
+
+_proto = None
+
+
+def _emit(message):
+    _proto.write(json.dumps(message, ensure_ascii=False) + "\n")
+    _proto.flush()
+
+
+def _rss_kb():
+    try:
+        with open("/proc/self/status") as f:
+            for line in f:
+                if line.startswith("VmRSS:"):
+                    return int(line.split()[1])
+    except Exception:
+        pass
+    import resource
+    return resource.getrusage(resource.RUSAGE_SELF).ru_maxrss
+
+
+def _exit_code(status):
+    if os.WIFEXITED(status):
+        return os.WEXITSTATUS(status)
+    if os.WIFSIGNALED(status):
+        return -os.WTERMSIG(status)
+    return 1
+
+
+def _preload(modules):
+    for name in modules:
+        name = name.strip()
+        if not name:
+            continue
+        try:
+            __import__(name)
+        except BaseException as e:
+            sys.stderr.write("preload %s failed: %s\n" % (name, e))
+
+
+def _time_import(timings):
+    """记录 manim 导入场景脚本(执行脚本顶层代码和其中的 import)的耗时"""
+    from manim.utils import module_ops
+    get_module = module_ops.get_module
+
+    def timed(*args, **kwargs):
+        start = time.time()
+        try:
+            return get_module(*args, **kwargs)
+        finally:
+            timings["import_ms"] = timings.get("import_ms", 0) + int((time.time() - start) * 1000)
+
+    module_ops.get_module = timed
+
+
+def _cache_lookup(cache_dir):
+    """任务目录中没有某个 hash 的 partial movie 时到全局缓存中查找，命中后只链接这一个文件"""
+    if not cache_dir or not os.path.isdir(cache_dir):
+        return
+    from manim import config
+    from manim.scene.scene_file_writer import SceneFileWriter
+    is_already_cached = SceneFileWriter.is_already_cached
+
+    def lookup(self, hash_invocation):
+        if is_already_cached(self, hash_invocation):
+            return True
+        directory = getattr(self, "partial_movie_directory", None)
+        if not directory or not config["write_to_movie"]:
+            return False
+        name = "%s%s" % (hash_invocation, config["movie_file_extension"])
+        source = os.path.join(cache_dir, name)
+        if not os.path.exists(source):
+            return False
+        target = os.path.join(str(directory), name)
+        try:
+            os.link(source, target)
+        except OSError:
+            try:
+                shutil.copyfile(source, target)
+            except OSError:
+                return False
+        return is_already_cached(self, hash_invocation)
+
+    SceneFileWriter.is_already_cached = lookup
+
+
+def _write_timings(task, timings):
+    path = task.get("timings")
+    if not path or not timings:
+        return
+    try:
+        with open(path, "w") as f:
+            json.dump(timings, f)
+    except Exception:
+        pass
+
+
+def _run_child(task, manim_main):
+    code = 1
+    timings = {}
+    try:
+        # 独立进程组，便于 Java 侧整体终止
+        os.setsid()
+        cgroup = task.get("cgroup")
+        if cgroup:
+            # 加入 Java 侧为本次任务创建的 cgroup，受 cpu.weight/memory.max 限制
+            try:
+                with open(cgroup, "w") as f:
+                    f.write(str(os.getpid()))
+            except Exception as e:
+                sys.stderr.write("join cgroup failed: %s\n" % e)
+        _proto.close()
+        devnull = os.open(os.devnull, os.O_RDONLY)
+        os.dup2(devnull, 0)
+        out = os.open(task["stdout"], os.O_WRONLY | os.O_CREAT | os.O_TRUNC, 0o644)
+        err = os.open(task["stderr"], os.O_WRONLY | os.O_CREAT | os.O_TRUNC, 0o644)
+        os.dup2(out, 1)
+        os.dup2(err, 2)
+
+        env = task.get("env") or {}
+        os.environ.update(env)
+        python_path = env.get("PYTHONPATH")
+        if python_path:
+            for path in reversed(python_path.split(os.pathsep)):
+                if path and path not in sys.path:
+                    sys.path.insert(0, path)
+        cwd = task.get("cwd")
+        if cwd:
+            os.chdir(cwd)
+
+        try:
+            _time_import(timings)
+        except Exception:
+            pass
+        try:
+            _cache_lookup(os.environ.get("KIT_MANIM_CACHE_DIR"))
+        except Exception as e:
+            sys.stderr.write("manim cache lookup disabled: %s\n" % e)
+
+        args = task.get("args") or []
+        sys.argv = ["manim"] + args
+        try:
+            manim_main.main(args=args, prog_name="manim", standalone_mode=True)
+            code = 0
+        except SystemExit as e:
+            if e.code is None:
+                code = 0
+            elif isinstance(e.code, int):
+                code = e.code
+            else:
+                code = 1
+    except BaseException:
+        traceback.print_exc()
+        code = 1
+    finally:
+        _write_timings(task, timings)
+        try:
+            sys.stdout.flush()
+            sys.stderr.flush()
+        except Exception:
+            pass
+        os._exit(code)
+
+
+def main():
+    global _proto
+    # stdout 只用于协议，其余输出全部转到 stderr
+    _proto = os.fdopen(os.dup(1), "w", encoding="utf-8")
+    os.dup2(2, 1)
+
+    if not hasattr(os, "fork"):
+        _emit({"event": "error", "message": "os.fork is not available on this platform"})
+        return 1
+
+    start = time.time()
+    try:
+        import manim
+        from manim.__main__ import main as manim_main
+    except BaseException as e:
+        _emit({"event": "error", "message": "import manim failed: %s" % e})
+        return 1
+    _preload(sys.argv[1].split(",") if len(sys.argv) > 1 else [])
+
+    _emit({
+        "event": "ready",
+        "pid": os.getpid(),
+        "manim_version": getattr(manim, "__version__", ""),
+        "import_ms": int((time.time() - start) * 1000),
+    })
+
+    for line in sys.stdin:
+        line = line.strip()
+        if not line:
+            continue
+        try:
+            task = json.loads(line)
+        except ValueError as e:
+            _emit({"event": "error", "message": "bad task: %s" % e})
+            continue
+
+        pid = os.fork()
+        if pid == 0:
+            _run_child(task, manim_main)
+        _emit({"event": "started", "id": task.get("id"), "pid": pid})
+        _, status, usage = os.wait4(pid, 0)
+        _emit({
+            "event": "exit",
+            "id": task.get("id"),
+            "exit_code": _exit_code(status),
+            "cpu_ms": int((usage.ru_utime + usage.ru_stime) * 1000),
+            "peak_rss_kb": usage.ru_maxrss,
+            "rss_kb": _rss_kb(),
+        })
+    return 0
+
+
+if __name__ == "__main__":
+    sys.exit(main())
@@ -0,0 +1,12 @@
+CREATE TABLE IF NOT EXISTS hls_session (
+  session_id       INTEGER PRIMARY KEY,
+  m3u8_path        TEXT    NOT NULL,
+  ts_pattern       TEXT    NOT NULL,
+  next_number      INTEGER NOT NULL DEFAULT 0,
+  segment_duration INTEGER NOT NULL,
+  status           TEXT    NOT NULL DEFAULT 'open',
+  create_time      DATETIME NOT NULL DEFAULT (CURRENT_TIMESTAMP),
+  update_time      DATETIME NOT NULL DEFAULT (CURRENT_TIMESTAMP)
+);
+
+CREATE INDEX IF NOT EXISTS hls_session_status ON hls_session (status);
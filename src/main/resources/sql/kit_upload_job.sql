@@ -0,0 +1,18 @@
+CREATE TABLE IF NOT EXISTS kit_upload_job (
+  id              INTEGER PRIMARY KEY,
+  biz_id          TEXT,
+  platform        TEXT    NOT NULL,
+  local_path      TEXT    NOT NULL,
+  target_name     TEXT    NOT NULL,
+  url             TEXT,
+  status          TEXT    NOT NULL DEFAULT 'pending',
+  attempts        INTEGER NOT NULL DEFAULT 0,
+  next_run_time   INTEGER NOT NULL DEFAULT 0,
+  last_error      TEXT,
+  create_time     DATETIME NOT NULL DEFAULT (CURRENT_TIMESTAMP),
+  update_time     DATETIME NOT NULL DEFAULT (CURRENT_TIMESTAMP)
+);
+
+CREATE INDEX IF NOT EXISTS kit_upload_job_status ON kit_upload_job (status, next_run_time);
+
+CREATE INDEX IF NOT EXISTS kit_upload_job_biz_id ON kit_upload_job (biz_id);
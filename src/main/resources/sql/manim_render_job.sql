@@ -0,0 +1,18 @@
+CREATE TABLE IF NOT EXISTS manim_render_job (
+  code_id         INTEGER PRIMARY KEY,
+  session_id      INTEGER,
+  quality         TEXT,
+  code_key        TEXT    NOT NULL,
+  input           TEXT    NOT NULL,
+  status          TEXT    NOT NULL DEFAULT 'queued',
+  attempts        INTEGER NOT NULL DEFAULT 0,
+  result          TEXT,
+  error           TEXT,
+  elapsed_ms      INTEGER,
+  create_time     DATETIME NOT NULL DEFAULT (CURRENT_TIMESTAMP),
+  update_time     DATETIME NOT NULL DEFAULT (CURRENT_TIMESTAMP)
+);
+
+CREATE INDEX IF NOT EXISTS manim_render_job_status ON manim_render_job (status);
+
+CREATE INDEX IF NOT EXISTS manim_render_job_session_id ON manim_render_job (session_id);
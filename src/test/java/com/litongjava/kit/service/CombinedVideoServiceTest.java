@@ -0,0 +1,90 @@
+package com.litongjava.kit.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.alibaba.fastjson2.JSON;
+import com.litongjava.kit.utils.FolderUtils;
+import com.litongjava.kit.vo.CombinedPart;
+import com.litongjava.tio.utils.hutool.FileUtil;
+
+public class CombinedVideoServiceTest {
+
+  /**
+   * 重新渲染最后一个场景时替换它在 combined.ts 中的位置，不能追加第二份
+   */
+  @Test
+  public void rerenderLastScene() throws Exception {
+    assumeTrue(ffmpeg("-version"));
+    Long sessionId = System.currentTimeMillis();
+    File scenes = new File(FolderUtils.scenes(sessionId));
+    scenes.mkdirs();
+    try {
+      CombinedVideoService service = new CombinedVideoService();
+      File first = scene(scenes, "Scene01.mp4", 1, "red");
+      File last = scene(scenes, "Scene02.mp4", 2, "green");
+      service.addScene(sessionId, first);
+      service.addScene(sessionId, last);
+      assertCombined(sessionId, 2, 3);
+
+      // 重新渲染，时长变化
+      last = scene(scenes, "Scene02.mp4", 3, "blue");
+      service.addScene(sessionId, last);
+      assertCombined(sessionId, 2, 4);
+
+      // 缓存命中时同一个文件再次加入
+      service.addScene(sessionId, last);
+      assertCombined(sessionId, 2, 4);
+      assertEquals(4, service.duration(sessionId), 0.2);
+    } finally {
+      FolderUtils.delete(scenes);
+      FolderUtils.delete(new File(FolderUtils.combined(sessionId)));
+    }
+  }
+
+  private void assertCombined(Long sessionId, int count, double duration) {
+    File combined = new File(FolderUtils.combined(sessionId));
+    File parts = new File(combined, CombinedVideoService.PARTS_FOLDER);
+    String index = FileUtil.readString(new File(parts, CombinedVideoService.INDEX_FILENAME));
+    List<CombinedPart> list = JSON.parseArray(index, CombinedPart.class);
+    assertEquals(count, list.size());
+    long length = 0;
+    double total = 0;
+    for (CombinedPart part : list) {
+      length += new File(parts, part.getName() + ".ts").length();
+      total += part.getDuration();
+    }
+    assertEquals(duration, total, 0.2);
+    // combined.ts 正好是每个场景一份
+    assertEquals(length, new File(combined, CombinedVideoService.COMBINED_TS).length());
+  }
+
+  private File scene(File dir, String name, int seconds, String color) throws Exception {
+    File file = new File(dir, name);
+    boolean ok = ffmpeg("-v", "error", "-f", "lavfi", "-i", "color=c=" + color + ":s=320x240:r=30:d=" + seconds,
+        "-f", "lavfi", "-i", "sine=d=" + seconds, "-c:v", "libx264", "-pix_fmt", "yuv420p", "-c:a", "aac",
+        "-shortest", "-y", file.getAbsolutePath());
+    assumeTrue(ok);
+    // 同一秒内重新生成时修改时间可能不变
+    file.setLastModified(System.currentTimeMillis() + seconds * 1000L);
+    return file;
+  }
+
+  private static boolean ffmpeg(String... args) {
+    String[] command = new String[args.length + 1];
+    command[0] = "ffmpeg";
+    System.arraycopy(args, 0, command, 1, args.length);
+    try {
+      Process process = new ProcessBuilder(command).redirectErrorStream(true)
+          .redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+      return process.waitFor() == 0;
+    } catch (Exception e) {
+      return false;
+    }
+  }
+}
@@ -0,0 +1,28 @@
+package com.litongjava.kit.service;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.litongjava.kit.vo.TimedProcessResult;
+
+public class RenderMetricsTest {
+
+  @Test
+  public void export() {
+    RenderMetrics metrics = new RenderMetrics();
+    TimedProcessResult result = new TimedProcessResult();
+    result.addTiming("queue", 40).addTiming("render", 3000).addTiming("video_length", 20);
+    metrics.record("l", RenderMetrics.OK, result);
+
+    StringBuilder out = new StringBuilder();
+    metrics.export(out);
+    String text = out.toString();
+    assertTrue(text.contains("manim_render_phase_seconds_bucket{phase=\"queue\",quality=\"l\",outcome=\"ok\",le=\"0.05\"} 1"));
+    assertTrue(text.contains("manim_render_phase_seconds_bucket{phase=\"render\",quality=\"l\",outcome=\"ok\",le=\"2.5\"} 0"));
+    assertTrue(text.contains("manim_render_phase_seconds_sum{phase=\"render\",quality=\"l\",outcome=\"ok\"} 3.0"));
+    assertTrue(text.contains("phase=\"probe\""));
+    assertFalse(text.contains("phase=\"upload\""));
+  }
+}
@@ -0,0 +1,28 @@
+package com.litongjava.kit.service;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class TtsPrefetchServiceTest {
+
+  @Test
+  public void extract() {
+    String code = "with custom_voiceover_tts(\"勾股定理\") as tracker:\n"
+        + "    pass\n"
+        + "with custom_voiceover_tts(text='It\\'s a\\nproof', lang=\"en\") as tracker:\n"
+        + "    pass\n"
+        + "with custom_voiceover_tts(f\"step {i}\") as tracker:\n"
+        + "    pass\n"
+        + "with custom_voiceover_tts(\"a\" \"b\") as tracker:\n"
+        + "    pass\n"
+        + "with custom_voiceover_tts(\"勾股定理\") as tracker:\n"
+        + "    pass\n";
+    List<String> texts = TtsPrefetchService.extract(code);
+    assertEquals(2, texts.size());
+    assertEquals("勾股定理", texts.get(0));
+    assertEquals("It's a\nproof", texts.get(1));
+  }
+}
@@ -0,0 +1,131 @@
+package com.litongjava.kit.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.litongjava.db.activerecord.Row;
+import com.litongjava.kit.config.DbTables;
+import com.litongjava.tio.boot.admin.config.TioAdminDbConfiguration;
+import com.litongjava.tio.utils.environment.EnvUtils;
+
+public class UploadJobServiceTest {
+
+  private static final long BASE_MS = 40;
+  private static final String RETRY_TARGET = "test/upload.mp4";
+  private static final String FAILED_TARGET = "test/failed.mp4";
+  private static final int FAILURES = 3;
+
+  private static final String RETRY_BIZ_ID = "test-biz";
+
+  // poller 只启动一次，两个测试的任务都由它执行，所以按 targetName 区分行为
+  private static final UploadJobService service = new UploadJobService();
+  private static final Map<String, AtomicInteger> calls = new ConcurrentHashMap<>();
+  private static final List<Long> calledAt = new CopyOnWriteArrayList<>();
+  private static final List<Long> failedAt = new CopyOnWriteArrayList<>();
+  private static final List<Row> persisted = new CopyOnWriteArrayList<>();
+
+  @BeforeClass
+  public static void init() throws Exception {
+    EnvUtils.load();
+    File db = File.createTempFile("upload-job-test", ".db");
+    db.deleteOnExit();
+    EnvUtils.set("jdbc.url", "jdbc:sqlite:" + db.getAbsolutePath());
+    EnvUtils.set("upload.retry.base.ms", String.valueOf(BASE_MS));
+    EnvUtils.set("upload.retry.max.ms", "600000");
+    EnvUtils.set("upload.max.attempts", "4");
+    EnvUtils.set("upload.poll.interval.ms", "10");
+    new TioAdminDbConfiguration().config();
+    DbTables.init();
+    service.setUploader(UploadJobServiceTest::upload);
+  }
+
+  private static String upload(String platform, String localPath, String targetName) {
+    int call = calls.computeIfAbsent(targetName, k -> new AtomicInteger()).incrementAndGet();
+    if (FAILED_TARGET.equals(targetName)) {
+      throw new IllegalStateException("stub failure " + call);
+    }
+    calledAt.add(System.currentTimeMillis());
+    // 上一次失败的结果已经保存
+    persisted.add(service.findByBizId(RETRY_BIZ_ID).get(0));
+    if (call <= FAILURES) {
+      failedAt.add(System.currentTimeMillis());
+      throw new IllegalStateException("stub failure " + call);
+    }
+    return "https://example.com/" + targetName;
+  }
+
+  /**
+   * 前 3 次上传失败，第 4 次成功。每次重试前任务状态已经写入数据库，重试间隔按指数退避
+   */
+  @Test
+  public void retryUntilSuccess() throws Exception {
+    File file = File.createTempFile("upload-job-test", ".mp4");
+    file.deleteOnExit();
+    long id = service.submit("s3", RETRY_BIZ_ID, file.getAbsolutePath(), RETRY_TARGET);
+    service.start();
+
+    Row job = await(id, 10000);
+    assertEquals(UploadJobService.STATUS_DONE, job.getStr("status"));
+    assertEquals(FAILURES + 1, job.getInt("attempts").intValue());
+    assertEquals("https://example.com/" + RETRY_TARGET, job.getStr("url"));
+    assertNull(job.getStr("last_error"));
+    assertEquals(FAILURES + 1, calls.get(RETRY_TARGET).get());
+
+    for (int i = 1; i <= FAILURES; i++) {
+      Row row = persisted.get(i);
+      assertEquals(UploadJobService.STATUS_RUNNING, row.getStr("status"));
+      assertEquals(i + 1, row.getInt("attempts").intValue());
+      assertEquals("stub failure " + i, row.getStr("last_error"));
+
+      // 第 i 次失败后等待 base * 2^(i-1)，有 20% 的抖动
+      long delay = BASE_MS << (i - 1);
+      long scheduled = row.getLong("next_run_time") - failedAt.get(i - 1);
+      assertTrue("retry " + i + " scheduled in " + scheduled + "ms", scheduled >= delay * 0.8 - 1);
+      assertTrue("retry " + i + " scheduled in " + scheduled + "ms", scheduled <= delay * 1.2 + 50);
+      assertTrue(calledAt.get(i) >= row.getLong("next_run_time"));
+    }
+  }
+
+  /**
+   * 一直失败时达到 upload.max.attempts 后不再重试
+   */
+  @Test
+  public void giveUpAfterMaxAttempts() throws Exception {
+    File file = File.createTempFile("upload-job-test", ".mp4");
+    file.deleteOnExit();
+    long id = service.submit("s3", "test-biz-failed", file.getAbsolutePath(), FAILED_TARGET);
+    service.start();
+
+    Row job = await(id, 10000);
+    assertEquals(UploadJobService.STATUS_FAILED, job.getStr("status"));
+    assertEquals(4, job.getInt("attempts").intValue());
+    assertEquals("stub failure 4", job.getStr("last_error"));
+    assertNull(job.getStr("url"));
+    Thread.sleep(BASE_MS * 20);
+    assertEquals(4, calls.get(FAILED_TARGET).get());
+  }
+
+  private static Row await(long id, long timeoutMillis) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    while (true) {
+      Row job = service.findById(id);
+      String status = job.getStr("status");
+      if (UploadJobService.STATUS_DONE.equals(status) || UploadJobService.STATUS_FAILED.equals(status)) {
+        return job;
+      }
+      assertTrue("upload job " + id + " is still " + status, System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+  }
+}
@@ -0,0 +1,43 @@
+package com.litongjava.kit.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class ManimSceneParserTest {
+
+  @Test
+  public void parse() {
+    String code = "from manim import *\n" //
+        + "import manim\n" //
+        + "\n" //
+        + "class Helper:\n" //
+        + "    pass\n" //
+        + "\n" //
+        + "class Scene2(BaseScene):\n" //
+        + "    def construct(self):\n" //
+        + "        \"\"\"\n" //
+        + "class NotAScene(Scene):\n" //
+        + "        \"\"\"\n" //
+        + "        pass\n" //
+        + "\n" //
+        + "class BaseScene(VoiceoverScene):\n" //
+        + "    pass\n" //
+        + "\n" //
+        + "class Scene10(manim.ThreeDScene):\n" //
+        + "    pass\n" //
+        + "\n" //
+        + "class Scene1(Scene, metaclass=Meta):\n" //
+        + "    class Inner(Scene):\n" //
+        + "        pass\n";
+    assertEquals(Arrays.asList("Scene2", "BaseScene", "Scene10", "Scene1"), ManimSceneParser.parse(code));
+  }
+
+  @Test
+  public void noScene() {
+    assertEquals(Collections.emptyList(), ManimSceneParser.parse("class Helper(object):\n    pass\n"));
+  }
+}
@@ -0,0 +1,68 @@
+package com.litongjava.kit.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.litongjava.kit.utils.TsPartSplitter.TsPart;
+
+public class TsPartSplitterTest {
+
+  @Test
+  public void split() {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    // PAT
+    out.writeBytes(packet(0, false, false, -1, 0));
+    // 30fps 两秒，每秒一个关键帧，每帧后面跟一个音频包
+    for (int i = 0; i < 60; i++) {
+      out.writeBytes(packet(0x100, true, i % 30 == 0, 0xE0, 126000L + i * 3000L));
+      out.writeBytes(packet(0x101, true, false, 0xC0, 126000L + i * 3000L));
+    }
+    byte[] data = out.toByteArray();
+
+    List<TsPart> parts = TsPartSplitter.split(data, 0.5, 2.0);
+    assertEquals(4, parts.size());
+    assertEquals(0, parts.get(0).getOffset());
+    assertTrue(parts.get(0).isIndependent());
+    assertFalse(parts.get(1).isIndependent());
+    assertTrue(parts.get(2).isIndependent());
+    int length = 0;
+    for (TsPart part : parts) {
+      assertEquals(0.5, part.getDuration(), 0.001);
+      assertEquals(0, part.getOffset() % TsPartSplitter.PACKET_SIZE);
+      length += part.getLength();
+    }
+    assertEquals(data.length, length);
+    // 第二个部分分片从第 16 帧开始
+    assertEquals(TsPartSplitter.PACKET_SIZE * (1 + 15 * 2), parts.get(1).getOffset());
+  }
+
+  private static byte[] packet(int pid, boolean unitStart, boolean randomAccess, int streamId, long pts) {
+    byte[] packet = new byte[TsPartSplitter.PACKET_SIZE];
+    packet[0] = 0x47;
+    packet[1] = (byte) ((unitStart ? 0x40 : 0) | (pid >> 8));
+    packet[2] = (byte) pid;
+    packet[3] = 0x30;
+    packet[4] = 1;
+    packet[5] = (byte) (randomAccess ? 0x40 : 0);
+    if (streamId < 0) {
+      return packet;
+    }
+    int p = 6;
+    packet[p + 2] = 1;
+    packet[p + 3] = (byte) streamId;
+    packet[p + 7] = (byte) 0x80;
+    packet[p + 8] = 5;
+    packet[p + 9] = (byte) (0x21 | ((pts >> 29) & 0x0E));
+    packet[p + 10] = (byte) (pts >> 22);
+    packet[p + 11] = (byte) (((pts >> 14) & 0xFE) | 1);
+    packet[p + 12] = (byte) (pts >> 7);
+    packet[p + 13] = (byte) (((pts << 1) & 0xFE) | 1);
+    return packet;
+  }
+}
@@ -0,0 +1,115 @@
+package com.litongjava.linux.service;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.junit.Test;
+
+import com.litongjava.kit.service.CombinedVideoService;
+import com.litongjava.kit.utils.FfmpegUtils;
+import com.litongjava.kit.utils.FolderUtils;
+import com.litongjava.media.NativeMedia;
+import com.litongjava.media.utils.VideoWaterUtils;
+import com.litongjava.tio.utils.hutool.FileUtil;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 对比 finish 的三次解码(merge -> watermark -> mp3)和一次解码(combined.ts 多路输出)的耗时与 CPU 时间
+ *
+ * CPU 时间 = JVM 进程(NativeMedia 在进程内) + 已结束的 ffmpeg 子进程(/proc/self/stat cutime + cstime)
+ */
+@Slf4j
+public class FinishBenchmarkTest {
+
+  private static final String SCENES_DIR = "data/benchmark/scenes";
+  private static final String OUTPUT_DIR = "data/benchmark/output";
+  private static final String WATERMARK = "litongjava";
+
+  @Test
+  public void compare() throws Exception {
+    File[] mp4Files = new File(SCENES_DIR).listFiles((dir, name) -> name.toLowerCase().endsWith(".mp4"));
+    if (mp4Files == null || mp4Files.length == 0) {
+      log.info("no scenes in {}", SCENES_DIR);
+      return;
+    }
+    Arrays.sort(mp4Files, Comparator.comparing(File::getName));
+    new File(OUTPUT_DIR).mkdirs();
+
+    // 1. 三次解码
+    long[] before = sample();
+    String[] paths = new String[mp4Files.length];
+    for (int i = 0; i < mp4Files.length; i++) {
+      paths[i] = mp4Files[i].getAbsolutePath();
+    }
+    String mp4 = OUTPUT_DIR + "/three_pass.mp4";
+    NativeMedia.merge(paths, mp4);
+    VideoWaterUtils.addWatermark(mp4, OUTPUT_DIR + "/three_pass_watermark.mp4", 24, WATERMARK);
+    NativeMedia.toMp3(mp4);
+    report("three pass", before, sample());
+
+    // 2. 场景落地时的增量拼接，正常情况下在渲染过程中已经完成。CombinedVideoService 从 data/scenes/{sessionId} 读取场景
+    Long sessionId = System.currentTimeMillis();
+    File scenesDir = new File(FolderUtils.scenes(sessionId));
+    scenesDir.mkdirs();
+    File[] sessionScenes = new File[mp4Files.length];
+    for (int i = 0; i < mp4Files.length; i++) {
+      sessionScenes[i] = new File(scenesDir, mp4Files[i].getName());
+      Files.copy(mp4Files[i].toPath(), sessionScenes[i].toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+    CombinedVideoService combinedVideoService = new CombinedVideoService();
+    before = sample();
+    for (File scene : sessionScenes) {
+      combinedVideoService.addScene(sessionId, scene);
+    }
+    File combinedTs = combinedVideoService.prepare(sessionId, sessionScenes);
+    report("incremental remux", before, sample());
+    if (combinedTs == null) {
+      log.info("scenes can not be concatenated without re-encoding");
+      FolderUtils.delete(scenesDir);
+      return;
+    }
+
+    // 3. 一次解码
+    File watermarkFile = new File(OUTPUT_DIR, "watermark.txt");
+    FileUtil.writeString(WATERMARK, watermarkFile);
+    before = sample();
+    FfmpegUtils.finishSinglePass(combinedTs.getPath(), OUTPUT_DIR + "/single_pass.mp4",
+        OUTPUT_DIR + "/single_pass_watermark.mp4", watermarkFile, null, 24, OUTPUT_DIR + "/single_pass.mp3");
+    report("single pass", before, sample());
+
+    FolderUtils.delete(scenesDir);
+    FolderUtils.delete(new File(FolderUtils.combined(sessionId)));
+  }
+
+  /**
+   * 墙钟时间、JVM CPU 时间、子进程 CPU 时间，单位毫秒
+   */
+  private long[] sample() throws Exception {
+    com.sun.management.OperatingSystemMXBean os = (com.sun.management.OperatingSystemMXBean) ManagementFactory
+        .getOperatingSystemMXBean();
+    long children = 0;
+    File stat = new File("/proc/self/stat");
+    if (stat.exists()) {
+      String content = new String(Files.readAllBytes(Paths.get(stat.getPath())), StandardCharsets.UTF_8);
+      // 进程名可能包含空格，从最后一个 ')' 之后开始解析
+      String[] fields = content.substring(content.lastIndexOf(')') + 2).split(" ");
+      // 第 16、17 个字段 cutime、cstime，单位为时钟周期(通常 100Hz)
+      children = (Long.parseLong(fields[13]) + Long.parseLong(fields[14])) * 10;
+    }
+    return new long[] { System.currentTimeMillis(), os.getProcessCpuTime() / 1000000, children };
+  }
+
+  private void report(String name, long[] before, long[] after) {
+    long wall = after[0] - before[0];
+    long jvm = after[1] - before[1];
+    long children = after[2] - before[2];
+    log.info("{}: wall:{}ms, cpu:{}ms (jvm:{}ms, ffmpeg:{}ms)", name, wall, jvm + children, jvm, children);
+  }
+}